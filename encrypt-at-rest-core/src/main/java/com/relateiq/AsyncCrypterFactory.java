@@ -0,0 +1,133 @@
+package com.relateiq;
+
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Resolves crypters without blocking the caller: cached crypters are returned at once, everything else is loaded from the key
+ * store on a dedicated, bounded pool of I/O threads.  Concurrent requests for the same scope share a single load.
+ * <p/>
+ * When the pool and its queue are full, requests fail fast with a {@link RejectedExecutionException} instead of queueing without
+ * bound behind a slow key store.
+ */
+public class AsyncCrypterFactory implements AutoCloseable {
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final CrypterFactory crypterFactory;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<ScopeKey, CompletableFuture<Crypter>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AsyncCrypterFactory(CrypterFactory crypterFactory) {
+        this(crypterFactory, DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param threads       the most key store reads in flight at once
+     * @param queueCapacity the most reads waiting for a thread
+     */
+    public AsyncCrypterFactory(CrypterFactory crypterFactory, int threads, int queueCapacity) {
+        this.crypterFactory = crypterFactory;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "crypter-io-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the crypter of the scope, or null (as {@link CrypterFactory#create} returns) if its keys could not be loaded
+     */
+    public CompletableFuture<Crypter> create(final String scope, final KeyPurpose purpose, final DefaultKeyType type, final int size) {
+        final Crypter cached = crypterFactory.getIfPresent(scope, purpose, type, size);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        final ScopeKey key = new ScopeKey(scope, purpose, type, size);
+        final CompletableFuture<Crypter> future = new CompletableFuture<>();
+        final CompletableFuture<Crypter> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return dependent(existing);
+        }
+
+        try {
+            executor.execute(() -> {
+                loads.incrementAndGet();
+                try {
+                    future.complete(crypterFactory.create(scope, purpose, type, size));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    // Only once it is complete, so that nobody starts a second load in between
+                    inFlight.remove(key, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return dependent(future);
+    }
+
+    /**
+     * Callers get futures of their own, so that none of them can complete or cancel the shared one.
+     */
+    private static CompletableFuture<Crypter> dependent(CompletableFuture<Crypter> shared) {
+        return shared.thenApply(Function.<Crypter>identity());
+    }
+
+    /**
+     * @return the number of crypters loaded from the key store
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * @return the number of requests that joined a load already in flight
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of requests turned away because the I/O pool was saturated
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Stops accepting requests; loads already in flight still complete.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,57 @@
+package com.relateiq;
+
+import org.keyczar.DefaultKeyType;
+import org.keyczar.Signer;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.util.Base64Coder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Computes "blind indexes": deterministic, keyed HMACs of plaintext values that are stored in a companion field next to the
+ * encrypted value, so that equality lookups become a single index seek instead of decrypting every document in the app.
+ * <p/>
+ * The HMAC key is a separate key ring, derived per scope by suffixing the scope with {@link #KEY_SCOPE_SUFFIX}, so the same
+ * plaintext hashes differently in every scope and the encryption keys are never used for signing.
+ */
+@Singleton
+public class BlindIndex {
+    public static final String FIELD_SUFFIX = "_bidx";
+    public static final String KEY_SCOPE_SUFFIX = "/bidx";
+    public static final int KEY_SIZE = 256;
+
+    private final CrypterFactory crypterFactory;
+
+    @Inject
+    public BlindIndex(CrypterFactory crypterFactory) {
+        this.crypterFactory = crypterFactory;
+    }
+
+    /**
+     * @return the name of the companion field holding the blind index of the given field
+     */
+    public static String companionName(String jsonName) {
+        return jsonName + FIELD_SUFFIX;
+    }
+
+    /**
+     * @param scope     scope of the document the value belongs to
+     * @param plaintext the serialized value
+     * @return the web-safe Base64 encoded blind index, or null if no key could be loaded for the scope
+     */
+    public String compute(String scope, byte[] plaintext) {
+        final Signer signer = crypterFactory.createSigner(scope + KEY_SCOPE_SUFFIX, KeyPurpose.SIGN_AND_VERIFY,
+                DefaultKeyType.HMAC_SHA1, KEY_SIZE);
+        if (signer == null) {
+            return null;
+        }
+
+        try {
+            return Base64Coder.encodeWebSafe(signer.sign(plaintext));
+        } catch (KeyczarException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.relateiq;
+
+import org.keyczar.Crypter;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.util.Base64Coder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The cipher engine shared by every integration point (the Morphia interceptor as well as the raw driver encoders), so that a
+ * value written by one of them can be read by any other.  Values are encrypted with the Keyczar crypter of their scope and
+ * stored as web-safe Base64 strings.
+ */
+public final class CipherEngine {
+    public static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Marks a serialized value that starts with a byte of flags.  0xFF never appears in UTF-8, so values serialized before
+     * there were any flags (UTF-8 text and JSON) can not be mistaken for one.
+     */
+    public static final byte ENVELOPE_MARKER = (byte) 0xFF;
+    public static final int FLAG_DEFLATE = 1;
+    public static final int FLAG_BSON = 2;
+
+    private CipherEngine() {
+    }
+
+    /**
+     * @param crypter   crypter of the scope the value belongs to
+     * @param plaintext the serialized value
+     * @return the encrypted, Base64 encoded value as it is stored at rest
+     */
+    public static String encrypt(Crypter crypter, byte[] plaintext) throws KeyczarException {
+        return encode(crypter.encrypt(plaintext));
+    }
+
+    /**
+     * @return the ciphertext as it is stored at rest
+     */
+    public static String encode(byte[] ciphertext) {
+        return Base64Coder.encodeWebSafe(ciphertext);
+    }
+
+    /**
+     * @return the ciphertext within a value as it is stored at rest; values that are not Base64 at all are returned as their
+     * bytes, for the crypter to reject
+     */
+    public static byte[] decode(String stored) {
+        try {
+            return Base64Coder.decodeWebSafe(stored);
+        } catch (Exception e) {
+            return stored.getBytes(UTF8_CHARSET);
+        }
+    }
+
+    /**
+     * @param crypter crypter of the scope the value belongs to
+     * @param stored  the value as it is stored at rest
+     * @return the decrypted, serialized value
+     * @throws org.keyczar.exceptions.BadVersionException if the stored value was never encrypted in the first place
+     */
+    public static byte[] decrypt(Crypter crypter, String stored) throws KeyczarException {
+        return crypter.decrypt(decode(stored));
+    }
+
+    /**
+     * @param serialized the serialized value
+     * @param flags      {@link #FLAG_DEFLATE} and {@link #FLAG_BSON}, as they apply to the value
+     * @return the plaintext to encrypt; the serialized value itself if there are no flags
+     */
+    public static byte[] wrap(byte[] serialized, int flags) {
+        if (flags == 0) {
+            return serialized;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(serialized.length + 2);
+        out.write(ENVELOPE_MARKER);
+        out.write(flags);
+        if ((flags & FLAG_DEFLATE) != 0) {
+            final Deflater deflater = new Deflater();
+            try (DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater)) {
+                deflating.write(serialized);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                deflater.end();
+            }
+        } else {
+            out.write(serialized, 0, serialized.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the flags the decrypted plaintext was wrapped with
+     */
+    public static int getFlags(byte[] plaintext) {
+        return plaintext.length >= 2 && plaintext[0] == ENVELOPE_MARKER ? plaintext[1] : 0;
+    }
+
+    /**
+     * @return the serialized value within the decrypted plaintext
+     * @throws DataFormatException if the value is compressed, but corrupt
+     */
+    public static byte[] unwrap(byte[] plaintext) throws DataFormatException {
+        final int flags = getFlags(plaintext);
+        if (flags == 0) {
+            return plaintext;
+        } else if ((flags & FLAG_DEFLATE) == 0) {
+            return Arrays.copyOfRange(plaintext, 2, plaintext.length);
+        }
+
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(plaintext, 2, plaintext.length - 2);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(plaintext.length * 4);
+            final byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                final int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed value");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.relateiq;
+
+import com.relateiq.annotations.KeyczarReaderFactory;
+import com.relateiq.cache.SegmentedCache;
+import com.relateiq.event.EncryptionEvents;
+import com.relateiq.event.KeyEvent;
+import com.relateiq.keystore.DerivedKeyczarReaderFactory;
+import com.relateiq.keystore.ShreddedScopeException;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.Keyczar;
+import org.keyczar.Signer;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.exceptions.KeyczarException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by jontg on 3/25/14.
+ */
+@Singleton
+public class CrypterFactory {
+    private static final Logger log = LoggerFactory.getLogger(CrypterFactory.class);
+    private final KeyczarReaderFactory readerFactory;
+    private final SegmentedCache<ScopeKey, Keyczar> crypters;
+    private final DerivedKeyczarReaderFactory derivedReaderFactory;
+    private final KeyVersionUsage versionUsage = new KeyVersionUsage();
+    /**
+     * Bumped whenever cached crypters are dropped, so that loads that raced with it are not cached
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @Inject
+    public CrypterFactory(KeyczarReaderFactory readerFactory) {
+        this(readerFactory, null);
+    }
+
+    /**
+     * @param crypters cache of crypters and signers by scope, or null to read the key ring of every one afresh
+     */
+    public CrypterFactory(KeyczarReaderFactory readerFactory, SegmentedCache<ScopeKey, Keyczar> crypters) {
+        this(readerFactory, crypters, null);
+    }
+
+    /**
+     * @param readerFactory        reads the stored key rings
+     * @param crypters             cache of crypters and signers by scope, or null to read the key ring of every one afresh
+     * @param derivedReaderFactory if not null, crypters encrypt with {@link KeyMode#DERIVED derived} keys, and only read the
+     *                             stored key ring of a scope to decrypt values that were encrypted with it.  Signers (and so
+     *                             blind indexes) keep using stored keys, so that existing blind indexes stay valid.
+     */
+    public CrypterFactory(KeyczarReaderFactory readerFactory, SegmentedCache<ScopeKey, Keyczar> crypters,
+                          DerivedKeyczarReaderFactory derivedReaderFactory) {
+        this.readerFactory = readerFactory;
+        this.crypters = crypters;
+        this.derivedReaderFactory = derivedReaderFactory;
+    }
+
+    public Crypter create(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+        final boolean recording = EncryptionEvents.isEnabled();
+        final long start = recording ? System.nanoTime() : 0;
+        final ScopeKey key = crypters == null ? null : new ScopeKey(scope, purpose, type, size);
+        Crypter crypter = getCached(key, Crypter.class);
+        final boolean cached = crypter != null;
+        if (crypter == null) {
+            final long generation = invalidations.get();
+            crypter = load(scope, purpose, type, size);
+            if (crypter != null && key != null) {
+                cache(key, crypter, generation);
+            }
+        }
+
+        if (recording) {
+            EncryptionEvents.keysResolved("CrypterFactory.create", scope,
+                    cached ? KeyEvent.Outcome.CACHED : crypter != null ? KeyEvent.Outcome.LOADED : KeyEvent.Outcome.FAILED, start);
+        }
+        return crypter;
+    }
+
+    /**
+     * @return the cached crypter of the scope, or null if it is not cached (or there is no cache)
+     */
+    public Crypter getIfPresent(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+        return crypters == null ? null : getCached(new ScopeKey(scope, purpose, type, size), Crypter.class);
+    }
+
+    /**
+     * @param generation {@link #invalidations} from before the crypter or signer was loaded; if anything was invalidated since,
+     *                   the load may have read a key ring from before a shred, and the crypter or signer is not kept
+     */
+    private void cache(ScopeKey key, Keyczar keyczar, long generation) {
+        crypters.put(key, keyczar);
+        // Checked after the put, so that an invalidation between the check and the put can not be missed
+        if (invalidations.get() != generation) {
+            crypters.invalidate(key);
+        }
+    }
+
+    private <T extends Keyczar> T getCached(ScopeKey key, Class<T> clazz) {
+        final Keyczar cached = key == null ? null : crypters.getIfPresent(key);
+        return clazz.isInstance(cached) ? clazz.cast(cached) : null;
+    }
+
+    /**
+     * Drops the cached crypter of a scope, e.g. after its key ring was rotated or deleted.
+     */
+    public void invalidate(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+        if (crypters != null) {
+            invalidations.incrementAndGet();
+            crypters.invalidate(new ScopeKey(scope, purpose, type, size));
+        }
+    }
+
+    /**
+     * Drops the cached crypters of many scopes, whatever their key parameters, along with the signers of their
+     * {@link BlindIndex blind indexes}, e.g. once they were shredded.
+     */
+    public void invalidateScopes(Collection<String> scopes) {
+        if (crypters != null) {
+            final Set<String> invalid = new HashSet<>(scopes);
+            for (String scope : scopes) {
+                invalid.add(scope + BlindIndex.KEY_SCOPE_SUFFIX);
+            }
+            invalidations.incrementAndGet();
+            crypters.invalidateScopes(invalid);
+        }
+    }
+
+    private Crypter load(final String scope, final KeyPurpose purpose, final DefaultKeyType type, final int size) {
+        if (derivedReaderFactory != null) {
+            try {
+                return new DerivedCrypter(scope, derivedReaderFactory.create(scope, purpose, type, size),
+                        () -> loadStored(scope, purpose, type, size));
+            } catch (KeyczarException e) {
+                log.error("Critical failure deriving crypter for " + scope, e);
+                return null;
+            }
+        }
+        return loadStored(scope, purpose, type, size);
+    }
+
+    private Crypter loadStored(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+        try {
+            return VersionedCrypter.create(readerFactory.create(scope, purpose, type, size), versionUsage);
+        } catch (ShreddedScopeException e) {
+            log.info("Not loading the crypter of shredded scope {}", scope);
+            return null;
+        } catch (KeyczarException e) {
+            log.error("Critical failure loading crypter for " + scope, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return how often each version of the stored key rings was loaded and decrypted with
+     */
+    public KeyVersionUsage getKeyVersionUsage() {
+        return versionUsage;
+    }
+
+    /**
+     * Signers are cached along with the crypters, and are never derived.
+     */
+    public Signer createSigner(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+        final ScopeKey key = crypters == null ? null : new ScopeKey(scope, purpose, type, size);
+        final Signer cached = getCached(key, Signer.class);
+        if (cached != null) {
+            return cached;
+        }
+
+        final long generation = invalidations.get();
+        final Signer signer;
+        try {
+            signer = new Signer(readerFactory.create(scope, purpose, type, size));
+        } catch (ShreddedScopeException e) {
+            log.info("Not loading the signer of shredded scope {}", scope);
+            return null;
+        } catch (KeyczarException e) {
+            log.error("Critical failure loading signer for " + scope, e);
+            return null;
+        }
+
+        if (key != null) {
+            cache(key, signer, generation);
+        }
+        return signer;
+    }
+}
@@ -0,0 +1,150 @@
+package com.relateiq;
+
+import com.relateiq.keystore.KeyStore;
+import org.keyczar.exceptions.KeyczarException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Erases the data of many scopes at once by destroying their key rings, without touching the documents encrypted with them.
+ * <p/>
+ * Scopes are {@link KeyStore#shredAll shredded} in batches, each along with the key ring of its {@link BlindIndex blind
+ * indexes}, so that nothing can be looked up in a shredded scope either.  After each batch, the crypters this node cached for them are
+ * dropped and every {@link ShredListener} is told, so that nothing decrypts them here anymore; other nodes find out through a
+ * {@link ShredWatcher}.
+ */
+public class CryptoShredder {
+    private static final Logger log = LoggerFactory.getLogger(CryptoShredder.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Told after every batch.
+     */
+    public interface Progress {
+        public void shredded(long done, long total);
+    }
+
+    private final KeyStore keyStore;
+    private final CrypterFactory crypterFactory;
+    private final int batchSize;
+    private final List<ShredListener> listeners;
+
+    private CryptoShredder(KeyStore keyStore, CrypterFactory crypterFactory, int batchSize, List<ShredListener> listeners) {
+        this.keyStore = keyStore;
+        this.crypterFactory = crypterFactory;
+        this.batchSize = batchSize;
+        this.listeners = listeners;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public long shred(Collection<String> scopes) throws KeyczarException {
+        return shred(scopes, null);
+    }
+
+    /**
+     * Stops at the first batch that fails; the batches before it stay shredded, and shredding the same scopes again is harmless.
+     *
+     * @param progress told after every batch, or null
+     * @return the number of scopes shredded
+     */
+    public long shred(Collection<String> scopes, Progress progress) throws KeyczarException {
+        final long total = scopes.size();
+        long done = 0;
+
+        final List<String> batch = new ArrayList<>(Math.min(scopes.size(), batchSize));
+        for (String scope : scopes) {
+            batch.add(scope);
+            if (batch.size() == batchSize) {
+                done += shredBatch(batch);
+                report(progress, done, total);
+            }
+        }
+        if (!batch.isEmpty()) {
+            done += shredBatch(batch);
+            report(progress, done, total);
+        }
+
+        log.info("Shredded the key rings of {} scopes", done);
+        return done;
+    }
+
+    private int shredBatch(List<String> batch) throws KeyczarException {
+        final List<String> scopes = Collections.unmodifiableList(new ArrayList<>(batch));
+        batch.clear();
+
+        final List<String> rings = new ArrayList<>(scopes.size() * 2);
+        for (String scope : scopes) {
+            rings.add(scope);
+            rings.add(scope + BlindIndex.KEY_SCOPE_SUFFIX);
+        }
+        keyStore.shredAll(rings);
+        if (crypterFactory != null) {
+            crypterFactory.invalidateScopes(scopes);
+        }
+        for (ShredListener listener : listeners) {
+            listener.shredded(scopes);
+        }
+        return scopes.size();
+    }
+
+    private static void report(Progress progress, long done, long total) {
+        if (progress != null) {
+            progress.shredded(done, total);
+        }
+    }
+
+    public static final class Builder {
+        private KeyStore keyStore;
+        private CrypterFactory crypterFactory;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private final List<ShredListener> listeners = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        public Builder setKeyStore(KeyStore keyStore) {
+            this.keyStore = keyStore;
+            return this;
+        }
+
+        /**
+         * @param crypterFactory whose cached crypters of shredded scopes are dropped
+         */
+        public Builder setCrypterFactory(CrypterFactory crypterFactory) {
+            this.crypterFactory = crypterFactory;
+            return this;
+        }
+
+        /**
+         * @param batchSize the most scopes shredded at once
+         */
+        public Builder setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder addListener(ShredListener listener) {
+            listeners.add(listener);
+            return this;
+        }
+
+        public CryptoShredder build() {
+            if (keyStore == null) {
+                throw new IllegalStateException("No key store");
+            }
+            if (batchSize < 1) {
+                throw new IllegalStateException("The batch size must be positive");
+            }
+            return new CryptoShredder(keyStore, crypterFactory, batchSize, new ArrayList<>(listeners));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.relateiq;
+
+import org.keyczar.Crypter;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyczarReader;
+
+import java.util.Arrays;
+
+/**
+ * Encrypts with the derived keys of a scope, marking every ciphertext as {@link KeyMode#DERIVED}, and decrypts values of either
+ * mode.  The stored key ring of the scope is only read once a value encrypted with it actually turns up.
+ */
+final class DerivedCrypter extends Crypter {
+    private static final byte KEYCZAR_FORMAT_VERSION = 0;
+
+    interface StoredCrypterLoader {
+        /**
+         * @return the crypter of the stored key ring, or null if it could not be loaded
+         */
+        Crypter load();
+    }
+
+    private final String scope;
+    private final StoredCrypterLoader storedLoader;
+    private volatile Crypter stored;
+
+    DerivedCrypter(String scope, KeyczarReader derived, StoredCrypterLoader storedLoader) throws KeyczarException {
+        super(derived);
+        this.scope = scope;
+        this.storedLoader = storedLoader;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext) throws KeyczarException {
+        final byte[] ciphertext = super.encrypt(plaintext);
+        final byte[] marked = new byte[ciphertext.length + 1];
+        marked[0] = KeyMode.DERIVED_MARKER;
+        System.arraycopy(ciphertext, 0, marked, 1, ciphertext.length);
+        return marked;
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext) throws KeyczarException {
+        if (KeyMode.of(ciphertext) == KeyMode.DERIVED) {
+            return super.decrypt(Arrays.copyOfRange(ciphertext, 1, ciphertext.length));
+        } else if (ciphertext.length == 0 || ciphertext[0] != KEYCZAR_FORMAT_VERSION) {
+            // Not a ciphertext at all (a value written before it was encrypted); rejected without touching the stored keys
+            return super.decrypt(ciphertext);
+        }
+        return getStored().decrypt(ciphertext);
+    }
+
+    private Crypter getStored() throws KeyczarException {
+        Crypter crypter = stored;
+        if (crypter == null) {
+            synchronized (this) {
+                crypter = stored;
+                if (crypter == null) {
+                    crypter = storedLoader.load();
+                    if (crypter == null) {
+                        throw new KeyczarException("Unable to load the stored keys of " + scope);
+                    }
+                    stored = crypter;
+                }
+            }
+        }
+        return crypter;
+    }
+}
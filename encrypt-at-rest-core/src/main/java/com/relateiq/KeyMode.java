@@ -0,0 +1,25 @@
+package com.relateiq;
+
+/**
+ * Where the keys of a scope come from.  Keyczar ciphertexts start with a zero format byte, so values encrypted with derived
+ * keys are told apart by a marker byte in front of it; values without one were encrypted with stored keys.
+ */
+public enum KeyMode {
+    /**
+     * A key ring persisted per scope, read through a {@link com.relateiq.annotations.KeyczarReaderFactory}
+     */
+    STORED,
+    /**
+     * Keys derived from a master key and the scope by {@link com.relateiq.keystore.DerivedKeyczarReaderFactory}
+     */
+    DERIVED;
+
+    public static final byte DERIVED_MARKER = 1;
+
+    /**
+     * @return the mode of the keys the ciphertext was encrypted with
+     */
+    public static KeyMode of(byte[] ciphertext) {
+        return ciphertext.length > 0 && ciphertext[0] == DERIVED_MARKER ? DERIVED : STORED;
+    }
+}
@@ -0,0 +1,60 @@
+package com.relateiq;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How often each key version was loaded and used to decrypt, across every scope of a {@link CrypterFactory}.  Versions are
+ * counted by number, so version 1 stands for the first version of every ring: once its decrypt count stops growing, nothing
+ * encrypted with it is read anymore, and it can be retired after re-encrypting whatever is left.
+ */
+public class KeyVersionUsage {
+    private final ConcurrentMap<Integer, AtomicLong> loads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, AtomicLong> decrypts = new ConcurrentHashMap<>();
+
+    /* package private */void recordLoad(int version) {
+        increment(loads, version);
+    }
+
+    /* package private */void recordDecrypt(int version) {
+        increment(decrypts, version);
+    }
+
+    /**
+     * @return the number of times each version was loaded into a crypter, by version number
+     */
+    public SortedMap<Integer, Long> getLoadCounts() {
+        return snapshot(loads);
+    }
+
+    /**
+     * @return the number of values each version decrypted, by version number
+     */
+    public SortedMap<Integer, Long> getDecryptCounts() {
+        return snapshot(decrypts);
+    }
+
+    private static void increment(ConcurrentMap<Integer, AtomicLong> counters, int version) {
+        AtomicLong counter = counters.get(version);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(version, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private static SortedMap<Integer, Long> snapshot(ConcurrentMap<Integer, AtomicLong> counters) {
+        final SortedMap<Integer, Long> counts = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> counter : counters.entrySet()) {
+            counts.put(counter.getKey(), counter.getValue().get());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,61 @@
+package com.relateiq;
+
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+
+import java.util.Objects;
+
+/**
+ * Everything that identifies a key ring: its scope and the parameters it is (or would be) created with.
+ */
+public final class ScopeKey {
+    private final String scope;
+    private final KeyPurpose purpose;
+    private final DefaultKeyType type;
+    private final int size;
+
+    public ScopeKey(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+        this.scope = scope;
+        this.purpose = purpose;
+        this.type = type;
+        this.size = size;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public KeyPurpose getPurpose() {
+        return purpose;
+    }
+
+    public DefaultKeyType getType() {
+        return type;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ScopeKey)) {
+            return false;
+        }
+        final ScopeKey other = (ScopeKey) o;
+        return size == other.size && scope.equals(other.scope) && purpose == other.purpose && type == other.type;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(scope, purpose, type, size);
+    }
+
+    @Override
+    public String toString() {
+        return scope + " (" + purpose + ", " + type + ", " + size + ")";
+    }
+}
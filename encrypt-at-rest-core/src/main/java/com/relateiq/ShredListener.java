@@ -0,0 +1,11 @@
+package com.relateiq;
+
+import java.util.Collection;
+
+/**
+ * Told about scopes whose key rings were shredded, so that it can drop whatever it cached for them: keys, or values decrypted
+ * with them.
+ */
+public interface ShredListener {
+    public void shredded(Collection<String> scopes);
+}
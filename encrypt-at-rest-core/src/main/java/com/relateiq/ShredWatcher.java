@@ -0,0 +1,79 @@
+package com.relateiq;
+
+import com.relateiq.keystore.KeyStore;
+import org.keyczar.exceptions.KeyczarException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls a {@link KeyStore} for scopes shredded by other nodes, and drops whatever this node cached for them, so that a scope
+ * shredded anywhere stops being decrypted everywhere within a poll interval.
+ * <p/>
+ * Each poll looks back a little further than the previous one, to allow for clock skew between the nodes; dropping the caches of
+ * a scope twice is harmless.
+ */
+public class ShredWatcher implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ShredWatcher.class);
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_SKEW_MILLIS = 5000;
+
+    private final KeyStore keyStore;
+    private final CrypterFactory crypterFactory;
+    private final List<ShredListener> listeners;
+    private final long skewMillis;
+    private final ScheduledExecutorService executor;
+    private long lastPoll;
+
+    /**
+     * @param listeners told about the scopes shredded since the previous poll, along with the crypter factory
+     */
+    public ShredWatcher(KeyStore keyStore, CrypterFactory crypterFactory, Collection<ShredListener> listeners) {
+        this(keyStore, crypterFactory, listeners, DEFAULT_INTERVAL_MILLIS, DEFAULT_SKEW_MILLIS);
+    }
+
+    public ShredWatcher(KeyStore keyStore, CrypterFactory crypterFactory, Collection<ShredListener> listeners, long intervalMillis,
+                        long skewMillis) {
+        this.keyStore = keyStore;
+        this.crypterFactory = crypterFactory;
+        this.listeners = new ArrayList<>(listeners);
+        this.skewMillis = skewMillis;
+        this.lastPoll = System.currentTimeMillis();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "shred-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::poll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /* package private */void poll() {
+        final long now = System.currentTimeMillis();
+        try {
+            final Collection<String> scopes = keyStore.getShreddedSince(lastPoll - skewMillis);
+            if (!scopes.isEmpty()) {
+                crypterFactory.invalidateScopes(scopes);
+                for (ShredListener listener : listeners) {
+                    listener.shredded(scopes);
+                }
+            }
+            lastPoll = now;
+        } catch (KeyczarException | RuntimeException e) {
+            // The next poll looks back from the last successful one
+            log.error("Failed to poll for shredded scopes", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
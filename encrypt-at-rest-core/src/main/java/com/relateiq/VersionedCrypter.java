@@ -0,0 +1,191 @@
+package com.relateiq;
+
+import org.keyczar.Crypter;
+import org.keyczar.KeyMetadata;
+import org.keyczar.KeyVersion;
+import org.keyczar.Keyczar;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyczarReader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads the key versions of a ring as ciphertexts need them, instead of all at once as Keyczar does: only the primary version is
+ * loaded up front, so building the crypter of a scope costs the same however many versions its ring has collected.
+ * <p/>
+ * A ciphertext names its key by a hash in its header.  Values encrypted with an older version load the versions that are not
+ * loaded yet one at a time, newest first, until one of them has that hash; every loaded version is kept by its hash, so each
+ * version of a ring is loaded at most once.
+ */
+final class VersionedCrypter extends Crypter {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final KeyczarReader reader;
+    private final KeyMetadata metadata;
+    private final int primaryVersion;
+    private final KeyVersionUsage usage;
+    private volatile Integer primaryHash;
+
+    /**
+     * Key hash to the older version it belongs to, and its crypter
+     */
+    private final Map<Integer, LoadedVersion> older = new ConcurrentHashMap<>();
+    /**
+     * Older versions not loaded yet, newest first; guarded by this
+     */
+    private final Deque<Integer> unloaded = new ArrayDeque<>();
+
+    private VersionedCrypter(KeyczarReader reader, KeyMetadata metadata, int primaryVersion, KeyVersionUsage usage)
+            throws KeyczarException {
+        super(new VersionReader(reader, metadata, primaryVersion));
+        this.reader = reader;
+        this.metadata = metadata;
+        this.primaryVersion = primaryVersion;
+        this.usage = usage;
+
+        final List<Integer> versions = new ArrayList<>();
+        for (KeyVersion version : metadata.getVersions()) {
+            if (version.getVersionNumber() != primaryVersion) {
+                versions.add(version.getVersionNumber());
+            }
+        }
+        Collections.sort(versions, Collections.reverseOrder());
+        unloaded.addAll(versions);
+        usage.recordLoad(primaryVersion);
+    }
+
+    /**
+     * @return a crypter that loads versions on demand, or a plain one if the ring has no primary version to start from
+     */
+    static Crypter create(KeyczarReader reader, KeyVersionUsage usage) throws KeyczarException {
+        final KeyMetadata metadata = KeyMetadata.read(reader.getMetadata());
+        for (KeyVersion version : metadata.getVersions()) {
+            if (version.getStatus() == KeyStatus.PRIMARY) {
+                return new VersionedCrypter(reader, metadata, version.getVersionNumber(), usage);
+            }
+        }
+        return new Crypter(reader);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext) throws KeyczarException {
+        if (ciphertext.length < Keyczar.HEADER_SIZE || ciphertext[0] != Keyczar.FORMAT_VERSION) {
+            // Not a Keyczar ciphertext; rejected as usual
+            return super.decrypt(ciphertext);
+        }
+
+        final int hash = ByteBuffer.wrap(ciphertext, 1, Keyczar.KEY_HASH_SIZE).getInt();
+        if (hash == getPrimaryHash()) {
+            usage.recordDecrypt(primaryVersion);
+            return super.decrypt(ciphertext);
+        }
+
+        LoadedVersion version = older.get(hash);
+        if (version == null) {
+            version = loadUntil(hash);
+            if (version == null) {
+                // No version of the ring has the hash; fails as usual
+                return super.decrypt(ciphertext);
+            }
+        }
+
+        usage.recordDecrypt(version.number);
+        return version.crypter.decrypt(ciphertext);
+    }
+
+    private int getPrimaryHash() throws KeyczarException {
+        Integer hash = primaryHash;
+        if (hash == null) {
+            hash = hashOf(super.encrypt(EMPTY));
+            primaryHash = hash;
+        }
+        return hash;
+    }
+
+    private synchronized LoadedVersion loadUntil(int hash) throws KeyczarException {
+        LoadedVersion found = older.get(hash);
+        while (found == null && !unloaded.isEmpty()) {
+            final int number = unloaded.peekFirst();
+            final Crypter crypter = new Crypter(new VersionReader(reader, metadata, number));
+            unloaded.removeFirst();
+            usage.recordLoad(number);
+
+            // The version is presented as the primary of a ring of its own, so that it can name its own hash
+            final LoadedVersion loaded = new LoadedVersion(number, crypter);
+            final int loadedHash = hashOf(crypter.encrypt(EMPTY));
+            older.put(loadedHash, loaded);
+            if (loadedHash == hash) {
+                found = loaded;
+            }
+        }
+        return found;
+    }
+
+    private static int hashOf(byte[] ciphertext) {
+        return ByteBuffer.wrap(ciphertext, 1, Keyczar.KEY_HASH_SIZE).getInt();
+    }
+
+    /**
+     * @return the versions loaded so far
+     */
+    /* package private */synchronized List<Integer> getLoadedVersions() {
+        final List<Integer> loaded = new ArrayList<>();
+        loaded.add(primaryVersion);
+        for (LoadedVersion version : older.values()) {
+            loaded.add(version.number);
+        }
+        Collections.sort(loaded);
+        return loaded;
+    }
+
+    private static final class LoadedVersion {
+        private final int number;
+        private final Crypter crypter;
+
+        LoadedVersion(int number, Crypter crypter) {
+            this.number = number;
+            this.crypter = crypter;
+        }
+    }
+
+    /**
+     * Presents a single version of a ring as the primary version of a ring of its own.
+     */
+    private static final class VersionReader implements KeyczarReader {
+        private final KeyczarReader reader;
+        private final String metadata;
+        private final int version;
+
+        VersionReader(KeyczarReader reader, KeyMetadata ring, int version) {
+            this.reader = reader;
+            this.version = version;
+
+            final KeyMetadata metadata = new KeyMetadata(ring.getName(), ring.getPurpose(), ring.getType());
+            metadata.addVersion(new KeyVersion(version, KeyStatus.PRIMARY, false));
+            this.metadata = metadata.toString();
+        }
+
+        @Override
+        public String getKey(int version) throws KeyczarException {
+            return reader.getKey(version);
+        }
+
+        @Override
+        public String getKey() throws KeyczarException {
+            return reader.getKey(version);
+        }
+
+        @Override
+        public String getMetadata() {
+            return metadata;
+        }
+    }
+}
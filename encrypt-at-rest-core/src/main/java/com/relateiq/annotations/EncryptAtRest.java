@@ -0,0 +1,77 @@
+package com.relateiq.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.FIELD })
+public @interface EncryptAtRest {
+	/**
+	 * Maintain a keyed-HMAC "blind index" of the plaintext next to the encrypted value, so that the field can be queried for
+	 * equality; see {@link com.relateiq.BlindIndex}.  The index leaks which documents share a value within a scope.
+	 */
+	public boolean blindIndex() default false;
+
+	/**
+	 * For Collection, array and Map fields: encrypt every element (or Map value) on its own instead of the whole field as one
+	 * opaque value, so the structure of the container stays visible to mongo.
+	 */
+	public boolean elements() default false;
+
+	/**
+	 * How values other than Strings are serialized before they are encrypted.  Strings are always encrypted as UTF-8.
+	 */
+	public Codec codec() default Codec.JSON;
+
+	/**
+	 * Compress the serialized value before it is encrypted; values too small to benefit are left as they are.
+	 */
+	public Compression compression() default Compression.NONE;
+
+	/**
+	 * How the ciphertext is stored in mongo.
+	 */
+	public Format format() default Format.STRING;
+
+	/**
+	 * Leave the value encrypted when the document is loaded, and decrypt it only on request through
+	 * {@code EncryptAtRestInterceptor#decryptLazy}.  Only String fields stored as {@link Format#STRING} can be lazy.
+	 */
+	public boolean lazy() default false;
+
+	/**
+	 * Keep the decrypted value in the interceptor's (bounded, in-memory) plaintext cache, so that documents read over and
+	 * over again are only decrypted once.  Only worth it for values that are read far more often than they are written, and
+	 * that may sit on the heap in plaintext.
+	 */
+	public boolean cacheable() default false;
+
+	public enum Codec {
+		/**
+		 * JSON text, as produced by {@code com.mongodb.util.JSON}
+		 */
+		JSON,
+		/**
+		 * BSON, which is more compact than JSON and keeps types such as dates and binary data intact
+		 */
+		BSON
+	}
+
+	public enum Compression {
+		NONE,
+		DEFLATE
+	}
+
+	public enum Format {
+		/**
+		 * Web-safe Base64 text
+		 */
+		STRING,
+		/**
+		 * BSON binary data, a third smaller than Base64 but not readable as text
+		 */
+		BINARY
+	}
+}
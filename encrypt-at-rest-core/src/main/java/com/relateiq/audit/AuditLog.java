@@ -0,0 +1,370 @@
+package com.relateiq.audit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records which scopes were encrypted and decrypted, when and by which service, without holding up the operations themselves:
+ * callers only claim a slot in a lock-free ring buffer, and a background thread drains it, aggregates the records of each scope
+ * per time window and hands them to an {@link AuditSink} in batches.
+ * <p/>
+ * Under overload records are dropped rather than making callers wait: when the ring buffer is full, or when too many distinct
+ * scopes are already waiting for their window to close.  Drops are counted, so that gaps in the audit trail are visible.
+ */
+public class AuditLog implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(AuditLog.class);
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_WINDOW_MILLIS = 60000;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final int DEFAULT_MAX_PENDING = 100000;
+
+    private final AuditSink sink;
+    private final String service;
+    private final long windowMillis;
+    private final long flushIntervalNanos;
+    private final int maxPending;
+
+    /**
+     * The ring buffer, as a bounded multi-producer, single-consumer queue: the sequence of a slot tells whose turn it is,
+     * the producer claiming position {@code p} (when it equals {@code p}) or the consumer reading it (when it equals {@code p + 1})
+     */
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    /**
+     * Records drained from the ring buffer whose window is still open; only touched by the flusher
+     */
+    private final Map<Key, Aggregate> pending = new LinkedHashMap<>();
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    private AuditLog(AuditSink sink, String service, int capacity, long windowMillis, long flushIntervalMillis, int maxPending) {
+        this.sink = sink;
+        this.service = service;
+        this.windowMillis = windowMillis;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.maxPending = maxPending;
+
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.entries = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "audit-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Never blocks.
+     *
+     * @return false if the record was dropped
+     */
+    public boolean record(String scope, AuditRecord.Operation operation) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            final long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The flusher has not read this slot since the last lap: the buffer is full
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        entries.set(index, new Entry(scope, operation, System.currentTimeMillis()));
+        sequences.set(index, position + 1);
+        recorded.incrementAndGet();
+
+        // Wake the flusher early once half of the buffer has filled up since the last time
+        if ((position & (mask >> 1)) == 0) {
+            LockSupport.unpark(flusher);
+        }
+        return true;
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                drain();
+                flush(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                log.error("Failed to flush the audit log", e);
+            }
+            LockSupport.parkNanos(this, flushIntervalNanos);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                return;
+            }
+
+            final Entry entry = entries.get(index);
+            entries.set(index, null);
+            sequences.set(index, head + mask + 1);
+            head++;
+
+            final Key key = new Key(entry.scope, entry.operation, entry.millis - entry.millis % windowMillis);
+            final Aggregate aggregate = pending.get(key);
+            if (aggregate != null) {
+                aggregate.add(entry.millis);
+            } else if (pending.size() < maxPending) {
+                pending.put(key, new Aggregate(entry.millis));
+            } else {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Writes every window that has closed by {@code now}.
+     */
+    private void flush(long now) {
+        final List<AuditRecord> batch = new ArrayList<>();
+        final Iterator<Map.Entry<Key, Aggregate>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Key, Aggregate> next = it.next();
+            final Key key = next.getKey();
+            if (key.windowStart + windowMillis <= now) {
+                final Aggregate aggregate = next.getValue();
+                batch.add(new AuditRecord(key.scope, key.operation, service, key.windowStart, aggregate.count, aggregate.first,
+                        aggregate.last));
+                it.remove();
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            sink.write(batch);
+            written.addAndGet(batch.size());
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to write {} audit records", batch.size(), e);
+            failed.addAndGet(batch.size());
+        }
+    }
+
+    /**
+     * @return the number of operations accepted into the ring buffer
+     */
+    public long getRecordedCount() {
+        return recorded.get();
+    }
+
+    /**
+     * @return the number of operations dropped because the log was overloaded or closed
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of aggregated records written to the sink
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of aggregated records lost because the sink failed to write them
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Stops recording, writes everything still pending (open windows included) and closes the sink.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        drain();
+        flush(Long.MAX_VALUE);
+        sink.close();
+    }
+
+    private static final class Entry {
+        private final String scope;
+        private final AuditRecord.Operation operation;
+        private final long millis;
+
+        Entry(String scope, AuditRecord.Operation operation, long millis) {
+            this.scope = scope;
+            this.operation = operation;
+            this.millis = millis;
+        }
+    }
+
+    private static final class Key {
+        private final String scope;
+        private final AuditRecord.Operation operation;
+        private final long windowStart;
+
+        Key(String scope, AuditRecord.Operation operation, long windowStart) {
+            this.scope = scope;
+            this.operation = operation;
+            this.windowStart = windowStart;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return windowStart == other.windowStart && operation == other.operation && Objects.equals(scope, other.scope);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(scope, operation, windowStart);
+        }
+    }
+
+    private static final class Aggregate {
+        private long count = 1;
+        private final long first;
+        private long last;
+
+        Aggregate(long millis) {
+            this.first = millis;
+            this.last = millis;
+        }
+
+        void add(long millis) {
+            count++;
+            last = Math.max(last, millis);
+        }
+    }
+
+    public static final class Builder {
+        private AuditSink sink;
+        private String service;
+        private int capacity = DEFAULT_CAPACITY;
+        private long windowMillis = DEFAULT_WINDOW_MILLIS;
+        private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+        private int maxPending = DEFAULT_MAX_PENDING;
+
+        private Builder() {
+        }
+
+        public Builder setSink(AuditSink sink) {
+            this.sink = sink;
+            return this;
+        }
+
+        /**
+         * @param service the name of this service, as it appears in every record
+         */
+        public Builder setService(String service) {
+            this.service = service;
+            return this;
+        }
+
+        /**
+         * @param capacity the most operations waiting to be aggregated, rounded up to a power of two
+         */
+        public Builder setCapacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param windowMillis the operations on a scope within this long are written as a single record
+         */
+        public Builder setWindowMillis(long windowMillis) {
+            this.windowMillis = windowMillis;
+            return this;
+        }
+
+        public Builder setFlushIntervalMillis(long flushIntervalMillis) {
+            this.flushIntervalMillis = flushIntervalMillis;
+            return this;
+        }
+
+        /**
+         * @param maxPending the most records held in memory while their window is open
+         */
+        public Builder setMaxPending(int maxPending) {
+            this.maxPending = maxPending;
+            return this;
+        }
+
+        public AuditLog build() {
+            if (sink == null) {
+                throw new IllegalStateException("No audit sink");
+            }
+            if (capacity < 2 || windowMillis <= 0 || flushIntervalMillis <= 0 || maxPending <= 0) {
+                throw new IllegalStateException("The capacity, window, flush interval and pending limit must be positive");
+            }
+            final int roundedCapacity = Integer.highestOneBit(capacity - 1) << 1;
+            return new AuditLog(sink, service, roundedCapacity, windowMillis, flushIntervalMillis, maxPending);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.relateiq.audit;
+
+/**
+ * Every operation of one kind on one scope by one service within one time window of an {@link AuditLog}.
+ */
+public final class AuditRecord {
+    public enum Operation {
+        ENCRYPT, DECRYPT
+    }
+
+    private final String scope;
+    private final Operation operation;
+    private final String service;
+    private final long windowStart;
+    private final long count;
+    private final long firstMillis;
+    private final long lastMillis;
+
+    public AuditRecord(String scope, Operation operation, String service, long windowStart, long count, long firstMillis,
+                       long lastMillis) {
+        this.scope = scope;
+        this.operation = operation;
+        this.service = service;
+        this.windowStart = windowStart;
+        this.count = count;
+        this.firstMillis = firstMillis;
+        this.lastMillis = lastMillis;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * @return the start of the window, in milliseconds since the epoch
+     */
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getFirstMillis() {
+        return firstMillis;
+    }
+
+    public long getLastMillis() {
+        return lastMillis;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " " + scope + " by " + service + " x" + count + " [" + firstMillis + ", " + lastMillis + "]";
+    }
+}
@@ -0,0 +1,12 @@
+package com.relateiq.audit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where an {@link AuditLog} writes its records, in batches, from a single background thread.
+ */
+public interface AuditSink extends Closeable {
+    public void write(List<AuditRecord> records) throws IOException;
+}
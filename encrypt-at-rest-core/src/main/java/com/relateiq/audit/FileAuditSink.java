@@ -0,0 +1,66 @@
+package com.relateiq.audit;
+
+import com.relateiq.CipherEngine;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Appends records to a local file, one JSON object per line, and flushes after every batch.
+ */
+public class FileAuditSink implements AuditSink {
+    private final Writer writer;
+
+    public FileAuditSink(String path) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), CipherEngine.UTF8_CHARSET));
+    }
+
+    @Override
+    public void write(List<AuditRecord> records) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        for (AuditRecord record : records) {
+            line.setLength(0);
+            line.append("{\"scope\":");
+            appendString(line, record.getScope());
+            line.append(",\"operation\":\"").append(record.getOperation()).append('"');
+            line.append(",\"service\":");
+            appendString(line, record.getService());
+            line.append(",\"windowStart\":").append(record.getWindowStart());
+            line.append(",\"count\":").append(record.getCount());
+            line.append(",\"first\":").append(record.getFirstMillis());
+            line.append(",\"last\":").append(record.getLastMillis());
+            line.append("}\n");
+            writer.write(line.toString());
+        }
+        writer.flush();
+    }
+
+    private static void appendString(StringBuilder line, String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
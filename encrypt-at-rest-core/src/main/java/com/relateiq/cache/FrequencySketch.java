@@ -0,0 +1,68 @@
+package com.relateiq.cache;
+
+/**
+ * Approximate, aging access counts: a count-min sketch of 4-bit counters whose counts are all halved once every
+ * {@code 10 * capacity} increments, so that keys which used to be popular fade away.
+ * <p/>
+ * Not thread-safe; {@link SegmentedCache} guards each sketch with the lock of its segment.
+ */
+final class FrequencySketch {
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb8e5fc4b, 0x2d4a0b6d, 0x5f356495};
+
+    private final byte[] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+        // The next power of two at or above the capacity
+        final int width = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1);
+        this.counters = new byte[width * SEEDS.length];
+        this.mask = width - 1;
+        this.sampleSize = Math.max(10, 10 * capacity);
+    }
+
+    void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            final int index = indexOf(hash, row);
+            if (counters[index] < MAX_COUNT) {
+                counters[index]++;
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < SEEDS.length; row++) {
+            frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = (byte) (counters[i] >>> 1);
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -0,0 +1,298 @@
+package com.relateiq.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A bounded cache split into independently sized and locked segments, each with a W-TinyLFU-style admission policy.
+ * <p/>
+ * Keys whose scope starts with a configured prefix go to that prefix's segment (the longest matching prefix wins), so a tenant
+ * or batch job with its own prefix can never take more than its quota. Everything else is spread over the striped default
+ * segments.
+ * <p/>
+ * Within a segment, new entries enter a small LRU window. Entries leaving the window only make it into the main LRU area if
+ * they have been used more often, per an aging frequency sketch, than the entry they would evict. A scan over many scopes
+ * that are each used once therefore churns the window but leaves the hot entries alone.
+ * <p/>
+ * Values are loaded outside of the segment locks by the caller, through {@link #getIfPresent} and {@link #put}.
+ */
+public class SegmentedCache<K, V> {
+    private final Function<K, String> scopeOf;
+    private final List<Segment> quotas;
+    private final Segment[] stripes;
+
+    private SegmentedCache(Builder<K> builder, Function<K, String> scopeOf) {
+        this.scopeOf = scopeOf;
+
+        final List<Segment> quotas = new ArrayList<>();
+        int reserved = 0;
+        for (Map.Entry<String, Integer> quota : builder.quotas.entrySet()) {
+            quotas.add(new Segment(quota.getKey(), quota.getValue()));
+            reserved += quota.getValue();
+        }
+        // Longest prefixes first, so that the most specific quota applies
+        quotas.sort((a, b) -> b.prefix.length() - a.prefix.length());
+        this.quotas = Collections.unmodifiableList(quotas);
+
+        final int remaining = Math.max(builder.concurrency, builder.capacity - reserved);
+        this.stripes = new SegmentedCache.Segment[builder.concurrency];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Segment("", remaining / stripes.length + (i < remaining % stripes.length ? 1 : 0));
+        }
+    }
+
+    public static <K> Builder<K> newBuilder() {
+        return new Builder<>();
+    }
+
+    /**
+     * @return the cached value, or null; counts as a use of the key either way
+     */
+    public V getIfPresent(K key) {
+        return segmentOf(key).get(key);
+    }
+
+    /**
+     * Offers the value to the cache; it may be rejected right away by the admission policy.
+     */
+    public void put(K key, V value) {
+        segmentOf(key).put(key, value);
+    }
+
+    public void invalidate(K key) {
+        segmentOf(key).remove(key);
+    }
+
+    /**
+     * Drops the entries of every key whose scope is one of the given scopes, in a single pass over the cache.
+     */
+    public void invalidateScopes(Collection<String> scopes) {
+        final Set<String> invalid = scopes instanceof Set ? (Set<String>) scopes : new HashSet<>(scopes);
+        for (Segment segment : getSegments()) {
+            segment.removeScopes(invalid);
+        }
+    }
+
+    public void invalidateAll() {
+        for (Segment segment : quotas) {
+            segment.clear();
+        }
+        for (Segment segment : stripes) {
+            segment.clear();
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : getSegments()) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        long hits = 0;
+        for (Segment segment : getSegments()) {
+            hits += segment.hits.get();
+        }
+        return hits;
+    }
+
+    public long getMissCount() {
+        long misses = 0;
+        for (Segment segment : getSegments()) {
+            misses += segment.misses.get();
+        }
+        return misses;
+    }
+
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (Segment segment : getSegments()) {
+            evictions += segment.evictions.get();
+        }
+        return evictions;
+    }
+
+    /**
+     * @return hit rate of the segment serving the given scope prefix, or of the default segments for ""
+     */
+    public double getHitRate(String prefix) {
+        long hits = 0;
+        long requests = 0;
+        for (Segment segment : getSegments()) {
+            if (segment.prefix.equals(prefix)) {
+                hits += segment.hits.get();
+                requests += segment.hits.get() + segment.misses.get();
+            }
+        }
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("SegmentedCache{");
+        for (Segment segment : quotas) {
+            sb.append(segment).append(", ");
+        }
+        return sb.append("default: size=").append(size()).append(" hitRate=").append(String.format("%.3f", getHitRate(""))).append("}").toString();
+    }
+
+    private Segment segmentOf(K key) {
+        if (!quotas.isEmpty()) {
+            final String scope = scopeOf.apply(key);
+            for (Segment segment : quotas) {
+                if (scope.startsWith(segment.prefix)) {
+                    return segment;
+                }
+            }
+        }
+        return stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    private List<Segment> getSegments() {
+        final List<Segment> segments = new ArrayList<>(quotas);
+        Collections.addAll(segments, stripes);
+        return segments;
+    }
+
+    private final class Segment {
+        final String prefix;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+
+        private final int windowCapacity;
+        private final int mainCapacity;
+        private final FrequencySketch sketch;
+        // Both access ordered, so that iteration starts at the least recently used entry
+        private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<K, V> main = new LinkedHashMap<>(16, 0.75f, true);
+
+        Segment(String prefix, int capacity) {
+            this.prefix = prefix;
+            this.windowCapacity = Math.max(1, capacity / 100);
+            this.mainCapacity = Math.max(0, capacity - windowCapacity);
+            this.sketch = new FrequencySketch(capacity);
+        }
+
+        synchronized V get(K key) {
+            sketch.increment(key);
+            V value = window.get(key);
+            if (value == null) {
+                value = main.get(key);
+            }
+
+            (value == null ? misses : hits).incrementAndGet();
+            return value;
+        }
+
+        synchronized void put(K key, V value) {
+            if (main.containsKey(key)) {
+                main.put(key, value);
+                return;
+            }
+
+            window.put(key, value);
+            if (window.size() <= windowCapacity) {
+                return;
+            }
+
+            final Iterator<Map.Entry<K, V>> eldest = window.entrySet().iterator();
+            final Map.Entry<K, V> candidate = eldest.next();
+            eldest.remove();
+
+            if (main.size() < mainCapacity) {
+                main.put(candidate.getKey(), candidate.getValue());
+                return;
+            }
+
+            if (mainCapacity > 0) {
+                final Iterator<Map.Entry<K, V>> victims = main.entrySet().iterator();
+                final Map.Entry<K, V> victim = victims.next();
+                if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+                    victims.remove();
+                    main.put(candidate.getKey(), candidate.getValue());
+                }
+            }
+            evictions.incrementAndGet();
+        }
+
+        synchronized void remove(K key) {
+            if (window.remove(key) == null) {
+                main.remove(key);
+            }
+        }
+
+        synchronized void removeScopes(Set<String> scopes) {
+            window.keySet().removeIf(key -> scopes.contains(scopeOf.apply(key)));
+            main.keySet().removeIf(key -> scopes.contains(scopeOf.apply(key)));
+        }
+
+        synchronized void clear() {
+            window.clear();
+            main.clear();
+        }
+
+        synchronized int size() {
+            return window.size() + main.size();
+        }
+
+        @Override
+        public String toString() {
+            return prefix + ": size=" + size() + " hitRate=" + String.format("%.3f", getHitRate(prefix));
+        }
+    }
+
+    public static final class Builder<K> {
+        private int capacity = 10000;
+        private int concurrency = 16;
+        private final Map<String, Integer> quotas = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * @param capacity total number of entries, including every quota
+         */
+        public Builder<K> setCapacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param concurrency number of independently locked default segments
+         */
+        public Builder<K> setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * Gives scopes starting with the prefix a segment of their own, of the given number of entries.
+         */
+        public Builder<K> addQuota(String prefix, int capacity) {
+            if (prefix.isEmpty()) {
+                throw new IllegalArgumentException("Quotas need a non-empty prefix");
+            }
+            quotas.put(prefix, capacity);
+            return this;
+        }
+
+        public <V> SegmentedCache<K, V> build(Function<K, String> scopeOf) {
+            if (capacity < 1 || concurrency < 1) {
+                throw new IllegalArgumentException("Capacity and concurrency must be positive");
+            }
+            return new SegmentedCache<>(this, scopeOf);
+        }
+    }
+}
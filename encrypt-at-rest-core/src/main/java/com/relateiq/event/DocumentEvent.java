@@ -0,0 +1,89 @@
+package com.relateiq.event;
+
+/**
+ * The cost of encrypting or decrypting a whole document, split into where the time went.
+ */
+public final class DocumentEvent {
+    public enum Operation {
+        LOAD, SAVE
+    }
+
+    private final Operation operation;
+    private final Class<?> entityClass;
+    private final int scopeHash;
+    private final int fieldCount;
+    private final long payloadBytes;
+    private final long keyResolutionNanos;
+    private final long serializationNanos;
+    private final long cryptoNanos;
+    private final long encodingNanos;
+    private final long durationNanos;
+
+    public DocumentEvent(Operation operation, Class<?> entityClass, int scopeHash, int fieldCount, long payloadBytes,
+                         long keyResolutionNanos, long serializationNanos, long cryptoNanos, long encodingNanos,
+                         long durationNanos) {
+        this.operation = operation;
+        this.entityClass = entityClass;
+        this.scopeHash = scopeHash;
+        this.fieldCount = fieldCount;
+        this.payloadBytes = payloadBytes;
+        this.keyResolutionNanos = keyResolutionNanos;
+        this.serializationNanos = serializationNanos;
+        this.cryptoNanos = cryptoNanos;
+        this.encodingNanos = encodingNanos;
+        this.durationNanos = durationNanos;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * @return {@link EncryptionEvents#hashScope the hash} of the scope of the document
+     */
+    public int getScopeHash() {
+        return scopeHash;
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * @return the time spent resolving the scope and loading its crypter
+     */
+    public long getKeyResolutionNanos() {
+        return keyResolutionNanos;
+    }
+
+    public long getSerializationNanos() {
+        return serializationNanos;
+    }
+
+    public long getCryptoNanos() {
+        return cryptoNanos;
+    }
+
+    public long getEncodingNanos() {
+        return encodingNanos;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " " + entityClass.getSimpleName() + " " + Integer.toHexString(scopeHash) + " " + fieldCount + " fields "
+                + payloadBytes + "B " + durationNanos + "ns (keys " + keyResolutionNanos + "ns, serialization " + serializationNanos
+                + "ns, crypto " + cryptoNanos + "ns, encoding " + encodingNanos + "ns)";
+    }
+}
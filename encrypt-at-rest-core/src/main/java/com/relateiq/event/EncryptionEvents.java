@@ -0,0 +1,99 @@
+package com.relateiq.event;
+
+import com.relateiq.CipherEngine;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * The process-wide {@link EncryptionListener}, in the spirit of a flight recorder: nothing is timed or allocated while no
+ * listener is registered, so instrumentation can stay compiled in and be switched on in production when latency needs to be
+ * attributed to particular scopes and collections.
+ */
+public final class EncryptionEvents {
+    private static final String SCOPE_HASH_ALGORITHM = "HmacSHA256";
+    private static final int SCOPE_HASH_KEY_SIZE = 32;
+
+    private static volatile EncryptionListener listener;
+    private static volatile SecretKeySpec scopeHashKey = newScopeHashKey();
+    private static final ThreadLocal<Mac> scopeMacs = new ThreadLocal<>();
+
+    private EncryptionEvents() {
+    }
+
+    /**
+     * @param listener the listener to receive every event from now on, or null to stop recording
+     */
+    public static void setListener(EncryptionListener listener) {
+        EncryptionEvents.listener = listener;
+    }
+
+    public static boolean isEnabled() {
+        return listener != null;
+    }
+
+    /**
+     * @param key secret to key the scope hashes with, so that the recordings of all processes sharing it can be correlated; by
+     *            default every process picks a random one of its own
+     */
+    public static void setScopeHashKey(byte[] key) {
+        scopeHashKey = new SecretKeySpec(key.clone(), SCOPE_HASH_ALGORITHM);
+    }
+
+    /**
+     * Scopes are identified in events by a hash only, so that recordings can be shared without the scopes themselves.  The hash
+     * is a truncated HMAC keyed with a {@link #setScopeHashKey secret}, so it can not be matched against a list of known scopes
+     * without that secret.
+     */
+    public static int hashScope(String scope) {
+        if (scope == null) {
+            return 0;
+        }
+
+        try {
+            Mac mac = scopeMacs.get();
+            if (mac == null) {
+                mac = Mac.getInstance(SCOPE_HASH_ALGORITHM);
+                scopeMacs.set(mac);
+            }
+            // Initialized on every call, so that a new key takes effect on every thread at once
+            mac.init(scopeHashKey);
+            return ByteBuffer.wrap(mac.doFinal(scope.getBytes(CipherEngine.UTF8_CHARSET))).getInt();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to hash scopes with " + SCOPE_HASH_ALGORITHM, e);
+        }
+    }
+
+    private static SecretKeySpec newScopeHashKey() {
+        final byte[] key = new byte[SCOPE_HASH_KEY_SIZE];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, SCOPE_HASH_ALGORITHM);
+    }
+
+    public static void documentProcessed(DocumentEvent event) {
+        final EncryptionListener current = listener;
+        if (current != null) {
+            current.documentProcessed(event);
+        }
+    }
+
+    public static void fieldProcessed(FieldEvent event) {
+        final EncryptionListener current = listener;
+        if (current != null) {
+            current.fieldProcessed(event);
+        }
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} when the lookup started
+     */
+    public static void keysResolved(String source, String scope, KeyEvent.Outcome outcome, long startNanos) {
+        final EncryptionListener current = listener;
+        if (current != null) {
+            current.keysResolved(new KeyEvent(source, hashScope(scope), outcome, System.nanoTime() - startNanos));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.relateiq.event;
+
+/**
+ * Receives the cost of every document, field and key lookup, once registered with {@link EncryptionEvents#setListener}.
+ * <p/>
+ * Listeners are called synchronously on the thread doing the work, so they should do no more than hand the event on, e.g. to a
+ * metrics registry or to a sampled log of slow documents.  On JDK 11 and later, the encrypt-at-rest-jfr module has one that
+ * hands them on to Java Flight Recorder.
+ */
+public interface EncryptionListener {
+    default void documentProcessed(DocumentEvent event) {
+    }
+
+    default void fieldProcessed(FieldEvent event) {
+    }
+
+    default void keysResolved(KeyEvent event) {
+    }
+}
@@ -0,0 +1,79 @@
+package com.relateiq.event;
+
+/**
+ * The cost of encrypting or decrypting a single field of a document.
+ */
+public final class FieldEvent {
+    private final DocumentEvent.Operation operation;
+    private final Class<?> entityClass;
+    private final String field;
+    private final long payloadBytes;
+    private final long serializationNanos;
+    private final long cryptoNanos;
+    private final long encodingNanos;
+    private final long durationNanos;
+
+    public FieldEvent(DocumentEvent.Operation operation, Class<?> entityClass, String field, long payloadBytes,
+                      long serializationNanos, long cryptoNanos, long encodingNanos, long durationNanos) {
+        this.operation = operation;
+        this.entityClass = entityClass;
+        this.field = field;
+        this.payloadBytes = payloadBytes;
+        this.serializationNanos = serializationNanos;
+        this.cryptoNanos = cryptoNanos;
+        this.encodingNanos = encodingNanos;
+        this.durationNanos = durationNanos;
+    }
+
+    public DocumentEvent.Operation getOperation() {
+        return operation;
+    }
+
+    public Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * @return the name of the field in the database object
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return the size of the plaintext that was encrypted, i.e. of the serialized value after compression
+     */
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * @return the time spent converting the value to or from its serialized form, including compression
+     */
+    public long getSerializationNanos() {
+        return serializationNanos;
+    }
+
+    public long getCryptoNanos() {
+        return cryptoNanos;
+    }
+
+    /**
+     * @return the time spent converting the ciphertext to or from Base64
+     */
+    public long getEncodingNanos() {
+        return encodingNanos;
+    }
+
+    /**
+     * @return the time spent on the field altogether; element-wise fields are only timed as a whole
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " " + entityClass.getSimpleName() + "." + field + " " + payloadBytes + "B " + durationNanos + "ns";
+    }
+}
@@ -0,0 +1,58 @@
+package com.relateiq.event;
+
+/**
+ * A lookup of the keys of a scope.
+ */
+public final class KeyEvent {
+    public enum Outcome {
+        /**
+         * Served from memory
+         */
+        CACHED,
+        /**
+         * Read from the key store
+         */
+        LOADED,
+        /**
+         * Generated, since the scope had no keys yet
+         */
+        CREATED,
+        FAILED
+    }
+
+    private final String source;
+    private final int scopeHash;
+    private final Outcome outcome;
+    private final long durationNanos;
+
+    public KeyEvent(String source, int scopeHash, Outcome outcome, long durationNanos) {
+        this.source = source;
+        this.scopeHash = scopeHash;
+        this.outcome = outcome;
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * @return where the lookup happened, e.g. {@code CrypterFactory.create}
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public int getScopeHash() {
+        return scopeHash;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return source + " " + Integer.toHexString(scopeHash) + " " + outcome + " " + durationNanos + "ns";
+    }
+}
@@ -0,0 +1,117 @@
+package com.relateiq.keystore;
+
+import com.relateiq.CipherEngine;
+import com.relateiq.annotations.KeyczarReaderFactory;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.KeyMetadata;
+import org.keyczar.KeyVersion;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyczarReader;
+import org.keyczar.util.Base64Coder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Derives the key ring of every scope from {@link MasterKeys} with HKDF, instead of reading it from a store: resolving the keys
+ * of a scope costs a few HMACs, with no round trips and nothing persisted per scope.
+ * <p/>
+ * The ring of a scope holds one key version per master key version, with the same version numbers, so rotating the master key
+ * rotates every scope at once.  Only symmetric keys ({@link DefaultKeyType#AES} and {@link DefaultKeyType#HMAC_SHA1}) can be
+ * derived.
+ * <p/>
+ * Anyone holding a master key can derive the keys of every scope, so master keys must be guarded at least as well as a
+ * whole key store.  Crypto-shredding a single scope is not possible in this mode.
+ */
+public class DerivedKeyczarReaderFactory implements KeyczarReaderFactory {
+    private static final byte[] SALT = "com.relateiq.encrypt-at-rest".getBytes(CipherEngine.UTF8_CHARSET);
+    private static final int HMAC_KEY_SIZE = 256;
+
+    private final MasterKeys masterKeys;
+    /**
+     * Master key version to the pseudorandom key extracted from it, which every scope is expanded from
+     */
+    private final Map<Integer, byte[]> pseudorandomKeys = new HashMap<>();
+
+    public DerivedKeyczarReaderFactory(MasterKeys masterKeys) {
+        this.masterKeys = masterKeys;
+        for (int version : masterKeys.getVersions()) {
+            pseudorandomKeys.put(version, Hkdf.extract(SALT, masterKeys.getSecret(version)));
+        }
+    }
+
+    @Override
+    public KeyczarReader create(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+        return new DerivedKeyczarReader(scope, purpose, type, type.isAcceptableSize(size) ? size : type.defaultSize());
+    }
+
+    /* package private */String deriveKey(int version, String scope, KeyPurpose purpose, DefaultKeyType type, int size)
+            throws KeyczarException {
+        final byte[] pseudorandomKey = pseudorandomKeys.get(version);
+        if (pseudorandomKey == null) {
+            throw new KeyczarException("No master key version " + version);
+        }
+
+        // Everything that tells two rings apart goes into the info, so that no two rings share key material
+        final byte[] info = (purpose.name() + "/" + type.name() + "/" + size + "/" + scope).getBytes(CipherEngine.UTF8_CHARSET);
+        if (type == DefaultKeyType.AES) {
+            final byte[] material = Hkdf.expand(pseudorandomKey, info, size / 8 + HMAC_KEY_SIZE / 8);
+            try {
+                return "{\"aesKeyString\":\"" + Base64Coder.encodeWebSafe(Arrays.copyOfRange(material, 0, size / 8)) + "\","
+                        + "\"hmacKey\":" + toHmacKey(Arrays.copyOfRange(material, size / 8, material.length)) + ","
+                        + "\"mode\":\"CBC\",\"size\":" + size + "}";
+            } finally {
+                Arrays.fill(material, (byte) 0);
+            }
+        } else if (type == DefaultKeyType.HMAC_SHA1) {
+            final byte[] material = Hkdf.expand(pseudorandomKey, info, HMAC_KEY_SIZE / 8);
+            try {
+                return toHmacKey(material);
+            } finally {
+                Arrays.fill(material, (byte) 0);
+            }
+        }
+        throw new KeyczarException("Can not derive " + type + " keys; only symmetric keys can be derived");
+    }
+
+    private static String toHmacKey(byte[] material) {
+        return "{\"hmacKeyString\":\"" + Base64Coder.encodeWebSafe(material) + "\",\"size\":" + HMAC_KEY_SIZE + "}";
+    }
+
+    private final class DerivedKeyczarReader implements KeyczarReader {
+        private final String scope;
+        private final KeyPurpose purpose;
+        private final DefaultKeyType type;
+        private final int size;
+
+        DerivedKeyczarReader(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+            this.scope = scope;
+            this.purpose = purpose;
+            this.type = type;
+            this.size = size;
+        }
+
+        @Override
+        public String getKey(int version) throws KeyczarException {
+            return deriveKey(version, scope, purpose, type, size);
+        }
+
+        @Override
+        public String getKey() throws KeyczarException {
+            return getKey(masterKeys.getPrimaryVersion());
+        }
+
+        @Override
+        public String getMetadata() throws KeyczarException {
+            final KeyMetadata metadata = new KeyMetadata(scope, purpose, type);
+            for (int version : masterKeys.getVersions()) {
+                metadata.addVersion(new KeyVersion(version,
+                        version == masterKeys.getPrimaryVersion() ? KeyStatus.PRIMARY : KeyStatus.ACTIVE, false));
+            }
+            return metadata.toString();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.relateiq.keystore;
+
+import org.keyczar.Crypter;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wraps the metadata and keys of every ring in a master crypter before they reach the underlying store, the way
+ * {@code ScopedKeyczarDAO} protects the rings it keeps in Mongo.
+ */
+public class EncryptedKeyStore implements KeyStore {
+    private final KeyStore delegate;
+    private final Crypter master;
+
+    public EncryptedKeyStore(KeyStore delegate, Crypter master) {
+        this.delegate = delegate;
+        this.master = master;
+    }
+
+    @Override
+    public KeyRing get(String scope) throws KeyczarException {
+        return decrypt(delegate.get(scope));
+    }
+
+    @Override
+    public Map<String, KeyRing> getAll(Collection<String> scopes) throws KeyczarException {
+        final Map<String, KeyRing> rings = new LinkedHashMap<>();
+        for (Map.Entry<String, KeyRing> entry : delegate.getAll(scopes).entrySet()) {
+            rings.put(entry.getKey(), decrypt(entry.getValue()));
+        }
+        return rings;
+    }
+
+    @Override
+    public KeyRing putIfAbsent(KeyRing ring) throws KeyczarException {
+        final KeyRing.Builder encrypted = KeyRing.newBuilder()
+                .setScope(ring.getScope())
+                .setMetadata(master.encrypt(ring.getMetadata()));
+        for (Map.Entry<Integer, String> key : ring.getKeys().entrySet()) {
+            encrypted.addKey(key.getKey(), master.encrypt(key.getValue()));
+        }
+        return decrypt(delegate.putIfAbsent(encrypted.build()));
+    }
+
+    @Override
+    public void delete(String scope) throws KeyczarException {
+        delegate.delete(scope);
+    }
+
+    /**
+     * Tombstones hold nothing secret, and are kept in the clear.
+     */
+    @Override
+    public void shredAll(Collection<String> scopes) throws KeyczarException {
+        delegate.shredAll(scopes);
+    }
+
+    @Override
+    public Collection<String> getShreddedSince(long millis) throws KeyczarException {
+        return delegate.getShreddedSince(millis);
+    }
+
+    private KeyRing decrypt(KeyRing ring) throws KeyczarException {
+        if (ring == null || KeyRings.isTombstone(ring)) {
+            return ring;
+        }
+
+        final KeyRing.Builder decrypted = KeyRing.newBuilder()
+                .setScope(ring.getScope())
+                .setMetadata(master.decrypt(ring.getMetadata()));
+        for (Map.Entry<Integer, String> key : ring.getKeys().entrySet()) {
+            decrypted.addKey(key.getKey(), master.decrypt(key.getValue()));
+        }
+        return decrypted.build();
+    }
+}
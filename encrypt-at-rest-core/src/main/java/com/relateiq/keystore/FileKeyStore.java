@@ -0,0 +1,151 @@
+package com.relateiq.keystore;
+
+import com.relateiq.CipherEngine;
+import org.keyczar.exceptions.KeyczarException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps key rings in a local directory, one sub-directory per scope, laid out the way Keyczar's own file reader expects: a
+ * {@code meta} file and one file per key version. Static scopes can therefore be provisioned ahead of time with KeyczarTool.
+ * <p/>
+ * Rings are read once and then served from memory, so this suits scopes whose rings do not change while the process runs.
+ * New rings are written to a temporary directory and moved into place, so readers never see half a ring.
+ */
+public class FileKeyStore implements KeyStore {
+    private static final Logger log = LoggerFactory.getLogger(FileKeyStore.class);
+    private static final String METADATA = "meta";
+    private static final String TEMPORARY_PREFIX = ".tmp-";
+
+    private final Path root;
+    private final ConcurrentMap<String, KeyRing> rings = new ConcurrentHashMap<>();
+
+    public FileKeyStore(Path root) throws IOException {
+        this.root = Files.createDirectories(root);
+    }
+
+    @Override
+    public KeyRing get(String scope) throws KeyczarException {
+        final KeyRing cached = rings.get(scope);
+        if (cached != null) {
+            return cached;
+        }
+
+        final KeyRing ring = read(scope, getDirectory(scope));
+        if (ring != null) {
+            rings.putIfAbsent(scope, ring);
+        }
+        return ring;
+    }
+
+    @Override
+    public KeyRing putIfAbsent(KeyRing ring) throws KeyczarException {
+        final KeyRing existing = get(ring.getScope());
+        if (existing != null) {
+            return existing;
+        }
+
+        final Path directory = getDirectory(ring.getScope());
+        final Path temporary = root.resolve(TEMPORARY_PREFIX + UUID.randomUUID());
+        try {
+            Files.createDirectory(temporary);
+            Files.write(temporary.resolve(METADATA), ring.getMetadata().getBytes(CipherEngine.UTF8_CHARSET));
+            for (Integer version : ring.getKeys().keySet()) {
+                Files.write(temporary.resolve(version.toString()), ring.getKey(version).getBytes(CipherEngine.UTF8_CHARSET));
+            }
+
+            try {
+                Files.move(temporary, directory, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileSystemException e) {
+                // Someone else moved their ring into place first
+                deleteRecursively(temporary);
+                final KeyRing winner = read(ring.getScope(), directory);
+                if (winner == null) {
+                    throw e;
+                }
+                rings.putIfAbsent(ring.getScope(), winner);
+                return winner;
+            }
+        } catch (IOException e) {
+            throw new KeyczarException("Unable to store the key ring of " + ring.getScope(), e);
+        }
+
+        rings.putIfAbsent(ring.getScope(), ring);
+        return null;
+    }
+
+    @Override
+    public void delete(String scope) throws KeyczarException {
+        try {
+            deleteRecursively(getDirectory(scope));
+        } catch (IOException e) {
+            throw new KeyczarException("Unable to delete the key ring of " + scope, e);
+        } finally {
+            rings.remove(scope);
+        }
+    }
+
+    private KeyRing read(String scope, Path directory) throws KeyczarException {
+        if (!Files.isRegularFile(directory.resolve(METADATA))) {
+            return null;
+        }
+
+        try {
+            final KeyRing.Builder builder = KeyRing.newBuilder()
+                    .setScope(scope)
+                    .setMetadata(new String(Files.readAllBytes(directory.resolve(METADATA)), CipherEngine.UTF8_CHARSET));
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    final String name = file.getFileName().toString();
+                    if (!name.equals(METADATA) && name.matches("\\d+")) {
+                        builder.addKey(Integer.parseInt(name), new String(Files.readAllBytes(file), CipherEngine.UTF8_CHARSET));
+                    }
+                }
+            }
+            return builder.build();
+        } catch (IOException e) {
+            throw new KeyczarException("Unable to read the key ring of " + scope, e);
+        }
+    }
+
+    /**
+     * Scopes may contain separators (blind index scopes do), so they are URL encoded into a single path element.
+     */
+    private Path getDirectory(String scope) {
+        try {
+            return root.resolve(URLEncoder.encode(scope, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.delete(p);
+                } catch (IOException e) {
+                    log.warn("Unable to delete {}: {}", p, e.getMessage());
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.relateiq.keystore;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * HKDF with HMAC-SHA256 (RFC 5869).
+ */
+final class Hkdf {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+
+    private Hkdf() {
+    }
+
+    /**
+     * @return the pseudorandom key to {@link #expand} from
+     */
+    static byte[] extract(byte[] salt, byte[] inputKeyMaterial) {
+        return mac(salt.length == 0 ? new byte[HASH_LENGTH] : salt).doFinal(inputKeyMaterial);
+    }
+
+    static byte[] expand(byte[] pseudorandomKey, byte[] info, int length) {
+        if (length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("Can not derive more than " + 255 * HASH_LENGTH + " bytes");
+        }
+
+        final Mac mac = mac(pseudorandomKey);
+        final byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        for (int i = 0, offset = 0; offset < length; i++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) (i + 1));
+            block = mac.doFinal();
+
+            final int n = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, n);
+            offset += n;
+        }
+        Arrays.fill(block, (byte) 0);
+        return output;
+    }
+
+    private static Mac mac(byte[] key) {
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
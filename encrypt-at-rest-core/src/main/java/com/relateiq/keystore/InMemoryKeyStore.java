@@ -0,0 +1,61 @@
+package com.relateiq.keystore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps key rings on the heap, for tests and benchmarks; they are gone when the process exits.
+ */
+public class InMemoryKeyStore implements KeyStore {
+    private final ConcurrentMap<String, KeyRing> rings = new ConcurrentHashMap<>();
+    /**
+     * When each scope was shredded, in milliseconds since the epoch
+     */
+    private final ConcurrentMap<String, Long> shredded = new ConcurrentHashMap<>();
+
+    @Override
+    public KeyRing get(String scope) {
+        return rings.get(scope);
+    }
+
+    @Override
+    public KeyRing putIfAbsent(KeyRing ring) {
+        return rings.putIfAbsent(ring.getScope(), ring);
+    }
+
+    @Override
+    public void delete(String scope) {
+        rings.remove(scope);
+    }
+
+    @Override
+    public void shredAll(Collection<String> scopes) {
+        final long now = System.currentTimeMillis();
+        for (String scope : scopes) {
+            rings.put(scope, KeyRings.tombstone(scope));
+            shredded.put(scope, now);
+        }
+    }
+
+    @Override
+    public Collection<String> getShreddedSince(long millis) {
+        final List<String> scopes = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : shredded.entrySet()) {
+            if (entry.getValue() >= millis) {
+                scopes.add(entry.getKey());
+            }
+        }
+        return scopes;
+    }
+
+    /**
+     * @return the number of rings, tombstones included
+     */
+    public int size() {
+        return rings.size();
+    }
+}
@@ -0,0 +1,104 @@
+package com.relateiq.keystore;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * The Keyczar key ring of one scope, as a {@link KeyStore} keeps it: the metadata and every key version, each in Keyczar's JSON
+ * form.
+ */
+public final class KeyRing {
+    private final String scope;
+    private final String metadata;
+    private final Map<Integer, String> keys;
+
+    private KeyRing(String scope, String metadata, Map<Integer, String> keys) {
+        this.scope = scope;
+        this.metadata = metadata;
+        this.keys = keys;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public String getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return the key of the given version, or null if the ring has no such version
+     */
+    public String getKey(int version) {
+        return keys.get(version);
+    }
+
+    /**
+     * @return every key, by version number
+     */
+    public Map<Integer, String> getKeys() {
+        return keys;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof KeyRing)) {
+            return false;
+        }
+        final KeyRing other = (KeyRing) o;
+        return scope.equals(other.scope) && metadata.equals(other.metadata) && keys.equals(other.keys);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(scope, metadata, keys);
+    }
+
+    @Override
+    public String toString() {
+        // Never the keys themselves
+        return "KeyRing{scope=" + scope + ", versions=" + keys.keySet() + "}";
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private String scope;
+        private String metadata;
+        private final Map<Integer, String> keys = new TreeMap<>();
+
+        public Builder setScope(String scope) {
+            this.scope = scope;
+            return this;
+        }
+
+        public Builder setMetadata(String metadata) {
+            this.metadata = metadata;
+            return this;
+        }
+
+        public Builder addKey(int version, String key) {
+            keys.put(version, key);
+            return this;
+        }
+
+        public Builder setKeys(Map<Integer, String> keys) {
+            this.keys.clear();
+            this.keys.putAll(keys);
+            return this;
+        }
+
+        public KeyRing build() {
+            Objects.requireNonNull(scope, "scope");
+            Objects.requireNonNull(metadata, "metadata");
+            return new KeyRing(scope, metadata, Collections.unmodifiableMap(new TreeMap<>(keys)));
+        }
+    }
+}
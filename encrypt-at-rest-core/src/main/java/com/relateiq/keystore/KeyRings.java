@@ -0,0 +1,73 @@
+package com.relateiq.keystore;
+
+import org.keyczar.DefaultKeyType;
+import org.keyczar.KeyMetadata;
+import org.keyczar.KeyVersion;
+import org.keyczar.KeyczarKey;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Generating key rings, and reading keys out of them.
+ */
+public final class KeyRings {
+    /**
+     * The metadata of a tombstone, which marks a scope whose key ring was shredded
+     */
+    public static final String TOMBSTONE_METADATA = "{\"shredded\":true}";
+
+    private KeyRings() {
+    }
+
+    /**
+     * @return a ring with no keys that takes the place of a shredded ring, so that no new ring can be created for the scope
+     */
+    public static KeyRing tombstone(String scope) {
+        return KeyRing.newBuilder().setScope(scope).setMetadata(TOMBSTONE_METADATA).build();
+    }
+
+    public static boolean isTombstone(KeyRing ring) {
+        return ring != null && TOMBSTONE_METADATA.equals(ring.getMetadata()) && ring.getKeys().isEmpty();
+    }
+
+    /**
+     * Generates a new key ring with a single, primary key version.
+     *
+     * @param size key size in bits; the default size of the type is used if it is not acceptable
+     */
+    public static KeyRing generate(String scope, KeyPurpose purpose, DefaultKeyType type, int size) throws KeyczarException {
+        final KeyMetadata metadata = new KeyMetadata(scope, purpose, type);
+        final KeyVersion version = new KeyVersion(metadata.getVersions().size(), KeyStatus.PRIMARY, false);
+        metadata.addVersion(version);
+
+        final KeyczarKey key = type.getBuilder().generate(type.isAcceptableSize(size) ? size : type.defaultSize());
+        return KeyRing.newBuilder()
+                .setScope(scope)
+                .setMetadata(metadata.toString())
+                .addKey(version.getVersionNumber(), key.toString())
+                .build();
+    }
+
+    /**
+     * @return the primary key of the ring
+     */
+    public static String getPrimaryKey(KeyRing ring) throws KeyczarException {
+        if (isTombstone(ring)) {
+            throw new ShreddedScopeException(ring.getScope());
+        }
+        final int version = KeyMetadata.read(ring.getMetadata()).getPrimaryVersion().getVersionNumber();
+        return getKey(ring, version);
+    }
+
+    public static String getKey(KeyRing ring, int version) throws KeyczarException {
+        if (isTombstone(ring)) {
+            throw new ShreddedScopeException(ring.getScope());
+        }
+        final String key = ring.getKey(version);
+        if (key == null) {
+            throw new KeyczarException("No key version " + version + " for " + ring.getScope());
+        }
+        return key;
+    }
+}
@@ -0,0 +1,73 @@
+package com.relateiq.keystore;
+
+import org.keyczar.exceptions.KeyczarException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where the key rings of scopes live. Key rings are immutable once stored: they are created once, through
+ * {@link #putIfAbsent(KeyRing)}, and only ever deleted or {@link #shredAll(Collection) shredded} afterwards.
+ * <p/>
+ * Implementations must be thread-safe. {@link KeyStoreKeyczarReaderFactory} turns any of them into a
+ * {@link com.relateiq.annotations.KeyczarReaderFactory}.
+ */
+public interface KeyStore {
+    /**
+     * @return the key ring of the scope, or null if there is none
+     */
+    KeyRing get(String scope) throws KeyczarException;
+
+    /**
+     * Fetches the key rings of many scopes at once; stores that can should do it in a single round trip.
+     *
+     * @return the key rings that exist, by scope
+     */
+    default Map<String, KeyRing> getAll(Collection<String> scopes) throws KeyczarException {
+        final Map<String, KeyRing> rings = new LinkedHashMap<>();
+        for (String scope : scopes) {
+            final KeyRing ring = get(scope);
+            if (ring != null) {
+                rings.put(scope, ring);
+            }
+        }
+        return rings;
+    }
+
+    /**
+     * Stores the key ring unless its scope already has one, atomically with respect to other writers of the same store.
+     *
+     * @return the key ring that was already stored, or null if the given one was stored
+     */
+    KeyRing putIfAbsent(KeyRing ring) throws KeyczarException;
+
+    void delete(String scope) throws KeyczarException;
+
+    /**
+     * Destroys the key rings of many scopes for good, replacing each of them with a {@link KeyRings#tombstone tombstone} so that
+     * no new ring can be created for the scope afterwards.  Scopes that never had a ring are tombstoned too.  Stores that can
+     * should do it in batches.
+     */
+    default void shredAll(Collection<String> scopes) throws KeyczarException {
+        for (String scope : scopes) {
+            KeyRing existing;
+            do {
+                // A ring created in between is shredded as well
+                delete(scope);
+                existing = putIfAbsent(KeyRings.tombstone(scope));
+            } while (existing != null && !KeyRings.isTombstone(existing));
+        }
+    }
+
+    /**
+     * Lets every node drop the keys it cached of scopes shredded elsewhere; see {@link com.relateiq.ShredWatcher}.
+     *
+     * @param millis milliseconds since the epoch
+     * @return the scopes shredded since then, or nothing if the store does not keep track of when scopes were shredded
+     */
+    default Collection<String> getShreddedSince(long millis) throws KeyczarException {
+        return Collections.emptyList();
+    }
+}
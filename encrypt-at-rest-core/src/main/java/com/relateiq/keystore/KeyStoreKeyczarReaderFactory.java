@@ -0,0 +1,97 @@
+package com.relateiq.keystore;
+
+import com.relateiq.annotations.KeyczarReaderFactory;
+import com.relateiq.event.EncryptionEvents;
+import com.relateiq.event.KeyEvent;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyczarReader;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Reads key rings out of a {@link KeyStore}, creating them on first use.
+ * <p/>
+ * Each reader fetches its ring once, however many versions Keyczar asks it for, and concurrent creators of the same scope all
+ * end up with the ring that was stored first.  Shredded scopes fail with a {@link ShreddedScopeException}.
+ */
+@Singleton
+public class KeyStoreKeyczarReaderFactory implements KeyczarReaderFactory {
+    private final KeyStore keyStore;
+
+    @Inject
+    public KeyStoreKeyczarReaderFactory(KeyStore keyStore) {
+        this.keyStore = keyStore;
+    }
+
+    @Override
+    public KeyczarReader create(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+        return new KeyRingReader(scope, purpose, type, size);
+    }
+
+    /* package private */KeyRing fetchOrCreate(String scope, KeyPurpose purpose, DefaultKeyType type, int size) throws KeyczarException {
+        final boolean recording = EncryptionEvents.isEnabled();
+        final long start = recording ? System.nanoTime() : 0;
+        KeyEvent.Outcome outcome = KeyEvent.Outcome.FAILED;
+        try {
+            final KeyRing ring = keyStore.get(scope);
+            if (KeyRings.isTombstone(ring)) {
+                throw new ShreddedScopeException(scope);
+            } else if (ring != null) {
+                outcome = KeyEvent.Outcome.LOADED;
+                return ring;
+            }
+
+            final KeyRing generated = KeyRings.generate(scope, purpose, type, size);
+            final KeyRing existing = keyStore.putIfAbsent(generated);
+            if (KeyRings.isTombstone(existing)) {
+                throw new ShreddedScopeException(scope);
+            }
+            outcome = existing == null ? KeyEvent.Outcome.CREATED : KeyEvent.Outcome.LOADED;
+            return existing == null ? generated : existing;
+        } finally {
+            if (recording) {
+                EncryptionEvents.keysResolved("KeyStoreKeyczarReaderFactory.fetchOrCreate", scope, outcome, start);
+            }
+        }
+    }
+
+    private final class KeyRingReader implements KeyczarReader {
+        private final String scope;
+        private final KeyPurpose purpose;
+        private final DefaultKeyType type;
+        private final int size;
+        private KeyRing ring;
+
+        KeyRingReader(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+            this.scope = scope;
+            this.purpose = purpose;
+            this.type = type;
+            this.size = size;
+        }
+
+        private synchronized KeyRing getRing() throws KeyczarException {
+            if (ring == null) {
+                ring = fetchOrCreate(scope, purpose, type, size);
+            }
+            return ring;
+        }
+
+        @Override
+        public String getKey(int version) throws KeyczarException {
+            return KeyRings.getKey(getRing(), version);
+        }
+
+        @Override
+        public String getKey() throws KeyczarException {
+            return KeyRings.getPrimaryKey(getRing());
+        }
+
+        @Override
+        public String getMetadata() throws KeyczarException {
+            return getRing().getMetadata();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.relateiq.keystore;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The versioned master secrets from which {@link DerivedKeyczarReaderFactory} derives the keys of every scope.  New values are
+ * encrypted with the keys derived from the primary version; older versions are kept so that values written with them can still
+ * be decrypted.
+ */
+public final class MasterKeys {
+    public static final int MIN_SECRET_LENGTH = 32;
+
+    private final SortedMap<Integer, byte[]> secrets;
+    private final int primaryVersion;
+
+    private MasterKeys(SortedMap<Integer, byte[]> secrets, int primaryVersion) {
+        this.secrets = secrets;
+        this.primaryVersion = primaryVersion;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public int getPrimaryVersion() {
+        return primaryVersion;
+    }
+
+    public Set<Integer> getVersions() {
+        return Collections.unmodifiableSet(secrets.keySet());
+    }
+
+    /* package private */byte[] getSecret(int version) {
+        return secrets.get(version);
+    }
+
+    public static final class Builder {
+        private final SortedMap<Integer, byte[]> secrets = new TreeMap<>();
+        private Integer primaryVersion;
+
+        private Builder() {
+        }
+
+        /**
+         * @param version positive version number, never to be reused for a different secret
+         * @param secret  at least {@link #MIN_SECRET_LENGTH} random bytes
+         */
+        public Builder addKey(int version, byte[] secret) {
+            if (version <= 0) {
+                throw new IllegalArgumentException("Master key versions start at 1");
+            }
+            if (secret.length < MIN_SECRET_LENGTH) {
+                throw new IllegalArgumentException("Master keys need at least " + MIN_SECRET_LENGTH + " bytes");
+            }
+            secrets.put(version, Arrays.copyOf(secret, secret.length));
+            return this;
+        }
+
+        /**
+         * Defaults to the highest version.
+         */
+        public Builder setPrimaryVersion(int primaryVersion) {
+            this.primaryVersion = primaryVersion;
+            return this;
+        }
+
+        public MasterKeys build() {
+            if (secrets.isEmpty()) {
+                throw new IllegalStateException("No master keys");
+            }
+            final int primary = primaryVersion == null ? secrets.lastKey() : primaryVersion;
+            if (!secrets.containsKey(primary)) {
+                throw new IllegalStateException("No master key version " + primary);
+            }
+            return new MasterKeys(new TreeMap<>(secrets), primary);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.relateiq.keystore;
+
+import com.relateiq.BlindIndex;
+import com.relateiq.CipherEngine;
+import com.relateiq.ShredListener;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the key rings of another {@link KeyStore} in direct memory rather than on the heap: each ring is one fixed-size record
+ * in a pre-allocated slot, and the heap only holds the scope-to-slot index, so a large cache of rings does not inflate the old
+ * generation.  Records are zeroed when they are evicted, deleted or invalidated; expired records are only dropped (and zeroed)
+ * lazily, the next time their scope is looked up, or once they are evicted.
+ * <p/>
+ * This does not keep key material out of heap dumps: every hit decodes the ring into a heap {@link KeyRing}, whose keys are
+ * immutable Strings that can not be zeroed and stay on the heap until they are collected, and the crypters built from those
+ * rings (which {@link com.relateiq.CrypterFactory} caches) hold the keys on the heap for as long as they are cached.
+ * <p/>
+ * Rings larger than a slot are not cached. The cache is split into independently locked segments, each evicting its least
+ * recently used ring when full.
+ * <p/>
+ * Scopes shredded by other nodes are dropped as soon as they are seen by {@link #getShreddedSince}, or when the cache is told as
+ * a {@link ShredListener}; a ring read from the delegate while any scope was being dropped is not cached, so that it can not
+ * outlive the shred.
+ */
+public class OffHeapKeyRingCache implements KeyStore, ShredListener, AutoCloseable {
+    private final KeyStore delegate;
+    private final Segment[] segments;
+    private final int slotSize;
+    private final long expireAfterNanos;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+    /**
+     * Bumped whenever rings are dropped, so that reads from the delegate that raced with it are not cached
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param delegate    store to cache
+     * @param capacity    maximum number of cached rings
+     * @param slotSize    bytes per ring; AES and HMAC rings need a few hundred, RSA and DSA private keys a few thousand
+     * @param segments    number of independently locked segments
+     * @param expireAfter how long a ring may be served from the cache, or 0 to keep it until it is evicted
+     */
+    public OffHeapKeyRingCache(KeyStore delegate, int capacity, int slotSize, int segments, long expireAfter, TimeUnit unit) {
+        if (capacity < segments || slotSize < 64 || segments < 1) {
+            throw new IllegalArgumentException("Need at least one slot of 64 bytes per segment");
+        }
+        if ((long) (capacity / segments + 1) * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments are limited to 2GB; use more of them");
+        }
+
+        this.delegate = delegate;
+        this.slotSize = slotSize;
+        this.expireAfterNanos = unit.toNanos(expireAfter);
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment(capacity / segments + (i < capacity % segments ? 1 : 0));
+        }
+    }
+
+    public OffHeapKeyRingCache(KeyStore delegate, int capacity) {
+        this(delegate, capacity, 1024, 16, 0, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public KeyRing get(String scope) throws KeyczarException {
+        final KeyRing cached = segmentOf(scope).get(scope);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        final long generation = invalidations.get();
+        final KeyRing ring = delegate.get(scope);
+        if (ring != null) {
+            cache(ring, generation);
+        }
+        return ring;
+    }
+
+    @Override
+    public Map<String, KeyRing> getAll(Collection<String> scopes) throws KeyczarException {
+        final Map<String, KeyRing> rings = new LinkedHashMap<>();
+        final Collection<String> missing = new ArrayList<>();
+        for (String scope : scopes) {
+            final KeyRing cached = segmentOf(scope).get(scope);
+            if (cached != null) {
+                hits.incrementAndGet();
+                rings.put(scope, cached);
+            } else {
+                misses.incrementAndGet();
+                missing.add(scope);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            final long generation = invalidations.get();
+            for (KeyRing ring : delegate.getAll(missing).values()) {
+                cache(ring, generation);
+                rings.put(ring.getScope(), ring);
+            }
+        }
+        return rings;
+    }
+
+    @Override
+    public KeyRing putIfAbsent(KeyRing ring) throws KeyczarException {
+        final long generation = invalidations.get();
+        final KeyRing existing = delegate.putIfAbsent(ring);
+        cache(existing == null ? ring : existing, generation);
+        return existing;
+    }
+
+    @Override
+    public void delete(String scope) throws KeyczarException {
+        try {
+            delegate.delete(scope);
+        } finally {
+            invalidations.incrementAndGet();
+            segmentOf(scope).remove(scope);
+        }
+    }
+
+    @Override
+    public void shredAll(Collection<String> scopes) throws KeyczarException {
+        try {
+            delegate.shredAll(scopes);
+        } finally {
+            invalidateAll(scopes);
+        }
+    }
+
+    /**
+     * Also drops the cached rings of the scopes returned, since they were shredded by another node.
+     */
+    @Override
+    public Collection<String> getShreddedSince(long millis) throws KeyczarException {
+        final Collection<String> scopes = delegate.getShreddedSince(millis);
+        invalidateAll(scopes);
+        return scopes;
+    }
+
+    /**
+     * Drops the cached rings of scopes that were shredded, along with the rings of their {@link BlindIndex blind indexes}.
+     */
+    @Override
+    public void shredded(Collection<String> scopes) {
+        final Collection<String> rings = new ArrayList<>(scopes.size() * 2);
+        for (String scope : scopes) {
+            rings.add(scope);
+            rings.add(scope + BlindIndex.KEY_SCOPE_SUFFIX);
+        }
+        invalidateAll(rings);
+    }
+
+    /**
+     * Drops the cached rings of scopes, e.g. once another node shredded them.
+     */
+    public void invalidateAll(Collection<String> scopes) {
+        invalidations.incrementAndGet();
+        for (String scope : scopes) {
+            segmentOf(scope).remove(scope);
+        }
+    }
+
+    /**
+     * Zeroes every cached ring.
+     */
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return how many rings were too large for a slot, and so were not cached
+     */
+    public long getOversizedCount() {
+        return oversized.get();
+    }
+
+    /**
+     * @param generation {@link #invalidations} from before the ring was read from the delegate
+     */
+    private void cache(KeyRing ring, long generation) {
+        final byte[] record = encode(ring);
+        if (record.length > slotSize) {
+            oversized.incrementAndGet();
+            return;
+        }
+
+        try {
+            segmentOf(ring.getScope()).put(ring.getScope(), record, generation);
+        } finally {
+            zero(record);
+        }
+    }
+
+    private Segment segmentOf(String scope) {
+        return segments[(scope.hashCode() & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * Record layout: the metadata, the number of keys, then each key version and key; strings are length-prefixed UTF-8.
+     * The scope is not repeated, the index already knows it.
+     */
+    private static byte[] encode(KeyRing ring) {
+        final byte[] metadata = ring.getMetadata().getBytes(CipherEngine.UTF8_CHARSET);
+        final byte[][] keys = new byte[ring.getKeys().size()][];
+        int length = 4 + metadata.length + 4;
+        int i = 0;
+        for (String key : ring.getKeys().values()) {
+            keys[i] = key.getBytes(CipherEngine.UTF8_CHARSET);
+            length += 8 + keys[i++].length;
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(metadata.length).put(metadata).putInt(keys.length);
+        i = 0;
+        for (Integer version : ring.getKeys().keySet()) {
+            record.putInt(version).putInt(keys[i].length).put(keys[i]);
+            zero(keys[i++]);
+        }
+        return record.array();
+    }
+
+    private static KeyRing decode(String scope, ByteBuffer slot) {
+        final KeyRing.Builder builder = KeyRing.newBuilder()
+                .setScope(scope)
+                .setMetadata(readString(slot));
+        final int keys = slot.getInt();
+        for (int i = 0; i < keys; i++) {
+            final int version = slot.getInt();
+            builder.addKey(version, readString(slot));
+        }
+        return builder.build();
+    }
+
+    private static String readString(ByteBuffer slot) {
+        final byte[] bytes = new byte[slot.getInt()];
+        slot.get(bytes);
+        try {
+            return new String(bytes, CipherEngine.UTF8_CHARSET);
+        } finally {
+            zero(bytes);
+        }
+    }
+
+    private static void zero(byte[] bytes) {
+        Arrays.fill(bytes, (byte) 0);
+    }
+
+    private static final class Entry {
+        final int slot;
+        final long loadedAt;
+
+        Entry(int slot, long loadedAt) {
+            this.slot = slot;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final class Segment {
+        private final ByteBuffer memory;
+        private final byte[] zeroes = new byte[slotSize];
+        // Access ordered, so that iteration starts at the least recently used ring
+        private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+        private final Deque<Integer> free = new ArrayDeque<>();
+
+        Segment(int slots) {
+            memory = ByteBuffer.allocateDirect(slots * slotSize);
+            for (int i = 0; i < slots; i++) {
+                free.push(i);
+            }
+        }
+
+        synchronized KeyRing get(String scope) {
+            final Entry entry = index.get(scope);
+            if (entry == null) {
+                return null;
+            }
+
+            if (expireAfterNanos > 0 && System.nanoTime() - entry.loadedAt > expireAfterNanos) {
+                index.remove(scope);
+                release(entry.slot);
+                return null;
+            }
+            return decode(scope, slice(entry.slot));
+        }
+
+        synchronized void put(String scope, byte[] record, long generation) {
+            // Checked under the segment lock, which invalidating the ring has to take as well
+            if (invalidations.get() != generation) {
+                return;
+            }
+
+            Entry entry = index.remove(scope);
+            int slot;
+            if (entry != null) {
+                slot = entry.slot;
+            } else if (!free.isEmpty()) {
+                slot = free.pop();
+            } else {
+                final Iterator<Map.Entry<String, Entry>> eldest = index.entrySet().iterator();
+                slot = eldest.next().getValue().slot;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+
+            final ByteBuffer target = slice(slot);
+            target.put(zeroes);
+            target.clear();
+            target.put(record);
+            index.put(scope, new Entry(slot, System.nanoTime()));
+        }
+
+        synchronized void remove(String scope) {
+            final Entry entry = index.remove(scope);
+            if (entry != null) {
+                release(entry.slot);
+            }
+        }
+
+        synchronized void clear() {
+            for (Entry entry : index.values()) {
+                release(entry.slot);
+            }
+            index.clear();
+        }
+
+        private void release(int slot) {
+            slice(slot).put(zeroes);
+            free.push(slot);
+        }
+
+        private ByteBuffer slice(int slot) {
+            final ByteBuffer view = memory.duplicate();
+            view.position(slot * slotSize).limit((slot + 1) * slotSize);
+            return view.slice();
+        }
+    }
+}
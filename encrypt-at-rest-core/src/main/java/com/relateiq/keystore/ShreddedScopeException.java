@@ -0,0 +1,20 @@
+package com.relateiq.keystore;
+
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Thrown when the keys of a scope are requested after its key ring was shredded: whatever was encrypted with them is gone for
+ * good, and nothing new may be encrypted in the scope.
+ */
+public class ShreddedScopeException extends KeyczarException {
+    private final String scope;
+
+    public ShreddedScopeException(String scope) {
+        super("The key ring of " + scope + " was shredded");
+        this.scope = scope;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+}
@@ -0,0 +1,63 @@
+package com.relateiq.stream;
+
+import org.keyczar.Crypter;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encrypts large payloads as a sequence of independently authenticated chunks.  Every chunk is encrypted by the Keyczar crypter
+ * of the payload's scope together with the id of the payload, its position in the payload and whether it is the final chunk, so
+ * chunks can neither be reordered, dropped from the end nor swapped in from another payload of the same scope without the read
+ * failing.
+ * <p/>
+ * Chunk {@code n} always holds plaintext bytes {@code [n * chunkSize, (n + 1) * chunkSize)}, which is what makes range reads
+ * possible without decrypting anything before the range.
+ */
+public final class ChunkCodec {
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private static final int HEADER_SIZE = 8 + 1 + 4;
+
+    private ChunkCodec() {
+    }
+
+    /**
+     * @param payloadId identifies the payload the chunk belongs to; must be unique among the payloads of the scope
+     */
+    public static byte[] encrypt(Crypter crypter, byte[] payloadId, long index, boolean last, byte[] buf, int off, int len)
+            throws KeyczarException {
+        final ByteBuffer plaintext = ByteBuffer.allocate(HEADER_SIZE + payloadId.length + len);
+        plaintext.putLong(index);
+        plaintext.put((byte) (last ? 1 : 0));
+        plaintext.putInt(payloadId.length);
+        plaintext.put(payloadId);
+        plaintext.put(buf, off, len);
+        return crypter.encrypt(plaintext.array());
+    }
+
+    /**
+     * @return the plaintext of the chunk
+     * @throws KeyczarException if the chunk does not authenticate, or is not the chunk that was expected at this position of
+     *                          this payload
+     */
+    public static byte[] decrypt(Crypter crypter, byte[] payloadId, long index, boolean last, byte[] ciphertext)
+            throws KeyczarException {
+        final ByteBuffer plaintext = ByteBuffer.wrap(crypter.decrypt(ciphertext));
+        if (plaintext.remaining() < HEADER_SIZE || plaintext.getLong() != index || (plaintext.get() == 1) != last
+                || plaintext.getInt() != payloadId.length || plaintext.remaining() < payloadId.length) {
+            throw new KeyczarException("Encrypted chunk " + index + " is out of place");
+        }
+
+        final byte[] storedId = new byte[payloadId.length];
+        plaintext.get(storedId);
+        if (!Arrays.equals(storedId, payloadId)) {
+            throw new KeyczarException("Encrypted chunk " + index + " belongs to another payload");
+        }
+
+        final byte[] data = new byte[plaintext.remaining()];
+        plaintext.get(data);
+        return data;
+    }
+}
@@ -0,0 +1,18 @@
+package com.relateiq.stream;
+
+import java.io.IOException;
+
+/**
+ * Receives the encrypted chunks of an {@link EncryptingOutputStream}, in order.
+ */
+public interface ChunkSink {
+    public void write(long index, byte[] ciphertext) throws IOException;
+
+    /**
+     * Called once every chunk has been written.
+     *
+     * @param length    total plaintext length
+     * @param chunkSize plaintext size of every chunk but the last
+     */
+    public void close(long length, int chunkSize) throws IOException;
+}
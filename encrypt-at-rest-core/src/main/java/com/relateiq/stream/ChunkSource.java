@@ -0,0 +1,10 @@
+package com.relateiq.stream;
+
+import java.io.IOException;
+
+/**
+ * Supplies the encrypted chunks of a payload to a {@link DecryptingInputStream}.
+ */
+public interface ChunkSource {
+    public byte[] read(long index) throws IOException;
+}
@@ -0,0 +1,108 @@
+package com.relateiq.stream;
+
+import org.keyczar.Crypter;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a payload written by {@link EncryptingOutputStream}, fetching and decrypting one chunk at a time.  A range read only
+ * touches the chunks overlapping the range, and {@link #skip(long)} jumps over whole chunks without fetching them.
+ */
+public class DecryptingInputStream extends InputStream {
+    private final Crypter crypter;
+    private final byte[] payloadId;
+    private final ChunkSource source;
+    private final int chunkSize;
+    private final long lastIndex;
+    private final long end;
+
+    private long position;
+    private byte[] chunk;
+    private long chunkIndex = -1;
+
+    /**
+     * @param payloadId the id the payload was written with
+     * @param length    total plaintext length of the payload
+     * @param chunkSize plaintext size of every chunk but the last
+     */
+    public DecryptingInputStream(Crypter crypter, byte[] payloadId, ChunkSource source, long length, int chunkSize) {
+        this(crypter, payloadId, source, length, chunkSize, 0, length);
+    }
+
+    /**
+     * Reads only the plaintext bytes {@code [offset, offset + limit)} of the payload.
+     */
+    public DecryptingInputStream(Crypter crypter, byte[] payloadId, ChunkSource source, long length, int chunkSize, long offset,
+                                 long limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Invalid range " + offset + "+" + limit);
+        }
+        this.crypter = crypter;
+        this.payloadId = payloadId;
+        this.source = source;
+        this.chunkSize = chunkSize;
+        this.lastIndex = length == 0 ? 0 : (length - 1) / chunkSize;
+        this.position = Math.min(offset, length);
+        this.end = Math.min(length, position + limit);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        } else if (position >= end) {
+            return -1;
+        }
+
+        final long index = position / chunkSize;
+        if (index != chunkIndex) {
+            chunk = loadChunk(index);
+            chunkIndex = index;
+        }
+
+        final int chunkOffset = (int) (position - index * chunkSize);
+        final int n = (int) Math.min(Math.min(len, chunk.length - chunkOffset), end - position);
+        if (n <= 0) {
+            throw new IOException("Encrypted chunk " + index + " is shorter than expected");
+        }
+        System.arraycopy(chunk, chunkOffset, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        final long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        if (chunk == null || position / chunkSize != chunkIndex) {
+            return 0;
+        }
+        return (int) Math.min(chunk.length - (position - chunkIndex * chunkSize), end - position);
+    }
+
+    private byte[] loadChunk(long index) throws IOException {
+        final byte[] ciphertext = source.read(index);
+        if (ciphertext == null) {
+            throw new IOException("Encrypted chunk " + index + " is missing");
+        }
+
+        try {
+            return ChunkCodec.decrypt(crypter, payloadId, index, index == lastIndex, ciphertext);
+        } catch (KeyczarException e) {
+            throw new IOException("Unable to decrypt chunk " + index, e);
+        }
+    }
+}
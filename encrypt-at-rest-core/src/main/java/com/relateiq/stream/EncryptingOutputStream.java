@@ -0,0 +1,84 @@
+package com.relateiq.stream;
+
+import org.keyczar.Crypter;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encrypts everything written to it in fixed-size chunks (see {@link ChunkCodec}), handing each chunk to a {@link ChunkSink} as
+ * soon as it is full.  Memory use is bounded by a single chunk, however large the payload.
+ */
+public class EncryptingOutputStream extends OutputStream {
+    private final Crypter crypter;
+    private final byte[] payloadId;
+    private final ChunkSink sink;
+    private final byte[] buffer;
+
+    private int buffered;
+    private long index;
+    private long length;
+    private boolean closed;
+
+    /**
+     * @param payloadId identifies the payload in every chunk, see {@link ChunkCodec#encrypt}
+     */
+    public EncryptingOutputStream(Crypter crypter, byte[] payloadId, ChunkSink sink) {
+        this(crypter, payloadId, sink, ChunkCodec.DEFAULT_CHUNK_SIZE);
+    }
+
+    public EncryptingOutputStream(Crypter crypter, byte[] payloadId, ChunkSink sink, int chunkSize) {
+        this.crypter = crypter;
+        this.payloadId = payloadId;
+        this.sink = sink;
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        while (len > 0) {
+            // Only flush a full chunk once more data arrives, so that the final chunk is always the one written by close()
+            if (buffered == buffer.length) {
+                writeChunk(false);
+            }
+
+            final int n = Math.min(len, buffer.length - buffered);
+            System.arraycopy(b, off, buffer, buffered, n);
+            buffered += n;
+            length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        writeChunk(true);
+        sink.close(length, buffer.length);
+    }
+
+    private void writeChunk(boolean last) throws IOException {
+        try {
+            sink.write(index, ChunkCodec.encrypt(crypter, payloadId, index, last, buffer, 0, buffered));
+        } catch (KeyczarException e) {
+            throw new IOException("Unable to encrypt chunk " + index, e);
+        }
+        index++;
+        buffered = 0;
+    }
+}
@@ -0,0 +1,104 @@
+package com.relateiq;
+
+import com.relateiq.annotations.KeyczarReaderFactory;
+import com.relateiq.keystore.InMemoryKeyStore;
+import com.relateiq.keystore.KeyStoreKeyczarReaderFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.interfaces.KeyczarReader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class AsyncCrypterFactoryTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger reads = new AtomicInteger();
+    private final KeyczarReaderFactory stored = new KeyStoreKeyczarReaderFactory(new InMemoryKeyStore());
+
+    /**
+     * Blocks every key store read until released, like a key store that is slow to answer
+     */
+    private final KeyczarReaderFactory slow = new KeyczarReaderFactory() {
+        @Override
+        public KeyczarReader create(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+            reads.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return stored.create(scope, purpose, type, size);
+        }
+    };
+
+    private AsyncCrypterFactory factory;
+
+    @Before
+    public void setup() {
+        factory = new AsyncCrypterFactory(new CrypterFactory(slow), 1, 1);
+    }
+
+    @After
+    public void teardown() {
+        release.countDown();
+        factory.close();
+    }
+
+    private CompletableFuture<Crypter> create(String scope) {
+        return factory.create(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+    }
+
+    @Test
+    public void concurrentRequestsForAScopeShareOneLoad() throws Exception {
+        final List<CompletableFuture<Crypter>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(create("scope"));
+        }
+        // The caller was never blocked on the key store
+        assertThat(futures.get(0).isDone(), equalTo(false));
+
+        release.countDown();
+        final Crypter crypter = futures.get(0).get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<Crypter> future : futures) {
+            assertThat(future.get(10, TimeUnit.SECONDS), sameInstance(crypter));
+        }
+        assertThat(reads.get(), equalTo(1));
+        assertThat(factory.getLoadCount(), equalTo(1L));
+        assertThat(factory.getCoalescedCount(), equalTo(9L));
+    }
+
+    @Test
+    public void saturatedPoolRejectsInsteadOfQueueing() throws Exception {
+        final CompletableFuture<Crypter> running = create("scope1");
+        final CompletableFuture<Crypter> queued = create("scope2");
+        final CompletableFuture<Crypter> rejected = create("scope3");
+
+        try {
+            rejected.get(10, TimeUnit.SECONDS);
+            throw new AssertionError("Expected the request to be rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+        assertThat(factory.getRejectedCount(), equalTo(1L));
+
+        release.countDown();
+        running.get(10, TimeUnit.SECONDS);
+        queued.get(10, TimeUnit.SECONDS);
+        assertThat(factory.getInFlightCount(), equalTo(0));
+    }
+}
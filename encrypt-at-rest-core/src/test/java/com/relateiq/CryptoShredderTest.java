@@ -0,0 +1,158 @@
+package com.relateiq;
+
+import com.relateiq.cache.SegmentedCache;
+import com.relateiq.keystore.InMemoryKeyStore;
+import com.relateiq.keystore.KeyStore;
+import com.relateiq.keystore.KeyStoreKeyczarReaderFactory;
+import com.relateiq.keystore.OffHeapKeyRingCache;
+import org.junit.Test;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.Signer;
+import org.keyczar.enums.KeyPurpose;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class CryptoShredderTest {
+    private static CrypterFactory cachingFactory(KeyStore keyStore) {
+        return new CrypterFactory(new KeyStoreKeyczarReaderFactory(keyStore),
+                SegmentedCache.<ScopeKey>newBuilder().setCapacity(100).build(ScopeKey::getScope));
+    }
+
+    private static Crypter crypter(CrypterFactory factory, String scope) {
+        return factory.create(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+    }
+
+    @Test
+    public void scopesAreShreddedInBatchesWithProgress() throws Exception {
+        final InMemoryKeyStore keyStore = new InMemoryKeyStore();
+        final CrypterFactory factory = cachingFactory(keyStore);
+        final List<String> scopes = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            scopes.add("scope" + i);
+        }
+        assertThat(crypter(factory, "scope0"), notNullValue());
+        assertThat(signer(factory, "scope0"), notNullValue());
+
+        final List<String> notified = new ArrayList<>();
+        final List<Long> progress = new ArrayList<>();
+        final long shredded = CryptoShredder.newBuilder()
+                .setKeyStore(keyStore)
+                .setCrypterFactory(factory)
+                .setBatchSize(10)
+                .addListener(notified::addAll)
+                .build()
+                .shred(scopes, (done, total) -> progress.add(done));
+
+        assertThat(shredded, equalTo(25L));
+        assertThat(progress, equalTo(Arrays.asList(10L, 20L, 25L)));
+        assertThat(notified, equalTo(scopes));
+        // Neither the cached crypter nor a new ring are available anymore
+        assertThat(crypter(factory, "scope0"), nullValue());
+        assertThat(crypter(factory, "scope1"), nullValue());
+        // The blind index rings are shredded along with the scopes
+        assertThat(signer(factory, "scope0"), nullValue());
+        assertThat(signer(factory, "scope1"), nullValue());
+        assertThat(keyStore.size(), equalTo(50));
+    }
+
+    @Test
+    public void blindIndexSignersAreCachedUntilTheirScopeIsInvalidated() {
+        final CrypterFactory factory = cachingFactory(new InMemoryKeyStore());
+        final Signer signer = signer(factory, "scope");
+        assertThat(signer, notNullValue());
+        assertThat(signer(factory, "scope"), sameInstance(signer));
+
+        factory.invalidateScopes(Collections.singletonList("scope"));
+        assertThat(signer(factory, "scope"), not(sameInstance(signer)));
+    }
+
+    private static Signer signer(CrypterFactory factory, String scope) {
+        return factory.createSigner(scope + BlindIndex.KEY_SCOPE_SUFFIX, KeyPurpose.SIGN_AND_VERIFY, DefaultKeyType.HMAC_SHA1,
+                BlindIndex.KEY_SIZE);
+    }
+
+    @Test
+    public void crypterLoadedWhileItsScopeIsInvalidatedIsNotCached() {
+        final KeyStoreKeyczarReaderFactory readerFactory = new KeyStoreKeyczarReaderFactory(new InMemoryKeyStore());
+        final AtomicReference<CrypterFactory> factory = new AtomicReference<>();
+        factory.set(new CrypterFactory((scope, purpose, type, size) -> {
+            // The scope is shredded while its key ring is being read
+            factory.get().invalidateScopes(Collections.singletonList(scope));
+            return readerFactory.create(scope, purpose, type, size);
+        }, SegmentedCache.<ScopeKey>newBuilder().setCapacity(100).build(ScopeKey::getScope)));
+
+        assertThat(crypter(factory.get(), "scope"), notNullValue());
+        assertThat(factory.get().getIfPresent("scope", KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128), nullValue());
+    }
+
+    @Test
+    public void otherNodesDropTheirCrypterOfShreddedScopes() throws Exception {
+        final InMemoryKeyStore keyStore = new InMemoryKeyStore();
+        final CrypterFactory otherNode = cachingFactory(keyStore);
+        assertThat(crypter(otherNode, "scope"), notNullValue());
+
+        final List<String> notified = new ArrayList<>();
+        try (ShredWatcher watcher = new ShredWatcher(keyStore, otherNode, Collections.<ShredListener>singletonList(notified::addAll),
+                3600000, ShredWatcher.DEFAULT_SKEW_MILLIS)) {
+            CryptoShredder.newBuilder().setKeyStore(keyStore).setCrypterFactory(cachingFactory(keyStore)).build()
+                    .shred(Collections.singletonList("scope"));
+            assertThat(otherNode.getIfPresent("scope", KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128), notNullValue());
+
+            watcher.poll();
+            assertThat(otherNode.getIfPresent("scope", KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128), nullValue());
+            assertThat(notified, equalTo(Collections.singletonList("scope")));
+        }
+    }
+
+    @Test
+    public void otherNodesDropTheirOffHeapCachedRingsOfShreddedScopes() throws Exception {
+        final InMemoryKeyStore keyStore = new InMemoryKeyStore();
+        try (OffHeapKeyRingCache cache = new OffHeapKeyRingCache(keyStore, 16)) {
+            final CrypterFactory otherNode = cachingFactory(cache);
+            assertThat(crypter(otherNode, "scope"), notNullValue());
+
+            // Polling through the cache drops its rings
+            try (ShredWatcher watcher = new ShredWatcher(cache, otherNode, Collections.<ShredListener>emptyList(),
+                    3600000, ShredWatcher.DEFAULT_SKEW_MILLIS)) {
+                CryptoShredder.newBuilder().setKeyStore(keyStore).setCrypterFactory(cachingFactory(keyStore)).build()
+                        .shred(Collections.singletonList("scope"));
+
+                watcher.poll();
+                assertThat(crypter(otherNode, "scope"), nullValue());
+            }
+        }
+    }
+
+    @Test
+    public void otherNodesTellTheirOffHeapCacheAboutShreddedScopes() throws Exception {
+        final InMemoryKeyStore keyStore = new InMemoryKeyStore();
+        try (OffHeapKeyRingCache cache = new OffHeapKeyRingCache(keyStore, 16)) {
+            final CrypterFactory otherNode = cachingFactory(cache);
+            assertThat(crypter(otherNode, "scope"), notNullValue());
+            assertThat(signer(otherNode, "scope"), notNullValue());
+
+            // Polling the backing store, with the cache as a listener
+            try (ShredWatcher watcher = new ShredWatcher(keyStore, otherNode, Collections.<ShredListener>singletonList(cache),
+                    3600000, ShredWatcher.DEFAULT_SKEW_MILLIS)) {
+                CryptoShredder.newBuilder().setKeyStore(keyStore).setCrypterFactory(cachingFactory(keyStore)).build()
+                        .shred(Collections.singletonList("scope"));
+
+                watcher.poll();
+                assertThat(crypter(otherNode, "scope"), nullValue());
+                assertThat(signer(otherNode, "scope"), nullValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.relateiq;
+
+import com.relateiq.keystore.InMemoryKeyStore;
+import com.relateiq.keystore.KeyRing;
+import com.relateiq.keystore.KeyStoreKeyczarReaderFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.KeyMetadata;
+import org.keyczar.KeyVersion;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class VersionedCrypterTest {
+    private static final byte[] PLAINTEXT = "Something encrypted".getBytes(CipherEngine.UTF8_CHARSET);
+
+    private final Map<Integer, String> keys = new TreeMap<>();
+    private final InMemoryKeyStore keyStore = new InMemoryKeyStore();
+
+    private static KeyRing ring(String scope, Map<Integer, String> keys, int primary) {
+        final KeyMetadata metadata = new KeyMetadata(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES);
+        for (int version : keys.keySet()) {
+            metadata.addVersion(new KeyVersion(version, version == primary ? KeyStatus.PRIMARY : KeyStatus.ACTIVE, false));
+        }
+        return KeyRing.newBuilder().setScope(scope).setMetadata(metadata.toString()).setKeys(keys).build();
+    }
+
+    private Crypter crypter(CrypterFactory factory, String scope) {
+        return factory.create(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+    }
+
+    @Before
+    public void setup() throws KeyczarException {
+        // A ring that was rotated twice; version 2 is the primary
+        for (int version = 0; version < 3; version++) {
+            keys.put(version, DefaultKeyType.AES.getBuilder().generate(128).toString());
+        }
+        keyStore.putIfAbsent(ring("rotated", keys, 2));
+        for (int version = 0; version < 3; version++) {
+            keyStore.putIfAbsent(ring("version" + version, Collections.singletonMap(version, keys.get(version)), version));
+        }
+    }
+
+    @Test
+    public void onlyThePrimaryVersionIsLoadedUpFront() throws KeyczarException {
+        final CrypterFactory factory = new CrypterFactory(new KeyStoreKeyczarReaderFactory(keyStore));
+        final VersionedCrypter rotated = (VersionedCrypter) crypter(factory, "rotated");
+        assertThat(rotated.getLoadedVersions(), equalTo(Collections.singletonList(2)));
+
+        assertThat(rotated.decrypt(rotated.encrypt(PLAINTEXT)), equalTo(PLAINTEXT));
+        assertThat(crypter(factory, "version2").decrypt(rotated.encrypt(PLAINTEXT)), equalTo(PLAINTEXT));
+        assertThat(rotated.getLoadedVersions(), equalTo(Collections.singletonList(2)));
+    }
+
+    @Test
+    public void olderVersionsAreLoadedOneAtATimeOnDemand() throws KeyczarException {
+        final CrypterFactory factory = new CrypterFactory(new KeyStoreKeyczarReaderFactory(keyStore));
+        final byte[] fromVersion1 = crypter(factory, "version1").encrypt(PLAINTEXT);
+        final byte[] fromVersion0 = crypter(factory, "version0").encrypt(PLAINTEXT);
+
+        final VersionedCrypter rotated = (VersionedCrypter) crypter(factory, "rotated");
+        assertThat(rotated.decrypt(fromVersion1), equalTo(PLAINTEXT));
+        assertThat(rotated.getLoadedVersions(), equalTo(Arrays.asList(1, 2)));
+
+        assertThat(rotated.decrypt(fromVersion0), equalTo(PLAINTEXT));
+        assertThat(rotated.decrypt(fromVersion0), equalTo(PLAINTEXT));
+        assertThat(rotated.getLoadedVersions(), equalTo(Arrays.asList(0, 1, 2)));
+
+        final Map<Integer, Long> decrypts = factory.getKeyVersionUsage().getDecryptCounts();
+        assertThat(decrypts.get(0), equalTo(2L));
+        assertThat(decrypts.get(1), equalTo(1L));
+    }
+
+    @Test(expected = KeyczarException.class)
+    public void ciphertextsOfOtherRingsAreRejected() throws KeyczarException {
+        final CrypterFactory factory = new CrypterFactory(new KeyStoreKeyczarReaderFactory(keyStore));
+        keyStore.putIfAbsent(ring("other", Collections.singletonMap(0, DefaultKeyType.AES.getBuilder().generate(128).toString()), 0));
+        crypter(factory, "rotated").decrypt(crypter(factory, "other").encrypt(PLAINTEXT));
+    }
+}
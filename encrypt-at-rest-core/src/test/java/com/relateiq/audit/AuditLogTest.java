@@ -0,0 +1,85 @@
+package com.relateiq.audit;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+public class AuditLogTest {
+    private static final long HOUR = 3600000;
+
+    private final List<AuditRecord> written = new CopyOnWriteArrayList<>();
+    private final AuditSink sink = new AuditSink() {
+        @Override
+        public void write(List<AuditRecord> records) {
+            written.addAll(records);
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Test
+    public void operationsOnAScopeAreAggregatedPerWindow() throws IOException {
+        final AuditLog log = AuditLog.newBuilder().setSink(sink).setService("reader").setWindowMillis(HOUR).build();
+        for (int i = 0; i < 100; i++) {
+            log.record("scope" + (i % 2), AuditRecord.Operation.DECRYPT);
+        }
+        log.record("scope0", AuditRecord.Operation.ENCRYPT);
+        log.close();
+
+        assertThat(written.size(), equalTo(3));
+        long decrypts = 0;
+        for (AuditRecord record : written) {
+            assertThat(record.getService(), equalTo("reader"));
+            if (record.getOperation() == AuditRecord.Operation.DECRYPT) {
+                assertThat(record.getCount(), equalTo(50L));
+                decrypts += record.getCount();
+            } else {
+                assertThat(record.getScope(), equalTo("scope0"));
+                assertThat(record.getCount(), equalTo(1L));
+            }
+        }
+        assertThat(decrypts, equalTo(100L));
+        assertThat(log.getRecordedCount(), equalTo(101L));
+        assertThat(log.getWrittenCount(), equalTo(3L));
+    }
+
+    @Test
+    public void overloadDropsAndCountsRecords() throws IOException {
+        final AuditLog log = AuditLog.newBuilder().setSink(sink).setWindowMillis(HOUR).setMaxPending(1).build();
+        log.record("scope0", AuditRecord.Operation.DECRYPT);
+        log.record("scope1", AuditRecord.Operation.DECRYPT);
+        log.close();
+
+        assertThat(written.size(), equalTo(1));
+        assertThat(log.getDroppedCount(), equalTo(1L));
+
+        assertThat(log.record("scope0", AuditRecord.Operation.DECRYPT), equalTo(false));
+        assertThat(log.getDroppedCount(), equalTo(2L));
+    }
+
+    @Test
+    public void fileSinkAppendsJsonLines() throws IOException {
+        final File file = File.createTempFile("audit", ".log");
+        file.deleteOnExit();
+
+        final AuditLog log = AuditLog.newBuilder().setSink(new FileAuditSink(file.getPath())).setService("writer").build();
+        log.record("scope\"0", AuditRecord.Operation.ENCRYPT);
+        log.close();
+
+        final List<String> lines = Files.readAllLines(file.toPath());
+        assertThat(lines.size(), equalTo(1));
+        assertThat(lines.get(0), containsString("\"scope\":\"scope\\\"0\""));
+        assertThat(lines.get(0), containsString("\"operation\":\"ENCRYPT\""));
+        assertThat(lines.get(0), containsString("\"count\":1"));
+    }
+}
@@ -0,0 +1,73 @@
+package com.relateiq.cache;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+public class SegmentedCacheTest {
+    private static boolean use(SegmentedCache<String, String> cache, String key) {
+        if (cache.getIfPresent(key) != null) {
+            return true;
+        }
+        cache.put(key, key);
+        return false;
+    }
+
+    @Test
+    public void hotScopesSurviveAScanOfOneOffScopes() {
+        final SegmentedCache<String, String> cache = SegmentedCache.<String>newBuilder()
+                .setCapacity(90)
+                .setConcurrency(1)
+                .build(key -> key);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                use(cache, "tenant" + i);
+            }
+        }
+
+        // An LRU cache of this size would miss every hot scope: 50 of them interleaved with 50 one-off scopes do not fit
+        int hits = 0;
+        for (int i = 0; i < 10000; i++) {
+            use(cache, "scan" + i);
+            if (use(cache, "tenant" + (i % 50))) {
+                hits++;
+            }
+        }
+        assertThat(hits, greaterThan(9500));
+    }
+
+    @Test
+    public void quotasBoundTheScopesOfAPrefix() {
+        final SegmentedCache<String, String> cache = SegmentedCache.<String>newBuilder()
+                .setCapacity(100)
+                .setConcurrency(1)
+                .addQuota("batch:", 10)
+                .addQuota("batch:big:", 5)
+                .build(key -> key);
+        for (int i = 0; i < 80; i++) {
+            use(cache, "tenant" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            use(cache, "batch:" + i);
+            use(cache, "batch:big:" + i);
+        }
+
+        assertThat(cache.size(), lessThan(96L));
+        assertThat(cache.getHitRate("batch:"), equalTo(0.0));
+        for (int i = 0; i < 80; i++) {
+            assertThat(cache.getIfPresent("tenant" + i), equalTo("tenant" + i));
+        }
+    }
+
+    @Test
+    public void invalidatedScopesAreReloaded() {
+        final SegmentedCache<String, String> cache = SegmentedCache.<String>newBuilder().setCapacity(10).build(key -> key);
+        cache.put("tenant", "old");
+        cache.invalidate("tenant");
+        assertThat(use(cache, "tenant"), equalTo(false));
+        assertThat(cache.getMissCount(), equalTo(1L));
+    }
+}
@@ -0,0 +1,80 @@
+package com.relateiq.keystore;
+
+import com.relateiq.CipherEngine;
+import com.relateiq.CrypterFactory;
+import com.relateiq.KeyMode;
+import org.junit.Test;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.IsNot.not;
+
+public class DerivedKeyczarReaderFactoryTest {
+    private static final byte[] PLAINTEXT = "Something encrypted".getBytes(CipherEngine.UTF8_CHARSET);
+
+    private static byte[] secret(int seed) {
+        final byte[] secret = new byte[MasterKeys.MIN_SECRET_LENGTH];
+        Arrays.fill(secret, (byte) seed);
+        return secret;
+    }
+
+    private static CrypterFactory derived(KeyStore stored, MasterKeys masterKeys) {
+        return new CrypterFactory(new KeyStoreKeyczarReaderFactory(stored), null, new DerivedKeyczarReaderFactory(masterKeys));
+    }
+
+    private static Crypter crypter(CrypterFactory factory, String scope) {
+        return factory.create(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+    }
+
+    @Test
+    public void keysAreDerivedPerScopeWithoutAStore() throws KeyczarException {
+        final MasterKeys masterKeys = MasterKeys.newBuilder().addKey(1, secret(1)).build();
+        final InMemoryKeyStore stored = new InMemoryKeyStore();
+
+        final byte[] ciphertext = crypter(derived(stored, masterKeys), "scope1").encrypt(PLAINTEXT);
+        assertThat(KeyMode.of(ciphertext), equalTo(KeyMode.DERIVED));
+
+        // Any node with the same master key derives the same keys
+        assertThat(crypter(derived(stored, masterKeys), "scope1").decrypt(ciphertext), equalTo(PLAINTEXT));
+        assertThat(stored.size(), equalTo(0));
+
+        final DerivedKeyczarReaderFactory readerFactory = new DerivedKeyczarReaderFactory(masterKeys);
+        assertThat(readerFactory.create("scope1", KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128).getKey(),
+                not(readerFactory.create("scope2", KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128).getKey()));
+    }
+
+    @Test(expected = KeyczarException.class)
+    public void otherScopesCanNotDecrypt() throws KeyczarException {
+        final CrypterFactory factory = derived(new InMemoryKeyStore(), MasterKeys.newBuilder().addKey(1, secret(1)).build());
+        crypter(factory, "scope2").decrypt(crypter(factory, "scope1").encrypt(PLAINTEXT));
+    }
+
+    @Test
+    public void rotatedMasterKeysStillDecryptOlderValues() throws KeyczarException {
+        final InMemoryKeyStore stored = new InMemoryKeyStore();
+        final byte[] before = crypter(derived(stored, MasterKeys.newBuilder().addKey(1, secret(1)).build()), "scope").encrypt(PLAINTEXT);
+
+        final Crypter rotated = crypter(derived(stored, MasterKeys.newBuilder().addKey(1, secret(1)).addKey(2, secret(2)).build()), "scope");
+        assertThat(rotated.decrypt(before), equalTo(PLAINTEXT));
+
+        final byte[] after = rotated.encrypt(PLAINTEXT);
+        final Crypter retired = crypter(derived(stored, MasterKeys.newBuilder().addKey(2, secret(2)).build()), "scope");
+        assertThat(retired.decrypt(after), equalTo(PLAINTEXT));
+    }
+
+    @Test
+    public void valuesEncryptedWithStoredKeysRemainReadable() throws KeyczarException {
+        final InMemoryKeyStore stored = new InMemoryKeyStore();
+        final byte[] legacy = crypter(new CrypterFactory(new KeyStoreKeyczarReaderFactory(stored)), "scope").encrypt(PLAINTEXT);
+        assertThat(KeyMode.of(legacy), equalTo(KeyMode.STORED));
+
+        assertThat(crypter(derived(stored, MasterKeys.newBuilder().addKey(1, secret(1)).build()), "scope").decrypt(legacy),
+                equalTo(PLAINTEXT));
+    }
+}
@@ -0,0 +1,140 @@
+package com.relateiq.keystore;
+
+import com.relateiq.CipherEngine;
+import com.relateiq.CrypterFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class KeyStoreTest {
+    private List<KeyStore> keyStores;
+
+    @Before
+    public void setup() throws Exception {
+        final Crypter master = new CrypterFactory(new KeyStoreKeyczarReaderFactory(new InMemoryKeyStore()))
+                .create("master", KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+        keyStores = Arrays.asList(
+                new InMemoryKeyStore(),
+                new FileKeyStore(Files.createTempDirectory("keystore")),
+                new EncryptedKeyStore(new InMemoryKeyStore(), master),
+                new OffHeapKeyRingCache(new InMemoryKeyStore(), 16));
+    }
+
+    @Test
+    public void keyStoresKeepTheFirstRingOfAScope() throws Exception {
+        for (KeyStore keyStore : keyStores) {
+            final String scope = newScope() + "/bidx";
+            assertThat(keyStore.get(scope), nullValue());
+
+            final KeyRing first = KeyRings.generate(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+            final KeyRing second = KeyRings.generate(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+            assertThat(keyStore.putIfAbsent(first), nullValue());
+            assertThat(keyStore.putIfAbsent(second), equalTo(first));
+            assertThat(keyStore.get(scope), equalTo(first));
+
+            keyStore.delete(scope);
+            assertThat(keyStore.get(scope), nullValue());
+        }
+    }
+
+    @Test
+    public void keyStoresGetManyRingsAtOnce() throws Exception {
+        for (KeyStore keyStore : keyStores) {
+            final List<String> scopes = Arrays.asList(newScope(), newScope(), newScope(), newScope(), newScope());
+            for (String scope : scopes.subList(0, 3)) {
+                keyStore.putIfAbsent(KeyRings.generate(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128));
+            }
+
+            final Map<String, KeyRing> rings = keyStore.getAll(scopes);
+            assertThat(rings.keySet(), equalTo((Set<String>) new HashSet<>(scopes.subList(0, 3))));
+        }
+    }
+
+    @Test
+    public void keyStoresShredRingsForGood() throws Exception {
+        for (KeyStore keyStore : keyStores) {
+            final List<String> scopes = Arrays.asList(newScope(), newScope(), newScope());
+            keyStore.putIfAbsent(KeyRings.generate(scopes.get(0), KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128));
+
+            final long before = System.currentTimeMillis();
+            keyStore.shredAll(scopes);
+            for (String scope : scopes) {
+                assertThat(KeyRings.isTombstone(keyStore.get(scope)), equalTo(true));
+                final KeyRing recreated = KeyRings.generate(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+                assertThat(KeyRings.isTombstone(keyStore.putIfAbsent(recreated)), equalTo(true));
+            }
+
+            // Stores that keep track of shredded scopes report all of them
+            final Set<String> shredded = new HashSet<>(keyStore.getShreddedSince(before));
+            assertThat(shredded.isEmpty() || shredded.equals(new HashSet<>(scopes)), equalTo(true));
+            assertThat(new CrypterFactory(new KeyStoreKeyczarReaderFactory(keyStore))
+                    .create(scopes.get(0), KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128), nullValue());
+        }
+    }
+
+    @Test
+    public void crypterFactoryCreatesAndReusesRingsThroughAKeyStore() throws Exception {
+        for (KeyStore keyStore : keyStores) {
+            final String scope = newScope();
+            final Crypter crypter = new CrypterFactory(new KeyStoreKeyczarReaderFactory(keyStore))
+                    .create(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+            assertThat(crypter, notNullValue());
+            final String ciphertext = CipherEngine.encrypt(crypter, "Something encrypted".getBytes(CipherEngine.UTF8_CHARSET));
+            assertThat(ciphertext, not("Something encrypted"));
+
+            // A second factory finds the ring the first one created
+            final Crypter again = new CrypterFactory(new KeyStoreKeyczarReaderFactory(keyStore))
+                    .create(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+            assertThat(new String(CipherEngine.decrypt(again, ciphertext), CipherEngine.UTF8_CHARSET), equalTo("Something encrypted"));
+        }
+    }
+
+    @Test
+    public void offHeapCacheEvictsLeastRecentlyUsedRings() throws Exception {
+        final InMemoryKeyStore backing = new InMemoryKeyStore();
+        try (OffHeapKeyRingCache cache = new OffHeapKeyRingCache(backing, 2, 1024, 1, 0, TimeUnit.SECONDS)) {
+            final List<String> scopes = Arrays.asList(newScope(), newScope(), newScope());
+            for (String scope : scopes) {
+                cache.putIfAbsent(KeyRings.generate(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128));
+            }
+            assertThat(cache.getEvictionCount(), equalTo(1L));
+
+            // The first ring was evicted, but is still in the backing store
+            assertThat(cache.get(scopes.get(0)), equalTo(backing.get(scopes.get(0))));
+            assertThat(cache.getMissCount(), equalTo(1L));
+            assertThat(cache.get(scopes.get(0)), equalTo(backing.get(scopes.get(0))));
+            assertThat(cache.getHitCount(), equalTo(1L));
+        }
+    }
+
+    @Test
+    public void offHeapCacheSkipsRingsLargerThanASlot() throws Exception {
+        try (OffHeapKeyRingCache cache = new OffHeapKeyRingCache(new InMemoryKeyStore(), 4, 64, 1, 0, TimeUnit.SECONDS)) {
+            final KeyRing ring = KeyRings.generate(newScope(), KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+            cache.putIfAbsent(ring);
+            assertThat(cache.getOversizedCount(), equalTo(1L));
+            assertThat(cache.get(ring.getScope()), equalTo(ring));
+        }
+    }
+
+    private static String newScope() {
+        return UUID.randomUUID().toString();
+    }
+}
@@ -0,0 +1,53 @@
+package com.relateiq.event.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder counterpart of {@link com.relateiq.event.DocumentEvent}.
+ */
+@Name("com.relateiq.Document")
+@Label("Document Encryption")
+@Category("Encryption at Rest")
+@Description("The cost of encrypting or decrypting a whole document")
+final class JfrDocumentEvent extends jdk.jfr.Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    @Label("Scope Hash")
+    int scopeHash;
+
+    @Label("Fields")
+    int fieldCount;
+
+    @Label("Payload")
+    @DataAmount
+    long payloadBytes;
+
+    @Label("Key Resolution")
+    @Timespan
+    long keyResolution;
+
+    @Label("Serialization")
+    @Timespan
+    long serialization;
+
+    @Label("Crypto")
+    @Timespan
+    long crypto;
+
+    @Label("Encoding")
+    @Timespan
+    long encoding;
+
+    @Label("Total")
+    @Timespan
+    long total;
+}
@@ -0,0 +1,70 @@
+package com.relateiq.event.jfr;
+
+import com.relateiq.event.DocumentEvent;
+import com.relateiq.event.EncryptionListener;
+import com.relateiq.event.FieldEvent;
+import com.relateiq.event.KeyEvent;
+
+/**
+ * Hands every {@link com.relateiq.event.EncryptionEvents event} on to Java Flight Recorder, as {@code com.relateiq.Document},
+ * {@code com.relateiq.Field} and {@code com.relateiq.KeyResolution} events in the "Encryption at Rest" category.  Events are
+ * only filled in and committed while a recording has them enabled, so the listener can stay registered for good:
+ * <pre>
+ * EncryptionEvents.setListener(new JfrEncryptionListener());
+ * </pre>
+ * Field events are disabled by default; enable {@code com.relateiq.Field} in the recording settings when the cost of individual
+ * fields is needed.
+ */
+public class JfrEncryptionListener implements EncryptionListener {
+    @Override
+    public void documentProcessed(DocumentEvent event) {
+        final JfrDocumentEvent recorded = new JfrDocumentEvent();
+        if (!recorded.isEnabled()) {
+            return;
+        }
+
+        recorded.operation = event.getOperation().name();
+        recorded.entityClass = event.getEntityClass();
+        recorded.scopeHash = event.getScopeHash();
+        recorded.fieldCount = event.getFieldCount();
+        recorded.payloadBytes = event.getPayloadBytes();
+        recorded.keyResolution = event.getKeyResolutionNanos();
+        recorded.serialization = event.getSerializationNanos();
+        recorded.crypto = event.getCryptoNanos();
+        recorded.encoding = event.getEncodingNanos();
+        recorded.total = event.getDurationNanos();
+        recorded.commit();
+    }
+
+    @Override
+    public void fieldProcessed(FieldEvent event) {
+        final JfrFieldEvent recorded = new JfrFieldEvent();
+        if (!recorded.isEnabled()) {
+            return;
+        }
+
+        recorded.operation = event.getOperation().name();
+        recorded.entityClass = event.getEntityClass();
+        recorded.field = event.getField();
+        recorded.payloadBytes = event.getPayloadBytes();
+        recorded.serialization = event.getSerializationNanos();
+        recorded.crypto = event.getCryptoNanos();
+        recorded.encoding = event.getEncodingNanos();
+        recorded.total = event.getDurationNanos();
+        recorded.commit();
+    }
+
+    @Override
+    public void keysResolved(KeyEvent event) {
+        final JfrKeyEvent recorded = new JfrKeyEvent();
+        if (!recorded.isEnabled()) {
+            return;
+        }
+
+        recorded.source = event.getSource();
+        recorded.scopeHash = event.getScopeHash();
+        recorded.outcome = event.getOutcome().name();
+        recorded.total = event.getDurationNanos();
+        recorded.commit();
+    }
+}
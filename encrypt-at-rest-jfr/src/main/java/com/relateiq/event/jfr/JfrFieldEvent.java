@@ -0,0 +1,49 @@
+package com.relateiq.event.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder counterpart of {@link com.relateiq.event.FieldEvent}.  There is one per encrypted field, so it is only recorded
+ * when a recording enables it explicitly.
+ */
+@Name("com.relateiq.Field")
+@Label("Field Encryption")
+@Category("Encryption at Rest")
+@Description("The cost of encrypting or decrypting a single field")
+@Enabled(false)
+final class JfrFieldEvent extends jdk.jfr.Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    @Label("Field")
+    String field;
+
+    @Label("Payload")
+    @DataAmount
+    long payloadBytes;
+
+    @Label("Serialization")
+    @Timespan
+    long serialization;
+
+    @Label("Crypto")
+    @Timespan
+    long crypto;
+
+    @Label("Encoding")
+    @Timespan
+    long encoding;
+
+    @Label("Total")
+    @Timespan
+    long total;
+}
@@ -0,0 +1,29 @@
+package com.relateiq.event.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder counterpart of {@link com.relateiq.event.KeyEvent}.
+ */
+@Name("com.relateiq.KeyResolution")
+@Label("Key Resolution")
+@Category("Encryption at Rest")
+@Description("A lookup of the keys of a scope")
+final class JfrKeyEvent extends jdk.jfr.Event {
+    @Label("Source")
+    String source;
+
+    @Label("Scope Hash")
+    int scopeHash;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("Total")
+    @Timespan
+    long total;
+}
@@ -0,0 +1,102 @@
+package com.relateiq.event.jfr;
+
+import com.relateiq.event.DocumentEvent;
+import com.relateiq.event.FieldEvent;
+import com.relateiq.event.KeyEvent;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class JfrEncryptionListenerTest {
+    private final JfrEncryptionListener listener = new JfrEncryptionListener();
+
+    @Test
+    public void eventsAreRecordedWithTheirFields() throws IOException {
+        final List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("com.relateiq.Document");
+            recording.enable("com.relateiq.KeyResolution");
+            recording.start();
+
+            listener.documentProcessed(new DocumentEvent(DocumentEvent.Operation.SAVE, String.class, 42, 3, 1024,
+                    10, 20, 30, 40, 100));
+            listener.keysResolved(new KeyEvent("store", 42, KeyEvent.Outcome.LOADED, 50));
+            // Not enabled by the recording
+            listener.fieldProcessed(new FieldEvent(DocumentEvent.Operation.SAVE, String.class, "body", 512,
+                    10, 20, 30, 60));
+
+            recording.stop();
+            events = dump(recording);
+        }
+
+        assertThat(events.size(), equalTo(2));
+        final RecordedEvent document = find(events, "com.relateiq.Document");
+        assertThat(document.getString("operation"), equalTo("SAVE"));
+        assertThat(document.getClass("entityClass").getName(), equalTo(String.class.getName()));
+        assertThat(document.getInt("scopeHash"), equalTo(42));
+        assertThat(document.getInt("fieldCount"), equalTo(3));
+        assertThat(document.getLong("payloadBytes"), equalTo(1024L));
+        assertThat(document.getDuration("crypto").toNanos(), equalTo(30L));
+        assertThat(document.getDuration("total").toNanos(), equalTo(100L));
+
+        final RecordedEvent key = find(events, "com.relateiq.KeyResolution");
+        assertThat(key.getString("source"), equalTo("store"));
+        assertThat(key.getString("outcome"), equalTo("LOADED"));
+        assertThat(key.getDuration("total").toNanos(), equalTo(50L));
+    }
+
+    @Test
+    public void fieldEventsAreRecordedOnRequest() throws IOException {
+        final List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("com.relateiq.Field");
+            recording.start();
+
+            listener.fieldProcessed(new FieldEvent(DocumentEvent.Operation.LOAD, String.class, "body", 512,
+                    10, 20, 30, 60));
+
+            recording.stop();
+            events = dump(recording);
+        }
+
+        assertThat(events.size(), equalTo(1));
+        assertThat(events.get(0).getString("field"), equalTo("body"));
+        assertThat(events.get(0).getString("operation"), equalTo("LOAD"));
+        assertThat(events.get(0).getLong("payloadBytes"), equalTo(512L));
+    }
+
+    private static List<RecordedEvent> dump(Recording recording) throws IOException {
+        final Path file = Files.createTempFile("encryption", ".jfr");
+        try {
+            recording.dump(file);
+            final List<RecordedEvent> events = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().startsWith("com.relateiq.")) {
+                    events.add(event);
+                }
+            }
+            return events;
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static RecordedEvent find(List<RecordedEvent> events, String name) {
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                return event;
+            }
+        }
+        throw new AssertionError("No " + name + " event was recorded");
+    }
+}
@@ -0,0 +1,28 @@
+package com.relateiq.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * Serializes single field values as BSON, for fields encrypted with {@link com.relateiq.annotations.EncryptAtRest.Codec#BSON}.
+ * BSON only encodes documents, so the value is wrapped in one with a single field.
+ */
+public final class BsonValues {
+    static final String FIELD_VALUE = "v";
+
+    private BsonValues() {
+    }
+
+    public static byte[] encode(Object value) {
+        return new DefaultDBEncoder().encode(new BasicDBObject(FIELD_VALUE, value));
+    }
+
+    /**
+     * @return the value, with embedded documents and arrays decoded as database objects
+     */
+    public static Object decode(byte[] bytes) {
+        return new DefaultDBDecoder().decode(bytes, (DBCollection) null).get(FIELD_VALUE);
+    }
+}
@@ -0,0 +1,58 @@
+package com.relateiq.mongo;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.relateiq.CrypterFactory;
+import org.keyczar.Crypter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decrypts the configured {@link EncryptedFields} of a collection as its documents are read, without going through Morphia's
+ * mapper.  Install with {@link DBCollection#setDBDecoderFactory(DBDecoderFactory)}.
+ * <p/>
+ * The scope of each document is read from the decoded document itself, so queries must not project it away.  Old, unencrypted
+ * values are returned as they were stored.
+ */
+public class EncryptAtRestDBDecoderFactory implements DBDecoderFactory {
+    private final CrypterFactory crypterFactory;
+    private final EncryptedFields fields;
+
+    public EncryptAtRestDBDecoderFactory(CrypterFactory crypterFactory, EncryptedFields fields) {
+        this.crypterFactory = crypterFactory;
+        this.fields = fields;
+    }
+
+    @Override
+    public DBDecoder create() {
+        return new DecryptingDBDecoder();
+    }
+
+    private DBObject decrypt(DBObject document) {
+        if (document == null) {
+            return null;
+        }
+
+        final Crypter crypter = fields.loadCrypter(crypterFactory, document);
+        if (crypter != null) {
+            fields.decryptAll(crypter, document);
+        }
+        return document;
+    }
+
+    private class DecryptingDBDecoder extends DefaultDBDecoder {
+        @Override
+        public DBObject decode(byte[] b, DBCollection collection) {
+            return decrypt(super.decode(b, collection));
+        }
+
+        @Override
+        public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+            return decrypt(super.decode(in, collection));
+        }
+    }
+}
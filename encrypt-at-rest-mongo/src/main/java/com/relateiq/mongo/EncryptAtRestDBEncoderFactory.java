@@ -0,0 +1,88 @@
+package com.relateiq.mongo;
+
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+import com.mongodb.DefaultDBEncoder;
+import com.relateiq.CrypterFactory;
+import org.bson.BSONObject;
+import org.bson.io.OutputBuffer;
+import org.keyczar.Crypter;
+
+/**
+ * Encrypts the configured {@link EncryptedFields} of a collection while its documents are being written as BSON, without going
+ * through Morphia's mapper.  Install with {@link com.mongodb.DBCollection#setDBEncoderFactory(DBEncoderFactory)}, alongside an
+ * {@link EncryptAtRestDBDecoderFactory} for the same fields.
+ * <p/>
+ * The scope is resolved once per document, and only once a value on an encrypted path is written; everything else is written
+ * exactly as {@link DefaultDBEncoder} would.  Documents without a scope are written unencrypted.
+ * <p/>
+ * The driver encodes queries, updates and projections with this encoder too.  Those are written as they are (see
+ * {@link EncryptedFields#isEncryptable}), so querying by scope never resolves a crypter, and operators on encrypted paths keep
+ * working.  Partial updates such as {@code $set} are therefore <b>not</b> encrypted: replace or save whole documents instead.
+ */
+public class EncryptAtRestDBEncoderFactory implements DBEncoderFactory {
+    private final CrypterFactory crypterFactory;
+    private final EncryptedFields fields;
+
+    public EncryptAtRestDBEncoderFactory(CrypterFactory crypterFactory, EncryptedFields fields) {
+        this.crypterFactory = crypterFactory;
+        this.fields = fields;
+    }
+
+    @Override
+    public DBEncoder create() {
+        return new EncryptingDBEncoder();
+    }
+
+    private class EncryptingDBEncoder extends DefaultDBEncoder {
+        private BSONObject document;
+        private boolean resolved;
+        private Crypter crypter;
+        private String prefix;
+
+        @Override
+        public int writeObject(OutputBuffer buf, BSONObject o) {
+            document = fields.isEncryptable(o) ? o : null;
+            try {
+                return super.writeObject(buf, o);
+            } finally {
+                document = null;
+                resolved = false;
+                crypter = null;
+                prefix = null;
+            }
+        }
+
+        @Override
+        protected void _putObjectField(String name, Object value) {
+            if (document == null) {
+                super._putObjectField(name, value);
+                return;
+            }
+
+            final String path = prefix == null ? name : prefix + "." + name;
+            if (fields.isEncrypted(path)) {
+                final Crypter crypter = EncryptedFields.isOperator(value) ? null : getCrypter();
+                super._putObjectField(name, crypter == null ? value : fields.encryptValue(crypter, value));
+            } else if (fields.isParent(path)) {
+                final String parent = prefix;
+                prefix = path;
+                try {
+                    super._putObjectField(name, value);
+                } finally {
+                    prefix = parent;
+                }
+            } else {
+                super._putObjectField(name, value);
+            }
+        }
+
+        private Crypter getCrypter() {
+            if (!resolved) {
+                crypter = fields.loadCrypter(crypterFactory, document);
+                resolved = true;
+            }
+            return crypter;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.relateiq.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.relateiq.CipherEngine;
+import com.relateiq.CrypterFactory;
+import com.relateiq.stream.ChunkCodec;
+import com.relateiq.stream.ChunkSink;
+import com.relateiq.stream.ChunkSource;
+import com.relateiq.stream.DecryptingInputStream;
+import com.relateiq.stream.EncryptingOutputStream;
+import org.bson.types.ObjectId;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores payloads too large to encrypt in a single field (attachments, raw message bodies) as encrypted chunks, in a
+ * GridFS-style pair of collections: {@code <bucket>.files} holds one document per payload with its scope and length, and
+ * {@code <bucket>.chunks} holds the encrypted chunks keyed by {@code files_id}, {@code version} and {@code n}.
+ * <p/>
+ * Every write goes to a fresh version, which the files document only points to once the write is complete, so readers keep
+ * seeing the previous payload until then and an aborted write leaves it intact.  Chunks are bound to the id and version of their
+ * payload (see {@link ChunkCodec}), so they can not be swapped between payloads either.
+ * <p/>
+ * Concurrent writes to the same id never touch each other's chunks: the write started last wins, whatever order they complete
+ * in.  The version a write replaces is only retired, so that readers still streaming it can finish; retired versions, and the
+ * versions of writes that were never completed, are deleted by {@link #sweep} once they are older than its grace period.
+ * <p/>
+ * Payloads are written and read as streams using the same per-scope keys as {@link EncryptAtRestInterceptor}, holding no more
+ * than one chunk in memory at a time.
+ */
+public class EncryptedChunkStore {
+    public static final String FIELD_SCOPE = "scope";
+    public static final String FIELD_LENGTH = "length";
+    public static final String FIELD_CHUNK_SIZE = "chunkSize";
+    public static final String FIELD_UPLOAD_DATE = "uploadDate";
+    public static final String FIELD_VERSION = "version";
+    public static final String FIELD_FILES_ID = "files_id";
+    public static final String FIELD_N = "n";
+    public static final String FIELD_DATA = "data";
+    public static final String FIELD_RETIRED = "retired";
+
+    private final CrypterFactory crypterFactory;
+    private final DBCollection files;
+    private final DBCollection chunks;
+    private final int chunkSize;
+    private final KeyPurpose purpose;
+    private final DefaultKeyType type;
+    private final int size;
+
+    public EncryptedChunkStore(CrypterFactory crypterFactory, DB db, String bucket) {
+        this(crypterFactory, db, bucket, ChunkCodec.DEFAULT_CHUNK_SIZE, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+    }
+
+    public EncryptedChunkStore(CrypterFactory crypterFactory, DB db, String bucket, int chunkSize,
+                               KeyPurpose purpose, DefaultKeyType type, int size) {
+        this.crypterFactory = crypterFactory;
+        this.files = db.getCollection(bucket + ".files");
+        this.chunks = db.getCollection(bucket + ".chunks");
+        this.chunkSize = chunkSize;
+        this.purpose = purpose;
+        this.type = type;
+        this.size = size;
+
+        chunks.ensureIndex(new BasicDBObject(FIELD_FILES_ID, 1).append(FIELD_VERSION, 1).append(FIELD_N, 1),
+                new BasicDBObject("unique", true));
+    }
+
+    /**
+     * Replaces any previous payload stored under the same id once the returned stream is closed; until then, and if the stream
+     * is never closed, readers see the previous payload.
+     *
+     * @param id    id of the payload
+     * @param scope scope whose keys encrypt the payload
+     */
+    public OutputStream create(final Object id, final String scope) throws IOException {
+        final Crypter crypter = loadCrypter(scope);
+        final ObjectId version = ObjectId.get();
+
+        return new EncryptingOutputStream(crypter, getPayloadId(id, version), new ChunkSink() {
+            @Override
+            public void write(long index, byte[] ciphertext) {
+                chunks.insert(new BasicDBObject(FIELD_FILES_ID, id).append(FIELD_VERSION, version).append(FIELD_N, index)
+                        .append(FIELD_DATA, ciphertext));
+            }
+
+            @Override
+            public void close(long length, int chunkSize) {
+                swap(id, version, new BasicDBObject("_id", id)
+                        .append(FIELD_SCOPE, scope)
+                        .append(FIELD_VERSION, version)
+                        .append(FIELD_LENGTH, length)
+                        .append(FIELD_CHUNK_SIZE, chunkSize)
+                        .append(FIELD_UPLOAD_DATE, new Date()));
+            }
+        }, chunkSize);
+    }
+
+    /**
+     * Points the files document to the given version, unless a write started after it has already replaced the payload, and
+     * retires the version it replaces.
+     */
+    private void swap(Object id, ObjectId version, DBObject file) {
+        final DBObject older = new BasicDBObject("_id", id).append("$or", Arrays.asList(
+                new BasicDBObject(FIELD_VERSION, new BasicDBObject("$lt", version)),
+                new BasicDBObject(FIELD_VERSION, new BasicDBObject("$exists", false))));
+        while (true) {
+            final DBObject replaced = files.findAndModify(older, null, null, false, file, false, false);
+            if (replaced != null) {
+                chunks.update(new BasicDBObject(FIELD_FILES_ID, id).append(FIELD_VERSION, replaced.get(FIELD_VERSION)),
+                        new BasicDBObject("$set", new BasicDBObject(FIELD_RETIRED, new Date())), false, true);
+                return;
+            }
+
+            try {
+                files.insert(file, WriteConcern.SAFE);
+                return;
+            } catch (MongoException.DuplicateKey e) {
+                final DBObject newer = new BasicDBObject("_id", id).append(FIELD_VERSION, new BasicDBObject("$gte", version));
+                if (files.findOne(newer) != null) {
+                    // Nobody ever read this version
+                    chunks.remove(new BasicDBObject(FIELD_FILES_ID, id).append(FIELD_VERSION, version));
+                    return;
+                }
+                // An older version was written in the meantime: replace it
+            }
+        }
+    }
+
+    /**
+     * Deletes the chunks of retired versions, and of writes that were never completed, once they are older than the grace
+     * period.  The grace period must be longer than any read of a payload, and than any write, to the second.
+     */
+    public void sweep(long gracePeriod, TimeUnit unit) {
+        final Date cutoff = new Date(System.currentTimeMillis() - unit.toMillis(gracePeriod));
+        chunks.remove(new BasicDBObject(FIELD_RETIRED, new BasicDBObject("$lte", cutoff)));
+
+        // Versions are timestamped to the second: this is the first version of the second after the cutoff
+        final ObjectId started = new ObjectId(new Date(cutoff.getTime() + 1000), 0, 0);
+        final DBObject unretired = new BasicDBObject("$exists", false);
+        for (Object version : chunks.distinct(FIELD_VERSION,
+                new BasicDBObject(FIELD_VERSION, new BasicDBObject("$lt", started)).append(FIELD_RETIRED, unretired))) {
+            final DBObject chunk = chunks.findOne(new BasicDBObject(FIELD_VERSION, version), new BasicDBObject(FIELD_FILES_ID, 1));
+            if (chunk == null) {
+                continue;
+            }
+            final Object id = chunk.get(FIELD_FILES_ID);
+            if (files.findOne(new BasicDBObject("_id", id).append(FIELD_VERSION, version)) == null) {
+                chunks.remove(new BasicDBObject(FIELD_FILES_ID, id).append(FIELD_VERSION, version)
+                        .append(FIELD_RETIRED, unretired));
+            }
+        }
+    }
+
+    public InputStream open(Object id) throws IOException {
+        return open(id, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the plaintext bytes {@code [offset, offset + length)} of a payload, decrypting only the chunks that overlap them.
+     */
+    public InputStream open(final Object id, long offset, long length) throws IOException {
+        final DBObject file = files.findOne(new BasicDBObject("_id", id));
+        if (file == null) {
+            throw new FileNotFoundException("No encrypted payload " + id);
+        }
+
+        final Object version = file.get(FIELD_VERSION);
+        return new DecryptingInputStream(loadCrypter((String) file.get(FIELD_SCOPE)), getPayloadId(id, version), new ChunkSource() {
+            @Override
+            public byte[] read(long index) {
+                final DBObject chunk = chunks.findOne(new BasicDBObject(FIELD_FILES_ID, id).append(FIELD_VERSION, version)
+                        .append(FIELD_N, index));
+                return chunk == null ? null : (byte[]) chunk.get(FIELD_DATA);
+            }
+        }, ((Number) file.get(FIELD_LENGTH)).longValue(), ((Number) file.get(FIELD_CHUNK_SIZE)).intValue(), offset, length);
+    }
+
+    /**
+     * @return the plaintext length of the payload, or -1 if there is none
+     */
+    public long getLength(Object id) {
+        final DBObject file = files.findOne(new BasicDBObject("_id", id), new BasicDBObject(FIELD_LENGTH, 1));
+        return file == null ? -1 : ((Number) file.get(FIELD_LENGTH)).longValue();
+    }
+
+    public void delete(Object id) {
+        files.remove(new BasicDBObject("_id", id));
+        chunks.remove(new BasicDBObject(FIELD_FILES_ID, id));
+    }
+
+    /**
+     * Versions are ObjectIds, whose fixed-length string form comes first so that no two id and version pairs run together
+     */
+    private static byte[] getPayloadId(Object id, Object version) {
+        return (version + ":" + id).getBytes(CipherEngine.UTF8_CHARSET);
+    }
+
+    private Crypter loadCrypter(String scope) throws IOException {
+        final Crypter crypter = crypterFactory.create(scope, purpose, type, size);
+        if (crypter == null) {
+            throw new IOException("Unable to load keys for " + scope);
+        }
+        return crypter;
+    }
+}
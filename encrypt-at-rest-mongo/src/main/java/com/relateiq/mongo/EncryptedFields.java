@@ -0,0 +1,273 @@
+package com.relateiq.mongo;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.mongodb.util.JSON;
+import com.relateiq.CipherEngine;
+import com.relateiq.CrypterFactory;
+import org.bson.BSONObject;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.exceptions.BadVersionException;
+import org.keyczar.exceptions.KeyczarException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+/**
+ * Describes which (dotted) field paths of a raw mongo collection are encrypted at rest, and where the scope of each document is
+ * found.  This is the driver-level counterpart to {@link com.relateiq.annotations.EncryptAtRest} and
+ * {@link com.relateiq.annotations.EncryptionScope}, for use with {@link EncryptAtRestDBEncoderFactory} and
+ * {@link EncryptAtRestDBDecoderFactory}.
+ * <p/>
+ * Values are stored exactly as {@link EncryptAtRestInterceptor} stores them: Strings are encrypted as-is, while anything else is
+ * encrypted as its JSON serialization, so documents written through Morphia can be read through the driver and vice versa.
+ * Values written with a non-default {@link com.relateiq.annotations.EncryptAtRest} codec, compression or format are read as well.
+ */
+public class EncryptedFields {
+    private static final Logger log = LoggerFactory.getLogger(EncryptedFields.class);
+
+    private final String scopePath;
+    private final String staticScope;
+    private final KeyPurpose purpose;
+    private final DefaultKeyType type;
+    private final int size;
+    private final Map<String, Class<?>> fields;
+    private final Set<String> parentPaths;
+
+    EncryptedFields(String scopePath, String staticScope, KeyPurpose purpose, DefaultKeyType type, int size,
+                    Map<String, Class<?>> fields) {
+        this.scopePath = scopePath;
+        this.staticScope = staticScope;
+        this.purpose = purpose;
+        this.type = type;
+        this.size = size;
+        this.fields = fields;
+
+        ImmutableSet.Builder<String> parents = ImmutableSet.builder();
+        for (String path : fields.keySet()) {
+            for (int i = path.indexOf('.'); i > 0; i = path.indexOf('.', i + 1)) {
+                parents.add(path.substring(0, i));
+            }
+        }
+        this.parentPaths = parents.build();
+    }
+
+    public Set<String> getPaths() {
+        return fields.keySet();
+    }
+
+    public boolean isEncrypted(String path) {
+        return fields.containsKey(path);
+    }
+
+    /**
+     * @return true if some encrypted path lies underneath the given path
+     */
+    public boolean isParent(String path) {
+        return parentPaths.contains(path);
+    }
+
+    /**
+     * The driver encodes queries, updates and projections with the same encoder as the documents it inserts and saves; only the
+     * latter are encrypted.  Documents with top-level operators ({@code $set} updates among them, which are therefore written as
+     * they are) and projections are left alone.
+     *
+     * @return true if the given document may be a document being inserted or saved
+     */
+    boolean isEncryptable(BSONObject document) {
+        boolean projection = !document.keySet().isEmpty();
+        for (String key : document.keySet()) {
+            if (key.startsWith("$")) {
+                return false;
+            }
+            projection &= isProjection(document.get(key));
+        }
+        return !projection;
+    }
+
+    /**
+     * @return true for a value on an encrypted path that is a query operator rather than a value, e.g. {@code {$exists: true}}
+     */
+    static boolean isOperator(Object value) {
+        if (!(value instanceof BSONObject)) {
+            return false;
+        }
+        for (String key : ((BSONObject) value).keySet()) {
+            if (key.startsWith("$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Projections only hold 0, 1, booleans and operators such as {@code $slice}; inserted documents have an {@code _id} of
+     * their own.
+     */
+    private static boolean isProjection(Object value) {
+        if (value instanceof Number) {
+            final double number = ((Number) value).doubleValue();
+            return number == 0 || number == 1;
+        }
+        return value instanceof Boolean || isOperator(value);
+    }
+
+    /**
+     * @return the crypter for the scope of the given document, or null if the document has no scope, or something other than a
+     * single scope (e.g. {@code {$in: [...]}}) where the scope belongs
+     */
+    Crypter loadCrypter(CrypterFactory crypterFactory, BSONObject document) {
+        String scope = staticScope;
+        if (scope == null) {
+            Object scopeObj = getPath(document, scopePath);
+            if (scopeObj == null || scopeObj instanceof BSONObject || scopeObj instanceof Iterable || scopeObj instanceof Map
+                    || scopeObj.getClass().isArray()) {
+                return null;
+            }
+            scope = String.valueOf(scopeObj);
+        }
+
+        return crypterFactory.create(scope, purpose, type, size);
+    }
+
+    /**
+     * @return If successfully encrypted, a String representing the encrypted, encoded value; otherwise, the original value.
+     */
+    Object encryptValue(Crypter crypter, Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            String serialized = value instanceof String ? (String) value : JSON.serialize(value);
+            return CipherEngine.encrypt(crypter, serialized.getBytes(CipherEngine.UTF8_CHARSET));
+        } catch (Exception e) {
+            return value;
+        }
+    }
+
+    Object decryptValue(Crypter crypter, String path, Object value) {
+        if (!(value instanceof String) && !(value instanceof byte[])) {
+            if (value != null) {
+                log.warn("Unencrypted at-rest object while processing {}", Objects.toString(value));
+            }
+            return value;
+        }
+
+        try {
+            final byte[] plaintext = value instanceof byte[] ? crypter.decrypt((byte[]) value) : CipherEngine.decrypt(crypter, (String) value);
+            if ((CipherEngine.getFlags(plaintext) & CipherEngine.FLAG_BSON) != 0) {
+                return BsonValues.decode(CipherEngine.unwrap(plaintext));
+            }
+
+            String serialized = new String(CipherEngine.unwrap(plaintext), CipherEngine.UTF8_CHARSET);
+            return String.class.equals(fields.get(path)) ? serialized : JSON.parse(serialized);
+        } catch (BadVersionException e) {
+            log.warn("Unencrypted at-rest object while processing {}: {} - {}", path, e.getClass().getSimpleName(), e.getMessage());
+            return value;
+        } catch (KeyczarException | DataFormatException e) {
+            log.error("Encryption exception while processing {}: {} - {}", path, e.getClass().getSimpleName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts every configured path of the given document in place.
+     */
+    void decryptAll(Crypter crypter, BSONObject document) {
+        for (String path : fields.keySet()) {
+            int dot = path.lastIndexOf('.');
+            Object parent = dot < 0 ? document : getPath(document, path.substring(0, dot));
+            if (parent instanceof BSONObject) {
+                String leaf = path.substring(dot + 1);
+                BSONObject container = (BSONObject) parent;
+                if (container.containsField(leaf)) {
+                    container.put(leaf, decryptValue(crypter, path, container.get(leaf)));
+                }
+            }
+        }
+    }
+
+    static Object getPath(BSONObject document, String path) {
+        Object current = document;
+        for (String segment : path.split("\\.")) {
+            if (!(current instanceof BSONObject)) {
+                return null;
+            }
+            current = ((BSONObject) current).get(segment);
+        }
+        return current;
+    }
+
+    public static EncryptedFieldsBuilder newBuilder() {
+        return new EncryptedFieldsBuilder();
+    }
+
+    public static class EncryptedFieldsBuilder {
+        private String scopePath;
+        private String staticScope;
+        private KeyPurpose purpose = KeyPurpose.DECRYPT_AND_ENCRYPT;
+        private DefaultKeyType type = DefaultKeyType.AES;
+        private int size = 128;
+        private final ImmutableMap.Builder<String, Class<?>> fields = ImmutableMap.builder();
+
+        /**
+         * @param scopePath dotted path of the field holding the scope of each document
+         */
+        public EncryptedFieldsBuilder setScopePath(String scopePath) {
+            this.scopePath = scopePath;
+            return this;
+        }
+
+        /**
+         * @param staticScope scope used for every document, in the manner of {@code @EncryptionScope(scope = "...")}
+         */
+        public EncryptedFieldsBuilder setStaticScope(String staticScope) {
+            this.staticScope = staticScope;
+            return this;
+        }
+
+        public EncryptedFieldsBuilder setPurpose(KeyPurpose purpose) {
+            this.purpose = purpose;
+            return this;
+        }
+
+        public EncryptedFieldsBuilder setType(DefaultKeyType type) {
+            this.type = type;
+            return this;
+        }
+
+        public EncryptedFieldsBuilder setSize(int size) {
+            this.size = size;
+            return this;
+        }
+
+        /**
+         * Encrypts the String at the given dotted path.
+         */
+        public EncryptedFieldsBuilder addField(String path) {
+            return addField(path, String.class);
+        }
+
+        /**
+         * Encrypts the value at the given dotted path; anything but a String is stored as its JSON serialization.
+         */
+        public EncryptedFieldsBuilder addField(String path, Class<?> type) {
+            fields.put(path, type);
+            return this;
+        }
+
+        public EncryptedFields build() {
+            if ((scopePath == null) == (staticScope == null)) {
+                throw new IllegalStateException("Exactly one of scopePath or staticScope must be set");
+            }
+            return new EncryptedFields(scopePath, staticScope, purpose, type, size, fields.build());
+        }
+    }
+}
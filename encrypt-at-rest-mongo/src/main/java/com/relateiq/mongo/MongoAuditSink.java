@@ -0,0 +1,51 @@
+package com.relateiq.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.relateiq.audit.AuditRecord;
+import com.relateiq.audit.AuditSink;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes the records of an {@link com.relateiq.audit.AuditLog} into a collection, one document per record and one insert per
+ * batch.
+ */
+public class MongoAuditSink implements AuditSink {
+    public static final String FIELD_SCOPE = "scope";
+    public static final String FIELD_OPERATION = "operation";
+    public static final String FIELD_SERVICE = "service";
+    public static final String FIELD_WINDOW_START = "windowStart";
+    public static final String FIELD_COUNT = "count";
+    public static final String FIELD_FIRST = "first";
+    public static final String FIELD_LAST = "last";
+
+    private final DBCollection collection;
+
+    public MongoAuditSink(DBCollection collection) {
+        this.collection = collection;
+        collection.ensureIndex(new BasicDBObject(FIELD_SCOPE, 1).append(FIELD_WINDOW_START, 1));
+    }
+
+    @Override
+    public void write(List<AuditRecord> records) {
+        final List<DBObject> documents = new ArrayList<>(records.size());
+        for (AuditRecord record : records) {
+            documents.add(new BasicDBObject(FIELD_SCOPE, record.getScope())
+                    .append(FIELD_OPERATION, record.getOperation().name())
+                    .append(FIELD_SERVICE, record.getService())
+                    .append(FIELD_WINDOW_START, new Date(record.getWindowStart()))
+                    .append(FIELD_COUNT, record.getCount())
+                    .append(FIELD_FIRST, new Date(record.getFirstMillis()))
+                    .append(FIELD_LAST, new Date(record.getLastMillis())));
+        }
+        collection.insert(documents);
+    }
+
+    @Override
+    public void close() {
+    }
+}
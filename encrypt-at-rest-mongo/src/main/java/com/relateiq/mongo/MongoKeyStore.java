@@ -0,0 +1,173 @@
+package com.relateiq.mongo;
+
+import com.google.common.collect.Iterables;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.relateiq.keystore.KeyRing;
+import com.relateiq.keystore.KeyRings;
+import com.relateiq.keystore.KeyStore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps key rings in a Mongo collection, one document per scope keyed by the scope itself:
+ * {@code {_id: scope, metadata: "...", keys: {"0": "...", ...}}}.
+ * <p/>
+ * The collection gets a hashed index on {@code _id}, so it can be sharded with {@code {_id: "hashed"}} and spread the rings
+ * of hot tenants evenly over the shards. Rings of many scopes are fetched, and shredded, in batches with {@code $in}.
+ * <p/>
+ * Shredded rings are overwritten in place by tombstones, which carry the time they were shredded in {@code shreddedAt}.
+ */
+public class MongoKeyStore implements KeyStore {
+    public static final String FIELD_METADATA = "metadata";
+    public static final String FIELD_KEYS = "keys";
+    public static final String FIELD_SHREDDED_AT = "shreddedAt";
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final DBCollection rings;
+    private final int batchSize;
+
+    public MongoKeyStore(DB db, String collection) {
+        this(db, collection, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param batchSize maximum number of scopes per {@code $in} query of {@link #getAll(Collection)}
+     */
+    public MongoKeyStore(DB db, String collection, int batchSize) {
+        this.rings = db.getCollection(collection);
+        this.batchSize = batchSize;
+
+        rings.ensureIndex(new BasicDBObject("_id", "hashed"));
+        rings.ensureIndex(new BasicDBObject(FIELD_SHREDDED_AT, 1), new BasicDBObject("sparse", true));
+    }
+
+    @Override
+    public KeyRing get(String scope) {
+        final DBObject document = rings.findOne(new BasicDBObject("_id", scope), null, ReadPreference.primaryPreferred());
+        return document == null ? null : toKeyRing(document);
+    }
+
+    @Override
+    public Map<String, KeyRing> getAll(Collection<String> scopes) {
+        final Map<String, KeyRing> found = new LinkedHashMap<>();
+        for (List<String> batch : Iterables.partition(scopes, batchSize)) {
+            try (DBCursor cursor = rings.find(new BasicDBObject("_id", new BasicDBObject("$in", batch)))
+                    .setReadPreference(ReadPreference.primaryPreferred())) {
+                for (DBObject document : cursor) {
+                    final KeyRing ring = toKeyRing(document);
+                    found.put(ring.getScope(), ring);
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public KeyRing putIfAbsent(KeyRing ring) {
+        final BasicDBObject keys = new BasicDBObject();
+        for (Map.Entry<Integer, String> key : ring.getKeys().entrySet()) {
+            keys.append(key.getKey().toString(), key.getValue());
+        }
+
+        try {
+            rings.insert(new BasicDBObject("_id", ring.getScope())
+                    .append(FIELD_METADATA, ring.getMetadata())
+                    .append(FIELD_KEYS, keys), WriteConcern.ACKNOWLEDGED);
+            return null;
+        } catch (MongoException.DuplicateKey e) {
+            // Read from the primary, which the winning insert is known to have reached
+            return toKeyRing(rings.findOne(new BasicDBObject("_id", ring.getScope()), null, ReadPreference.primary()));
+        }
+    }
+
+    @Override
+    public void delete(String scope) {
+        rings.remove(new BasicDBObject("_id", scope), WriteConcern.ACKNOWLEDGED);
+    }
+
+    /**
+     * Three round trips per batch, however large: rings that exist are overwritten, tombstones are inserted for the scopes left
+     * over, and rings that were created in between (and so made their insert fail) are overwritten once more.
+     */
+    @Override
+    public void shredAll(Collection<String> scopes) {
+        for (List<String> batch : Iterables.partition(scopes, batchSize)) {
+            final Date now = new Date();
+            final BasicDBObject query = new BasicDBObject("_id", new BasicDBObject("$in", batch));
+            final BasicDBObject tombstone = new BasicDBObject("$set", new BasicDBObject(FIELD_METADATA, KeyRings.TOMBSTONE_METADATA)
+                    .append(FIELD_KEYS, new BasicDBObject())
+                    .append(FIELD_SHREDDED_AT, now));
+
+            final int updated = rings.update(query, tombstone, false, true, WriteConcern.ACKNOWLEDGED).getN();
+            if (updated == batch.size()) {
+                continue;
+            }
+
+            final Set<String> existing = new HashSet<>();
+            try (DBCursor cursor = rings.find(query, new BasicDBObject("_id", 1)).setReadPreference(ReadPreference.primary())) {
+                for (DBObject document : cursor) {
+                    existing.add((String) document.get("_id"));
+                }
+            }
+
+            final List<DBObject> missing = new ArrayList<>();
+            for (String scope : batch) {
+                if (!existing.contains(scope)) {
+                    missing.add(new BasicDBObject("_id", scope)
+                            .append(FIELD_METADATA, KeyRings.TOMBSTONE_METADATA)
+                            .append(FIELD_KEYS, new BasicDBObject())
+                            .append(FIELD_SHREDDED_AT, now));
+                }
+            }
+            if (missing.isEmpty()) {
+                continue;
+            }
+
+            try {
+                rings.insert(missing, WriteConcern.ACKNOWLEDGED.continueOnErrorForInsert(true));
+            } catch (MongoException.DuplicateKey e) {
+                rings.update(query, tombstone, false, true, WriteConcern.ACKNOWLEDGED);
+            }
+        }
+    }
+
+    @Override
+    public Collection<String> getShreddedSince(long millis) {
+        final List<String> scopes = new ArrayList<>();
+        try (DBCursor cursor = rings.find(new BasicDBObject(FIELD_SHREDDED_AT, new BasicDBObject("$gte", new Date(millis))),
+                new BasicDBObject("_id", 1)).setReadPreference(ReadPreference.primaryPreferred())) {
+            for (DBObject document : cursor) {
+                scopes.add((String) document.get("_id"));
+            }
+        }
+        return scopes;
+    }
+
+    private static KeyRing toKeyRing(DBObject document) {
+        final KeyRing.Builder builder = KeyRing.newBuilder()
+                .setScope((String) document.get("_id"))
+                .setMetadata((String) document.get(FIELD_METADATA));
+
+        final DBObject keys = (DBObject) document.get(FIELD_KEYS);
+        if (keys != null) {
+            for (String version : keys.keySet()) {
+                builder.addKey(Integer.parseInt(version), (String) keys.get(version));
+            }
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,66 @@
+package com.relateiq.mongo;
+
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.relateiq.CrypterFactory;
+import com.relateiq.keystore.KeyStoreKeyczarReaderFactory;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodProcess;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * A single embedded mongod per test run, on a free port, for the tests of the driver-level classes.  Keys are kept in a
+ * {@link MongoKeyStore} of the same database, which {@link #resetDB()} drops along with everything else.
+ */
+public final class EmbeddedMongoForTest {
+    public static final String DATABASE = "test_db";
+    private static final Logger log = LoggerFactory.getLogger(EmbeddedMongoForTest.class);
+
+    private static DB db;
+
+    private EmbeddedMongoForTest() {
+    }
+
+    public static synchronized DB getDB() throws IOException {
+        if (db == null) {
+            final int port = Network.getFreeServerPort();
+            final MongodExecutable mongodExecutable = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+                    .version(Version.Main.PRODUCTION)
+                    .net(new Net(port, Network.localhostIsIPv6()))
+                    .build());
+            final MongodProcess mongod = mongodExecutable.start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        mongod.stop();
+                    } catch (Exception ignored) {
+                    }
+                }
+            });
+
+            db = new MongoClient("localhost", port).getDB(DATABASE);
+        }
+        return db;
+    }
+
+    public static CrypterFactory newCrypterFactory() throws IOException {
+        return new CrypterFactory(new KeyStoreKeyczarReaderFactory(new MongoKeyStore(getDB(), "keyRings", 2)));
+    }
+
+    public static void resetDB() {
+        try {
+            getDB().dropDatabase();
+        } catch (Exception e) {
+            log.error("error resetting mongo DB", e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.relateiq.mongo;
+
+import com.google.common.collect.Lists;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.WriteConcern;
+import com.relateiq.CrypterFactory;
+import com.relateiq.keystore.InMemoryKeyStore;
+import com.relateiq.keystore.KeyStoreKeyczarReaderFactory;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.IsNot.not;
+
+public class EncryptAtRestDBCodecTest {
+    private static final String SCOPE = "scope";
+
+    private DB db;
+    private CrypterFactory crypterFactory;
+    private EncryptedFields fields;
+    private final List<DBCollection> installed = Lists.newArrayList();
+
+    @Before
+    public void setup() throws Exception {
+        db = EmbeddedMongoForTest.getDB();
+        crypterFactory = EmbeddedMongoForTest.newCrypterFactory();
+
+        fields = EncryptedFields.newBuilder()
+                .setScopePath(SCOPE)
+                .addField("body")
+                .addField("nested.map", Map.class)
+                .build();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        for (DBCollection collection : installed) {
+            collection.setDBEncoderFactory(DefaultDBEncoder.FACTORY);
+            collection.setDBDecoderFactory(DefaultDBDecoder.FACTORY);
+        }
+        installed.clear();
+        EmbeddedMongoForTest.resetDB();
+    }
+
+    @Test
+    public void driverCodecsRoundTripNestedPaths() {
+        DBCollection encrypted = encryptedCollection("RawDocuments");
+
+        ObjectId scope = ObjectId.get();
+        DBObject map = new BasicDBObject("key1", "value");
+        encrypted.insert(new BasicDBObject(SCOPE, scope)
+                .append("body", "Something encrypted")
+                .append("plain", "Something plaintext")
+                .append("nested", new BasicDBObject("map", map)));
+
+        DBObject asRead = encrypted.findOne(new BasicDBObject(SCOPE, scope));
+        assertThat(asRead.get("body"), equalTo((Object) "Something encrypted"));
+        assertThat(asRead.get("plain"), equalTo((Object) "Something plaintext"));
+        assertThat(((DBObject) asRead.get("nested")).get("map"), equalTo((Object) map));
+
+        DBObject actual = encrypted.find(new BasicDBObject(SCOPE, scope)).setDecoderFactory(DefaultDBDecoder.FACTORY).next();
+        assertThat(actual.get("body"), not((Object) "Something encrypted"));
+        assertThat(actual.get("plain"), equalTo((Object) "Something plaintext"));
+        assertThat(((DBObject) actual.get("nested")).get("map"), not((Object) map));
+    }
+
+    @Test
+    public void driverDecoderReadsUnencryptedDocuments() {
+        ObjectId scope = ObjectId.get();
+        db.getCollection("RawDocuments").insert(Collections.<DBObject>singletonList(
+                new BasicDBObject(SCOPE, scope).append("body", "Something plaintext")),
+                WriteConcern.SAFE, DefaultDBEncoder.FACTORY.create());
+
+        DBObject asRead = encryptedCollection("RawDocuments").findOne(new BasicDBObject(SCOPE, scope));
+        assertThat(asRead.get("body"), equalTo((Object) "Something plaintext"));
+    }
+
+    @Test
+    public void queriesOnTheScopeResolveNoCrypter() {
+        final List<String> scopes = Lists.newArrayList();
+        crypterFactory = new CrypterFactory(new KeyStoreKeyczarReaderFactory(new InMemoryKeyStore())) {
+            @Override
+            public Crypter create(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+                scopes.add(scope);
+                return super.create(scope, purpose, type, size);
+            }
+        };
+        DBCollection encrypted = encryptedCollection("RawDocuments");
+
+        ObjectId scope = ObjectId.get();
+        encrypted.insert(new BasicDBObject(SCOPE, scope).append("body", "Something encrypted"));
+        assertThat(scopes, equalTo(Collections.singletonList(scope.toString())));
+
+        scopes.clear();
+        assertThat(encrypted.count(new BasicDBObject(SCOPE, scope)), equalTo(1L));
+        assertThat(encrypted.count(new BasicDBObject(SCOPE, new BasicDBObject("$in", Arrays.asList(scope, ObjectId.get())))),
+                equalTo(1L));
+        assertThat(scopes, equalTo(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void operatorsAndProjectionsOnEncryptedPathsAreWrittenAsTheyAre() {
+        fields = EncryptedFields.newBuilder()
+                .setStaticScope(SCOPE)
+                .addField("body")
+                .build();
+        DBCollection encrypted = encryptedCollection("RawDocuments");
+
+        encrypted.insert(new BasicDBObject("body", "Something encrypted"));
+        encrypted.insert(new BasicDBObject("plain", "Something plaintext"));
+
+        DBObject exists = new BasicDBObject("body", new BasicDBObject("$exists", true));
+        assertThat(encrypted.count(exists), equalTo(1L));
+
+        DBObject asRead = encrypted.findOne(exists, new BasicDBObject("body", 1));
+        assertThat(asRead.get("body"), equalTo((Object) "Something encrypted"));
+    }
+
+    @Test
+    public void setUpdatesAreNotEncrypted() {
+        DBCollection encrypted = encryptedCollection("RawDocuments");
+
+        ObjectId scope = ObjectId.get();
+        encrypted.insert(new BasicDBObject(SCOPE, scope).append("body", "Something encrypted"));
+        encrypted.update(new BasicDBObject(SCOPE, scope),
+                new BasicDBObject("$set", new BasicDBObject("body", "Something plaintext")));
+
+        DBObject actual = encrypted.find(new BasicDBObject(SCOPE, scope)).setDecoderFactory(DefaultDBDecoder.FACTORY).next();
+        assertThat(actual.get("body"), equalTo((Object) "Something plaintext"));
+    }
+
+    private DBCollection encryptedCollection(String name) {
+        DBCollection collection = db.getCollectionFromString(name);
+        collection.setDBEncoderFactory(new EncryptAtRestDBEncoderFactory(crypterFactory, fields));
+        collection.setDBDecoderFactory(new EncryptAtRestDBDecoderFactory(crypterFactory, fields));
+        installed.add(collection);
+        return collection;
+    }
+}
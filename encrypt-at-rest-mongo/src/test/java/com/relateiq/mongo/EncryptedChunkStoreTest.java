@@ -0,0 +1,205 @@
+package com.relateiq.mongo;
+
+import com.google.common.io.ByteStreams;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.IsNot.not;
+
+public class EncryptedChunkStoreTest {
+    private static final int CHUNK_SIZE = 1024;
+
+    private DB db;
+    private EncryptedChunkStore store;
+    private byte[] payload;
+
+    @Before
+    public void setup() throws Exception {
+        db = EmbeddedMongoForTest.getDB();
+        store = new EncryptedChunkStore(EmbeddedMongoForTest.newCrypterFactory(), db, "attachments", CHUNK_SIZE,
+                KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+        payload = new byte[CHUNK_SIZE * 3 + CHUNK_SIZE / 2];
+        new Random(42).nextBytes(payload);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        EmbeddedMongoForTest.resetDB();
+    }
+
+    @Test
+    public void chunkedPayloadsRoundTrip() throws IOException {
+        ObjectId id = write(payload);
+
+        assertThat(store.getLength(id), equalTo((long) payload.length));
+        try (InputStream in = store.open(id)) {
+            assertThat(ByteStreams.toByteArray(in), equalTo(payload));
+        }
+
+        DBObject chunk = db.getCollection("attachments.chunks").findOne(
+                new BasicDBObject(EncryptedChunkStore.FIELD_FILES_ID, id).append(EncryptedChunkStore.FIELD_N, 0L));
+        assertThat((byte[]) chunk.get(EncryptedChunkStore.FIELD_DATA), not(Arrays.copyOf(payload, CHUNK_SIZE)));
+    }
+
+    @Test
+    public void rangeReadsSpanChunkBoundaries() throws IOException {
+        ObjectId id = write(payload);
+
+        int offset = CHUNK_SIZE - 10;
+        int length = CHUNK_SIZE + 20;
+        try (InputStream in = store.open(id, offset, length)) {
+            assertThat(ByteStreams.toByteArray(in), equalTo(Arrays.copyOfRange(payload, offset, offset + length)));
+        }
+    }
+
+    @Test
+    public void emptyAndExactlyChunkSizedPayloadsRoundTrip() throws IOException {
+        for (byte[] bytes : new byte[][]{new byte[0], Arrays.copyOf(payload, CHUNK_SIZE * 2)}) {
+            ObjectId id = write(bytes);
+            try (InputStream in = store.open(id)) {
+                assertThat(ByteStreams.toByteArray(in), equalTo(bytes));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedPayloadsFailToRead() throws IOException {
+        ObjectId id = write(payload);
+        db.getCollection("attachments.chunks").remove(
+                new BasicDBObject(EncryptedChunkStore.FIELD_FILES_ID, id).append(EncryptedChunkStore.FIELD_N, 3L));
+
+        try (InputStream in = store.open(id)) {
+            ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void abortedWritesKeepThePreviousPayload() throws IOException {
+        ObjectId id = ObjectId.get();
+        String scope = ObjectId.get().toString();
+        write(id, scope, payload);
+
+        OutputStream aborted = store.create(id, scope);
+        aborted.write(new byte[CHUNK_SIZE * 2 + 1]);
+
+        try (InputStream in = store.open(id)) {
+            assertThat(ByteStreams.toByteArray(in), equalTo(payload));
+        }
+
+        byte[] replacement = Arrays.copyOf(payload, CHUNK_SIZE / 2);
+        write(id, scope, replacement);
+        try (InputStream in = store.open(id)) {
+            assertThat(ByteStreams.toByteArray(in), equalTo(replacement));
+        }
+
+        store.sweep(1, TimeUnit.HOURS);
+        assertThat(countChunks(id), equalTo(4L + 2L + 1L));
+        store.sweep(0, TimeUnit.SECONDS);
+        assertThat(countChunks(id), equalTo(1L));
+    }
+
+    @Test
+    public void concurrentWritesKeepTheLastStartedPayload() throws IOException {
+        ObjectId id = ObjectId.get();
+        String scope = ObjectId.get().toString();
+        byte[] second = Arrays.copyOf(payload, CHUNK_SIZE * 2 + 1);
+
+        OutputStream first = store.create(id, scope);
+        first.write(payload, 0, CHUNK_SIZE * 2);
+        try (OutputStream out = store.create(id, scope)) {
+            out.write(second, 0, CHUNK_SIZE * 2);
+            first.write(payload, CHUNK_SIZE * 2, payload.length - CHUNK_SIZE * 2);
+            first.close();
+            out.write(second, CHUNK_SIZE * 2, 1);
+        }
+        try (InputStream in = store.open(id)) {
+            assertThat(ByteStreams.toByteArray(in), equalTo(second));
+        }
+
+        // Completing in the other order gives the same payload
+        OutputStream third = store.create(id, scope);
+        try (OutputStream out = store.create(id, scope)) {
+            out.write(second);
+        }
+        third.write(payload);
+        third.close();
+        try (InputStream in = store.open(id)) {
+            assertThat(ByteStreams.toByteArray(in), equalTo(second));
+        }
+
+        store.sweep(0, TimeUnit.SECONDS);
+        assertThat(countChunks(id), equalTo(3L));
+    }
+
+    @Test
+    public void readsInProgressSurviveAnOverwrite() throws IOException {
+        ObjectId id = ObjectId.get();
+        String scope = ObjectId.get().toString();
+        write(id, scope, payload);
+
+        byte[] replacement = Arrays.copyOf(payload, CHUNK_SIZE / 2);
+        try (InputStream in = store.open(id)) {
+            byte[] head = new byte[CHUNK_SIZE];
+            ByteStreams.readFully(in, head);
+            write(id, scope, replacement);
+
+            assertThat(ByteStreams.toByteArray(in), equalTo(Arrays.copyOfRange(payload, CHUNK_SIZE, payload.length)));
+        }
+        try (InputStream in = store.open(id)) {
+            assertThat(ByteStreams.toByteArray(in), equalTo(replacement));
+        }
+
+        store.sweep(0, TimeUnit.SECONDS);
+        assertThat(countChunks(id), equalTo(1L));
+    }
+
+    @Test(expected = IOException.class)
+    public void chunksSwappedBetweenPayloadsFailToRead() throws IOException {
+        String scope = ObjectId.get().toString();
+        ObjectId id = write(ObjectId.get(), scope, payload);
+        ObjectId other = write(ObjectId.get(), scope, payload);
+
+        DBCollection chunks = db.getCollection("attachments.chunks");
+        BasicDBObject first = new BasicDBObject(EncryptedChunkStore.FIELD_FILES_ID, id).append(EncryptedChunkStore.FIELD_N, 0L);
+        DBObject swapped = chunks.findOne(new BasicDBObject(EncryptedChunkStore.FIELD_FILES_ID, other)
+                .append(EncryptedChunkStore.FIELD_N, 0L));
+        chunks.update(first, new BasicDBObject("$set",
+                new BasicDBObject(EncryptedChunkStore.FIELD_DATA, swapped.get(EncryptedChunkStore.FIELD_DATA))));
+
+        try (InputStream in = store.open(id)) {
+            ByteStreams.toByteArray(in);
+        }
+    }
+
+    private long countChunks(ObjectId id) {
+        return db.getCollection("attachments.chunks").count(new BasicDBObject(EncryptedChunkStore.FIELD_FILES_ID, id));
+    }
+
+    private ObjectId write(byte[] bytes) throws IOException {
+        return write(ObjectId.get(), ObjectId.get().toString(), bytes);
+    }
+
+    private ObjectId write(ObjectId id, String scope, byte[] bytes) throws IOException {
+        try (OutputStream out = store.create(id, scope)) {
+            out.write(bytes);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,52 @@
+package com.relateiq.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.relateiq.audit.AuditLog;
+import com.relateiq.audit.AuditRecord;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+
+public class MongoAuditSinkTest {
+    private DBCollection audit;
+    private AuditLog auditLog;
+
+    @Before
+    public void setup() throws IOException {
+        audit = EmbeddedMongoForTest.getDB().getCollection("audit");
+        auditLog = AuditLog.newBuilder().setSink(new MongoAuditSink(audit)).setService("test").build();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        auditLog.close();
+        EmbeddedMongoForTest.resetDB();
+    }
+
+    @Test
+    public void auditRecordsAreWrittenOneDocumentEach() throws IOException {
+        final String scope = ObjectId.get().toString();
+        for (int i = 0; i < 3; i++) {
+            auditLog.record(scope, AuditRecord.Operation.DECRYPT);
+        }
+        auditLog.record(scope, AuditRecord.Operation.ENCRYPT);
+        auditLog.close();
+
+        final DBObject decrypts = audit.findOne(new BasicDBObject(MongoAuditSink.FIELD_OPERATION, AuditRecord.Operation.DECRYPT.name()));
+        assertThat(decrypts.get(MongoAuditSink.FIELD_SCOPE), equalTo((Object) scope));
+        assertThat(decrypts.get(MongoAuditSink.FIELD_SERVICE), equalTo((Object) "test"));
+        assertThat(((Number) decrypts.get(MongoAuditSink.FIELD_COUNT)).longValue(), equalTo(3L));
+        assertThat(decrypts.get(MongoAuditSink.FIELD_WINDOW_START), instanceOf(Date.class));
+        assertThat(audit.count(new BasicDBObject(MongoAuditSink.FIELD_OPERATION, AuditRecord.Operation.ENCRYPT.name())), equalTo(1L));
+    }
+}
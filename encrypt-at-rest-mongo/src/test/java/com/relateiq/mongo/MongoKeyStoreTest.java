@@ -0,0 +1,116 @@
+package com.relateiq.mongo;
+
+import com.relateiq.CipherEngine;
+import com.relateiq.CrypterFactory;
+import com.relateiq.keystore.KeyRing;
+import com.relateiq.keystore.KeyRings;
+import com.relateiq.keystore.KeyStore;
+import com.relateiq.keystore.KeyStoreKeyczarReaderFactory;
+import com.relateiq.keystore.OffHeapKeyRingCache;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class MongoKeyStoreTest {
+    private List<KeyStore> keyStores;
+
+    @Before
+    public void setup() throws Exception {
+        final MongoKeyStore mongoKeyStore = new MongoKeyStore(EmbeddedMongoForTest.getDB(), "keyRings", 2);
+        keyStores = Arrays.asList(mongoKeyStore, new OffHeapKeyRingCache(mongoKeyStore, 16));
+    }
+
+    @After
+    public void teardown() throws Exception {
+        EmbeddedMongoForTest.resetDB();
+    }
+
+    @Test
+    public void keyStoresKeepTheFirstRingOfAScope() throws Exception {
+        for (KeyStore keyStore : keyStores) {
+            final String scope = newScope() + "/bidx";
+            assertThat(keyStore.get(scope), nullValue());
+
+            final KeyRing first = KeyRings.generate(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+            final KeyRing second = KeyRings.generate(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+            assertThat(keyStore.putIfAbsent(first), nullValue());
+            assertThat(keyStore.putIfAbsent(second), equalTo(first));
+            assertThat(keyStore.get(scope), equalTo(first));
+
+            keyStore.delete(scope);
+            assertThat(keyStore.get(scope), nullValue());
+        }
+    }
+
+    @Test
+    public void keyStoresGetManyRingsAtOnce() throws Exception {
+        for (KeyStore keyStore : keyStores) {
+            final List<String> scopes = Arrays.asList(newScope(), newScope(), newScope(), newScope(), newScope());
+            for (String scope : scopes.subList(0, 3)) {
+                keyStore.putIfAbsent(KeyRings.generate(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128));
+            }
+
+            final Map<String, KeyRing> rings = keyStore.getAll(scopes);
+            assertThat(rings.keySet(), equalTo((Set<String>) new HashSet<>(scopes.subList(0, 3))));
+        }
+    }
+
+    @Test
+    public void keyStoresShredRingsForGood() throws Exception {
+        for (KeyStore keyStore : keyStores) {
+            final List<String> scopes = Arrays.asList(newScope(), newScope(), newScope());
+            keyStore.putIfAbsent(KeyRings.generate(scopes.get(0), KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128));
+
+            final long before = System.currentTimeMillis();
+            keyStore.shredAll(scopes);
+            for (String scope : scopes) {
+                assertThat(KeyRings.isTombstone(keyStore.get(scope)), equalTo(true));
+                final KeyRing recreated = KeyRings.generate(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+                assertThat(KeyRings.isTombstone(keyStore.putIfAbsent(recreated)), equalTo(true));
+            }
+
+            // Stores that keep track of shredded scopes report all of them
+            final Set<String> shredded = new HashSet<>(keyStore.getShreddedSince(before));
+            assertThat(shredded.isEmpty() || shredded.equals(new HashSet<>(scopes)), equalTo(true));
+            assertThat(new CrypterFactory(new KeyStoreKeyczarReaderFactory(keyStore))
+                    .create(scopes.get(0), KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128), nullValue());
+        }
+    }
+
+    @Test
+    public void crypterFactoryCreatesAndReusesRingsThroughAKeyStore() throws Exception {
+        for (KeyStore keyStore : keyStores) {
+            final String scope = newScope();
+            final Crypter crypter = new CrypterFactory(new KeyStoreKeyczarReaderFactory(keyStore))
+                    .create(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+            assertThat(crypter, notNullValue());
+            final String ciphertext = CipherEngine.encrypt(crypter, "Something encrypted".getBytes(CipherEngine.UTF8_CHARSET));
+            assertThat(ciphertext, not("Something encrypted"));
+
+            // A second factory finds the ring the first one created
+            final Crypter again = new CrypterFactory(new KeyStoreKeyczarReaderFactory(keyStore))
+                    .create(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+            assertThat(new String(CipherEngine.decrypt(again, ciphertext), CipherEngine.UTF8_CHARSET), equalTo("Something encrypted"));
+        }
+    }
+
+    private static String newScope() {
+        return ObjectId.get().toString();
+    }
+}
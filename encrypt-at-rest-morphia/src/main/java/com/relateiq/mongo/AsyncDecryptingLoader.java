@@ -0,0 +1,79 @@
+package com.relateiq.mongo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.mongodb.DBObject;
+import com.relateiq.AsyncCrypterFactory;
+import com.relateiq.annotations.EncryptionScope;
+import org.javatuples.Pair;
+import org.keyczar.Crypter;
+import org.mongodb.morphia.mapping.Mapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Decrypts and maps batches of raw documents (as read straight from a {@link com.mongodb.DBCollection}) without blocking the
+ * caller on the key store: the crypters of every scope in the batch are requested from an {@link AsyncCrypterFactory} at once,
+ * and the documents are only decrypted once all of them have been resolved.  A scope whose crypter fails to load (or is
+ * rejected by the factory) does not fail the batch: only its own documents are left encrypted.
+ * <p/>
+ * Decrypting and mapping run on the given executor, so that they never occupy the I/O threads of the crypter factory.
+ */
+public class AsyncDecryptingLoader {
+    private static final Logger log = LoggerFactory.getLogger(AsyncDecryptingLoader.class);
+
+    private final Mapper mapper;
+    private final EncryptAtRestInterceptor interceptor;
+    private final AsyncCrypterFactory crypterFactory;
+    private final Executor executor;
+
+    public AsyncDecryptingLoader(Mapper mapper, EncryptAtRestInterceptor interceptor, AsyncCrypterFactory crypterFactory,
+                                 Executor executor) {
+        this.mapper = mapper;
+        this.interceptor = interceptor;
+        this.crypterFactory = crypterFactory;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the mapped entities, in the order of the documents; documents whose keys could not be loaded are mapped as they
+     * are stored, as {@link EncryptAtRestInterceptor} would
+     */
+    public <T> CompletableFuture<List<T>> load(final Class<T> clazz, final List<DBObject> dbObjects) {
+        final Map<Pair<EncryptionScope, String>, CompletableFuture<Crypter>> crypters = Maps.newHashMap();
+        final List<Pair<EncryptionScope, String>> scopeKeys = Lists.newArrayListWithCapacity(dbObjects.size());
+        for (DBObject dbObject : dbObjects) {
+            final Pair<EncryptionScope, String> scopeKey = interceptor.getScopeKey(clazz, dbObject);
+            scopeKeys.add(scopeKey);
+            if (scopeKey != null && !crypters.containsKey(scopeKey)) {
+                final EncryptionScope encryptionScope = scopeKey.getValue0();
+                final String scope = scopeKey.getValue1();
+                crypters.put(scopeKey, crypterFactory.create(scope, encryptionScope.purpose(), encryptionScope.type(),
+                        encryptionScope.size()).exceptionally(e -> {
+                    log.error("Unable to load the crypter of " + scope + ", its documents are mapped as they are stored", e);
+                    return null;
+                }));
+            }
+        }
+
+        return CompletableFuture.allOf(crypters.values().toArray(new CompletableFuture[crypters.size()]))
+                .thenApplyAsync(ignored -> {
+                    final List<T> entities = Lists.newArrayListWithCapacity(dbObjects.size());
+                    for (int i = 0; i < dbObjects.size(); i++) {
+                        final DBObject dbObject = dbObjects.get(i);
+                        final Pair<EncryptionScope, String> scopeKey = scopeKeys.get(i);
+                        final Crypter crypter = scopeKey == null ? null : crypters.get(scopeKey).join();
+                        if (crypter != null) {
+                            interceptor.decrypt(clazz, dbObject, mapper, crypter, scopeKey.getValue1());
+                        }
+                        entities.add(interceptor.fromDecryptedDBObject(mapper, clazz, dbObject));
+                    }
+                    return entities;
+                }, executor);
+    }
+}
@@ -0,0 +1,222 @@
+package com.relateiq.mongo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.relateiq.annotations.EncryptionScope;
+import org.javatuples.Pair;
+import org.keyczar.Crypter;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.Key;
+import org.mongodb.morphia.annotations.PostPersist;
+import org.mongodb.morphia.mapping.Mapper;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Inserts large batches of new entities without encrypting them one at a time on the caller's thread, as
+ * {@link Datastore#save(Iterable)} would.  Entities are mapped on the caller's thread, grouped by scope so every crypter is
+ * loaded only once, and then encrypted concurrently on the given executor; ready documents are inserted in batches as soon as
+ * enough of them are encrypted, with the {@link Datastore#getDefaultWriteConcern() default write concern} of the datastore.
+ * <p/>
+ * Batches inserted before a failure are not rolled back: the returned future then fails with a {@link BulkInsertException}
+ * listing the entities that were inserted, once every batch still in progress is done.  No batch is inserted after a failure.
+ * <p/>
+ * The executor bounds the parallelism, so it should be a fixed-size pool.  Like {@link Datastore#insert(Iterable)}, this fails on
+ * entities that already exist.
+ */
+public class BulkEncryptingInserter {
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final Datastore ds;
+    private final Mapper mapper;
+    private final EncryptAtRestInterceptor interceptor;
+    private final Executor executor;
+    private final int batchSize;
+
+    public BulkEncryptingInserter(Datastore ds, Mapper mapper, EncryptAtRestInterceptor interceptor, Executor executor) {
+        this(ds, mapper, interceptor, executor, DEFAULT_BATCH_SIZE);
+    }
+
+    public BulkEncryptingInserter(Datastore ds, Mapper mapper, EncryptAtRestInterceptor interceptor, Executor executor,
+                                  int batchSize) {
+        this.ds = ds;
+        this.mapper = mapper;
+        this.interceptor = interceptor;
+        this.executor = executor;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the keys of the inserted entities, in the order they were given; fails with a {@link BulkInsertException}
+     */
+    public <T> CompletableFuture<List<Key<T>>> insert(Iterable<T> entities) {
+        final List<T> ordered = Lists.newArrayList(entities);
+        final List<DBObject> dbObjects = Lists.newArrayListWithCapacity(ordered.size());
+        final Map<Pair<EncryptionScope, String>, List<Integer>> groups = Maps.newLinkedHashMap();
+        for (int i = 0; i < ordered.size(); i++) {
+            final DBObject dbObject = interceptor.toUnencryptedDBObject(mapper, ordered.get(i));
+            dbObjects.add(dbObject);
+
+            final Pair<EncryptionScope, String> scopeKey = interceptor.getScopeKey(ordered.get(i), dbObject);
+            List<Integer> group = groups.get(scopeKey);
+            if (group == null) {
+                group = Lists.newArrayList();
+                groups.put(scopeKey, group);
+            }
+            group.add(i);
+        }
+
+        final Batcher<T> batcher = new Batcher<>(ordered, dbObjects);
+        final List<CompletableFuture<Void>> work = Lists.newArrayList();
+        for (final Map.Entry<Pair<EncryptionScope, String>, List<Integer>> group : groups.entrySet()) {
+            final Pair<EncryptionScope, String> scopeKey = group.getKey();
+            final CompletableFuture<Crypter> crypter = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return scopeKey == null ? null : interceptor.loadCrypter(scopeKey);
+                } catch (RuntimeException e) {
+                    batcher.fail();
+                    throw e;
+                }
+            }, executor);
+
+            for (final List<Integer> slice : Lists.partition(group.getValue(), batchSize)) {
+                work.add(crypter.thenAcceptAsync(c -> {
+                    try {
+                        for (int i : slice) {
+                            if (c != null) {
+                                interceptor.encrypt(ordered.get(i), dbObjects.get(i), mapper, c, scopeKey.getValue1());
+                            }
+                            batcher.ready(i);
+                        }
+                    } catch (RuntimeException e) {
+                        batcher.fail();
+                        throw e;
+                    }
+                }, executor));
+            }
+        }
+
+        return CompletableFuture.allOf(work.toArray(new CompletableFuture[work.size()]))
+                .thenRunAsync(batcher::flush, executor)
+                .handle((v, e) -> {
+                    if (e != null) {
+                        throw new BulkInsertException(batcher.getInsertedKeys(), e instanceof CompletionException ? e.getCause() : e);
+                    }
+                    return batcher.getInsertedKeys();
+                });
+    }
+
+    /**
+     * Collects encrypted documents per collection and inserts them a batch at a time.
+     */
+    private class Batcher<T> {
+        private final List<T> entities;
+        private final List<DBObject> dbObjects;
+        private final WriteConcern writeConcern = ds.getDefaultWriteConcern();
+        private final Map<Class<?>, List<Integer>> pending = Maps.newHashMap();
+        private final boolean[] inserted;
+        private boolean failed;
+
+        Batcher(List<T> entities, List<DBObject> dbObjects) {
+            this.entities = entities;
+            this.dbObjects = dbObjects;
+            this.inserted = new boolean[entities.size()];
+        }
+
+        void ready(int i) {
+            List<Integer> batch = null;
+            synchronized (pending) {
+                if (failed) {
+                    return;
+                }
+                final Class<?> clazz = entities.get(i).getClass();
+                List<Integer> ready = pending.get(clazz);
+                if (ready == null) {
+                    ready = Lists.newArrayListWithCapacity(batchSize);
+                    pending.put(clazz, ready);
+                }
+                ready.add(i);
+                if (ready.size() >= batchSize) {
+                    batch = ready;
+                    pending.remove(clazz);
+                }
+            }
+
+            if (batch != null) {
+                insert(batch);
+            }
+        }
+
+        void flush() {
+            final List<List<Integer>> batches;
+            synchronized (pending) {
+                batches = Lists.newArrayList(pending.values());
+                pending.clear();
+            }
+
+            for (List<Integer> batch : batches) {
+                insert(batch);
+            }
+        }
+
+        void fail() {
+            synchronized (pending) {
+                failed = true;
+                pending.clear();
+            }
+        }
+
+        /**
+         * @return the keys of the entities inserted so far, in the order they were given
+         */
+        List<Key<T>> getInsertedKeys() {
+            final List<Key<T>> keys = Lists.newArrayList();
+            synchronized (pending) {
+                for (int i = 0; i < inserted.length; i++) {
+                    if (inserted[i]) {
+                        keys.add(mapper.getKey(entities.get(i)));
+                    }
+                }
+            }
+            return keys;
+        }
+
+        private void insert(List<Integer> batch) {
+            synchronized (pending) {
+                if (failed) {
+                    return;
+                }
+            }
+
+            final DBCollection collection = ds.getCollection(entities.get(batch.get(0)).getClass());
+            final List<DBObject> documents = Lists.newArrayListWithCapacity(batch.size());
+            for (int i : batch) {
+                documents.add(dbObjects.get(i));
+            }
+            try {
+                collection.insert(documents, writeConcern);
+            } catch (RuntimeException e) {
+                fail();
+                throw e;
+            }
+
+            synchronized (pending) {
+                for (int i : batch) {
+                    inserted[i] = true;
+                }
+            }
+            for (int i : batch) {
+                final T entity = entities.get(i);
+                mapper.updateKeyInfo(entity, dbObjects.get(i), mapper.createEntityCache());
+                mapper.getMappedClass(entity).callLifecycleMethods(PostPersist.class, entity, dbObjects.get(i), mapper);
+            }
+        }
+    }
+}
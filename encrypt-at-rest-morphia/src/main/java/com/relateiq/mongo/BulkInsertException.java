@@ -0,0 +1,26 @@
+package com.relateiq.mongo;
+
+import org.mongodb.morphia.Key;
+
+import java.util.List;
+
+/**
+ * Thrown when a {@link BulkEncryptingInserter} fails part way through: some batches may already have been inserted, and are
+ * not rolled back.  The entities of the batch whose insert failed may have been inserted up to the one that failed; neither
+ * they nor any other entity are reported as inserted.
+ */
+public class BulkInsertException extends RuntimeException {
+    private final List<? extends Key<?>> inserted;
+
+    public BulkInsertException(List<? extends Key<?>> inserted, Throwable cause) {
+        super(inserted.size() + " entities were inserted before the bulk insert failed", cause);
+        this.inserted = inserted;
+    }
+
+    /**
+     * @return the keys of the entities inserted, in the order they were given
+     */
+    public List<? extends Key<?>> getInserted() {
+        return inserted;
+    }
+}
@@ -0,0 +1,981 @@
+package com.relateiq.mongo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.relateiq.BlindIndex;
+import com.relateiq.CipherEngine;
+import com.relateiq.CrypterFactory;
+import com.relateiq.ShredListener;
+import com.relateiq.annotations.EncryptAtRest;
+import com.relateiq.audit.AuditLog;
+import com.relateiq.audit.AuditRecord;
+import com.relateiq.annotations.EncryptionScope;
+import com.relateiq.event.DocumentEvent;
+import com.relateiq.event.EncryptionEvents;
+import com.relateiq.event.FieldEvent;
+import org.javatuples.Pair;
+import org.keyczar.Crypter;
+import org.keyczar.exceptions.BadVersionException;
+import org.keyczar.exceptions.KeyczarException;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.EntityInterceptor;
+import org.mongodb.morphia.mapping.Mapper;
+import org.mongodb.morphia.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+
+/**
+ * This interceptor makes encrypting data at rest (in mongo) as easy as adding some annotations to the relevant fields.
+ * {@link com.relateiq.annotations.EncryptAtRest} is used to annotate which fields should be encrypted at rest, and {@link com.relateiq.annotations.EncryptionScope} is
+ * the <em>scope</em> within which the document belongs. For example, {@link dom.MessageInfo} encrypts message bodies at rest in the scope of the userid.
+ * <p/>
+ * The <em>scope</em> defines a unique Keyczar ring that is associated with it, and therefore verification that a user has access to said scope should be
+ * enforced by their associated DAOs. For example, all methods utilizing MessageInfoDAO get the userid through the UserContext, rather than from a parameter
+ * passed in from a client.
+ * <p/>
+ * All scopes should be usefully .toString()-able, and all at-rest encrypted documents should be Strings, primitive data structures, or JSON encodable objects
+ * with well defined getters and setters to facilitate conversion.
+ * <p/>
+ * How each field is serialized, compressed, stored and decrypted can be tuned through the attributes of
+ * {@link com.relateiq.annotations.EncryptAtRest}, which are resolved once per class into a {@link FieldPolicy}.
+ * <p/>
+ * The scope of a document <em>should not be changed</em> unless the entire document is persisted!
+ * <p/>
+ * The expected behavior is as follows:
+ * <ul>
+ * <li>If a new document is saved and the scope is not null, all relevant fields are encrypted before being sent to mongo.</li>
+ * <li>If an old, unencrypted document is read from disc, the document should be returned as expected.</li>
+ * <li>If a document has fields marked as {@link com.relateiq.annotations.EncryptAtRest} but no scope is provided, nothing is encrypted.</li>
+ * <li>If a document has a field marked as {@link com.relateiq.annotations.EncryptionScope} but no fields are marked as {@link com.relateiq.annotations.EncryptAtRest},
+ * then nothing is encrypted.</li>
+ * </ul>
+ * <p/>
+ * Created by jontg on 3/25/14.
+ */
+public class EncryptAtRestInterceptor implements EntityInterceptor, ShredListener {
+    public static final Charset UTF8_CHARSET = CipherEngine.UTF8_CHARSET;
+    private final Logger log = LoggerFactory.getLogger(EncryptAtRestInterceptor.class);
+
+    private final LoadingCache<Class<?>, EncryptionPlan> plans;
+
+    /**
+     * Serialized values smaller than this are not worth compressing
+     */
+    public static final int COMPRESSION_THRESHOLD = 128;
+    public static final long DEFAULT_PLAINTEXT_CACHE_SIZE = 10000;
+
+    private final CrypterFactory crypterFactory;
+    private final BlindIndex blindIndex;
+    private final ThreadLocal<Object> deferred = new ThreadLocal<>();
+    private final ThreadLocal<DocumentCost> costs = new ThreadLocal<>();
+    /**
+     * Documents being mapped after they were already decrypted, by identity
+     */
+    private final ThreadLocal<Set<DBObject>> decrypted = new ThreadLocal<Set<DBObject>>() {
+        @Override
+        protected Set<DBObject> initialValue() {
+            return Collections.newSetFromMap(new IdentityHashMap<DBObject, Boolean>());
+        }
+    };
+    /**
+     * Decrypted values of {@link EncryptAtRest#cacheable() cacheable} fields, keyed by scope and the value as it is stored
+     */
+    private final Cache<Pair<String, Object>, byte[]> plaintexts;
+    /**
+     * Values of {@link EncryptAtRest#lazy() lazy} fields as they were loaded, by identity, for as long as an entity holds them
+     */
+    private final ConcurrentMap<String, LoadedValue> loadedValues = new MapMaker().weakKeys().makeMap();
+    /**
+     * Where every document encrypted or decrypted is recorded, or null
+     */
+    private final AuditLog auditLog;
+
+    @Inject
+    public EncryptAtRestInterceptor(CrypterFactory crypterFactory) {
+        this(crypterFactory, DEFAULT_PLAINTEXT_CACHE_SIZE);
+    }
+
+    /**
+     * @param plaintextCacheSize the number of decrypted values of cacheable fields to keep in memory
+     */
+    public EncryptAtRestInterceptor(CrypterFactory crypterFactory, long plaintextCacheSize) {
+        this(crypterFactory, plaintextCacheSize, null);
+    }
+
+    /**
+     * @param auditLog where to record the scope of every document encrypted or decrypted, or null not to
+     */
+    public EncryptAtRestInterceptor(CrypterFactory crypterFactory, long plaintextCacheSize, AuditLog auditLog) {
+        this.crypterFactory = crypterFactory;
+        this.auditLog = auditLog;
+        this.blindIndex = new BlindIndex(crypterFactory);
+        this.plaintexts = CacheBuilder.newBuilder().maximumSize(plaintextCacheSize).build();
+
+        plans = CacheBuilder.newBuilder()
+                .recordStats()
+                .build(new CacheLoader<Class<?>, EncryptionPlan>() {
+                    @Override
+                    public EncryptionPlan load(Class<?> key) throws Exception {
+                        return new PlanCompiler().get(key).get();
+                    }
+                });
+    }
+
+    /**
+     * Compiles a class along with every class it embeds that is not planned yet, without going through {@link #plans}: classes
+     * that (indirectly) embed themselves are referred to by unresolved {@link EncryptionPlan.PlanRef}s until they are compiled,
+     * and only the finished plan of the class asked for is cached, so no cached plan ever holds an unresolved reference.
+     */
+    private final class PlanCompiler implements EncryptionPlan.PlanLookup {
+        private final Map<Class<?>, EncryptionPlan.PlanRef> compiled = Maps.newHashMap();
+
+        @Override
+        public EncryptionPlan.PlanRef get(Class<?> clazz) {
+            EncryptionPlan.PlanRef ref = compiled.get(clazz);
+            if (ref != null) {
+                return ref;
+            }
+
+            final EncryptionPlan cached = plans.getIfPresent(clazz);
+            if (cached != null) {
+                return new EncryptionPlan.PlanRef(cached);
+            }
+
+            ref = new EncryptionPlan.PlanRef(clazz);
+            compiled.put(clazz, ref);
+            ref.resolve(EncryptionPlan.compile(clazz, this));
+            return ref;
+        }
+
+        @Override
+        public EncryptionPlan getInherited(Class<?> superclass) {
+            final EncryptionPlan.PlanRef ref = compiled.get(superclass);
+            if (ref != null && !ref.isResolved()) {
+                // The superclass embeds its own subclass, which needs the fields of the superclass right away
+                return EncryptionPlan.compile(superclass, this);
+            }
+            return get(superclass).get();
+        }
+    }
+
+    @Override
+    public void preLoad(java.lang.Object o, DBObject dbObject, Mapper mapper) {
+// if (o instanceof ScopedKeyczar) {
+//     return;
+// }
+
+        final EncryptionPlan plan = plans.getUnchecked(o.getClass());
+        if (plan.isEmpty() || decrypted.get().contains(dbObject)) {
+            return;
+        }
+
+        final DocumentCost cost = EncryptionEvents.isEnabled() ? new DocumentCost(DocumentEvent.Operation.LOAD, o.getClass()) : null;
+        final String scope = loadScope(plan, o, dbObject);
+        final Crypter crypter = loadCrypter(plan, scope);
+        if (crypter == null) {
+            return;
+        }
+
+        audit(scope, AuditRecord.Operation.DECRYPT);
+        if (cost == null) {
+            decrypt(plan, dbObject, new DocumentCipher(mapper, crypter, scope));
+            return;
+        }
+
+        cost.keysResolved();
+        costs.set(cost);
+        try {
+            decrypt(plan, dbObject, new DocumentCipher(mapper, crypter, scope));
+        } finally {
+            costs.remove();
+            cost.finish(scope);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void decrypt(EncryptionPlan plan, DBObject dbObject, DocumentCipher cipher) {
+        if (plan.handler != null) {
+            plan.handler.decrypt(dbObject, cipher);
+        } else {
+            for (EncryptionPlan.EncryptedField field : plan.encryptedFields) {
+                decryptField(dbObject, cipher.mapper, cipher.crypter, cipher.scope, field.jsonName, field.type, field.policy,
+                        field.elements != EncryptionPlan.ContainerKind.NONE, field.elementType);
+            }
+        }
+
+        for (EncryptionPlan.NestedField nested : plan.nestedFields) {
+            final EncryptionPlan nestedPlan = nested.getPlan();
+            if (nestedPlan == null) {
+                continue;
+            }
+            for (DBObject embedded : getEmbedded(nested, dbObject.get(nested.jsonName))) {
+                decrypt(nestedPlan, embedded, cipher);
+            }
+        }
+    }
+
+    private void decryptField(DBObject dbObject, Mapper mapper, Crypter crypter, String scope, String jsonName, Class<?> type,
+                              FieldPolicy policy, boolean elements, Class<?> elementType) {
+        final DocumentCost cost = costs.get();
+        if (cost == null) {
+            doDecryptField(dbObject, mapper, crypter, scope, jsonName, type, policy, elements, elementType);
+            return;
+        }
+
+        cost.startField();
+        try {
+            doDecryptField(dbObject, mapper, crypter, scope, jsonName, type, policy, elements, elementType);
+        } finally {
+            cost.endField(jsonName);
+        }
+    }
+
+    private void doDecryptField(DBObject dbObject, Mapper mapper, Crypter crypter, String scope, String jsonName, Class<?> type,
+                                FieldPolicy policy, boolean elements, Class<?> elementType) {
+        if (!dbObject.containsField(jsonName)) {
+            return;
+        }
+
+        // Lazy fields are mapped as they are stored, and decrypted on request by decryptLazy
+        if (policy.isLazy()) {
+            final Object value = dbObject.get(jsonName);
+            if (value instanceof String) {
+                loadedValues.put((String) value,
+                        new LoadedValue(crypter, scope, dbObject.get(BlindIndex.companionName(jsonName))));
+            }
+            return;
+        }
+
+        final Object value = dbObject.removeField(jsonName);
+        if (!elements || value instanceof String) {
+            // Element-wise fields that were written as a single value before they were marked as such
+            dbObject.put(jsonName, getDecryptedValue(mapper, crypter, type, value, scope, policy));
+        } else {
+            dbObject.put(jsonName, getDecryptedElements(crypter, elementType, value));
+        }
+    }
+
+    private Object getDecryptedElements(Crypter crypter, Class<?> elementType, Object value) {
+        if (value instanceof List) {
+            final BasicDBList decrypted = new BasicDBList();
+            for (Object element : (List) value) {
+                decrypted.add(getDecryptedElement(crypter, elementType, element));
+            }
+            return decrypted;
+        } else if (value instanceof DBObject) {
+            final DBObject decrypted = new BasicDBObject();
+            for (String key : ((DBObject) value).keySet()) {
+                decrypted.put(key, getDecryptedElement(crypter, elementType, ((DBObject) value).get(key)));
+            }
+            return decrypted;
+        }
+        return value;
+    }
+
+    /**
+     * Unlike {@link #getDecryptedValue}, elements are handed back to Morphia as database objects for it to map.
+     */
+    private Object getDecryptedElement(Crypter crypter, Class expectedType, Object value) {
+        if (!(value instanceof String)) {
+            return value;
+        }
+
+        try {
+            final String serialized = new String(CipherEngine.decrypt(crypter, (String) value), UTF8_CHARSET);
+            return expectedType.equals(String.class) ? serialized : JSON.parse(serialized);
+        } catch (BadVersionException e) {
+            return value;
+        } catch (KeyczarException e) {
+            log.error("Encryption exception while processing {}: {} - {}", expectedType.getCanonicalName(), e.getClass().getSimpleName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static Iterable<DBObject> getEmbedded(EncryptionPlan.NestedField nested, Object value) {
+        if (!(value instanceof DBObject)) {
+            return Collections.emptyList();
+        }
+
+        final List<DBObject> embedded = Lists.newArrayList();
+        if (nested.kind == EncryptionPlan.ContainerKind.NONE) {
+            embedded.add((DBObject) value);
+        } else {
+            // Lists are BasicDBLists, Maps are DBObjects keyed by the map keys; either way the values are the elements
+            for (String key : ((DBObject) value).keySet()) {
+                final Object element = ((DBObject) value).get(key);
+                if (element instanceof DBObject) {
+                    embedded.add((DBObject) element);
+                }
+            }
+        }
+        return embedded;
+    }
+
+    Object getDecryptedValue(final Mapper mapper, final Crypter crypter, final Class expectedType, final Object value,
+                             final String scope, final FieldPolicy policy) {
+        if (value == null) {
+            return null;
+        }
+
+        if (!(value instanceof String) && !(value instanceof byte[])) {
+            log.warn("Unencrypted at-rest object while processing {}", Objects.toString(value));
+            return value;
+        }
+
+        try {
+            final DocumentCost cost = costs.get();
+            final byte[] plaintext = policy.isCacheable() ? getCachedPlaintext(crypter, scope, value, cost) : decryptStored(crypter, value, cost);
+            if (cost == null) {
+                return deserialize(mapper, expectedType, plaintext);
+            }
+
+            final long start = System.nanoTime();
+            try {
+                return deserialize(mapper, expectedType, plaintext);
+            } finally {
+                cost.serialized(System.nanoTime() - start, plaintext.length);
+            }
+        } catch (BadVersionException e) {
+            log.warn("Unencrypted at-rest object while processing {}: {} - {}", expectedType.getCanonicalName(), e.getClass().getSimpleName(), e.getMessage());
+            return value;
+        } catch (KeyczarException | DataFormatException e) {
+            log.error("Encryption exception while processing {}: {} - {}", expectedType.getCanonicalName(), e.getClass().getSimpleName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private Object deserialize(Mapper mapper, Class expectedType, byte[] plaintext) throws DataFormatException {
+        final byte[] bytes = CipherEngine.unwrap(plaintext);
+        if ((CipherEngine.getFlags(plaintext) & CipherEngine.FLAG_BSON) != 0) {
+            final Object decoded = BsonValues.decode(bytes);
+            if (!(decoded instanceof DBObject) || decoded instanceof List || expectedType.equals(Map.class)) {
+                return decoded;
+            }
+            try {
+                return mapper.fromDBObject(expectedType, (DBObject) decoded, null);
+            } catch (ClassCastException e) {
+                return decoded;
+            }
+        } else if (expectedType.equals(String.class)) {
+            return new String(bytes, UTF8_CHARSET);
+        } else if (expectedType.equals(Map.class)) {
+            return JSON.parse(new String(bytes, UTF8_CHARSET));
+        } else {
+            log.warn("EncryptAtRest has not been well-tested with objects - please be careful encrypting {}!", expectedType.getSimpleName());
+            DBObject object = (DBObject) JSON.parse(new String(bytes, UTF8_CHARSET));
+            try {
+                return mapper.fromDBObject(expectedType, object, null);
+            } catch (ClassCastException e) {
+                return object;
+            }
+        }
+    }
+
+    private static byte[] decryptStored(Crypter crypter, Object stored, DocumentCost cost) throws KeyczarException {
+        if (cost == null) {
+            return crypter.decrypt(stored instanceof byte[] ? (byte[]) stored : CipherEngine.decode((String) stored));
+        }
+
+        final long start = System.nanoTime();
+        final byte[] ciphertext = stored instanceof byte[] ? (byte[]) stored : CipherEngine.decode((String) stored);
+        final long decoded = System.nanoTime();
+        try {
+            return crypter.decrypt(ciphertext);
+        } finally {
+            cost.encoded(decoded - start);
+            cost.crypto(System.nanoTime() - decoded);
+        }
+    }
+
+    private byte[] getCachedPlaintext(Crypter crypter, String scope, Object stored, DocumentCost cost) throws KeyczarException {
+        // The scope is part of the key, so that a value copied into another scope is still decrypted (and rejected) by its keys
+        final Pair<String, Object> key = Pair.with(scope, stored instanceof byte[] ? ByteBuffer.wrap((byte[]) stored) : stored);
+        byte[] plaintext = plaintexts.getIfPresent(key);
+        if (plaintext == null) {
+            plaintext = decryptStored(crypter, stored, cost);
+            plaintexts.put(key, plaintext);
+        }
+        return plaintext;
+    }
+
+    /**
+     * Decrypts a {@link EncryptAtRest#lazy() lazy} field of a loaded entity.  The field itself keeps holding the value as it is
+     * stored, so the entity can be saved again without the field ever being decrypted.
+     *
+     * @param entity    entity loaded through the interceptor
+     * @param fieldName java name of the lazy field
+     * @return the plaintext, or the value of the field as it is if it was never encrypted
+     */
+    public String decryptLazy(Object entity, String fieldName) {
+        final EncryptionPlan plan = plans.getUnchecked(entity.getClass());
+        final EncryptionPlan.EncryptedField field = plan.getEncryptedField(fieldName);
+        if (field == null || !field.policy.isLazy()) {
+            throw new IllegalArgumentException(fieldName + " is not a lazily decrypted field of " + entity.getClass().getCanonicalName());
+        }
+
+        final Object value = field.get(entity);
+        final String scope = value == null ? null : loadScope(plan, entity, new BasicDBObject());
+        final Crypter crypter = loadCrypter(plan, scope);
+        if (crypter == null) {
+            return (String) value;
+        }
+
+        audit(scope, AuditRecord.Operation.DECRYPT);
+        return (String) getDecryptedValue(null, crypter, String.class, value, scope, field.policy);
+    }
+
+    /**
+     * Drops the decrypted values cached for shredded scopes.
+     */
+    @Override
+    public void shredded(Collection<String> scopes) {
+        final Set<String> shredded = Sets.newHashSet(scopes);
+        plaintexts.asMap().keySet().removeIf(key -> shredded.contains(key.getValue0()));
+        loadedValues.values().removeIf(loaded -> shredded.contains(loaded.scope));
+    }
+
+    @Override
+    public void preSave(Object o, DBObject dbObject, Mapper mapper) {
+        // if (o instanceof ScopedKeyczar) {
+        //     return;
+        // }
+
+        final EncryptionPlan plan = plans.getUnchecked(o.getClass());
+        if (plan.isEmpty() || deferred.get() == o) {
+            return;
+        }
+
+        final DocumentCost cost = EncryptionEvents.isEnabled() ? new DocumentCost(DocumentEvent.Operation.SAVE, o.getClass()) : null;
+        final String scope = loadScope(plan, o, dbObject);
+        final Crypter crypter = loadCrypter(plan, scope);
+        if (crypter == null) {
+            return;
+        }
+
+        audit(scope, AuditRecord.Operation.ENCRYPT);
+        if (cost == null) {
+            encrypt(plan, dbObject, new DocumentCipher(mapper, crypter, scope));
+            return;
+        }
+
+        cost.keysResolved();
+        costs.set(cost);
+        try {
+            encrypt(plan, dbObject, new DocumentCipher(mapper, crypter, scope));
+        } finally {
+            costs.remove();
+            cost.finish(scope);
+        }
+    }
+
+    /**
+     * Maps the entity without encrypting its own fields, leaving that to {@link #encrypt(Object, DBObject, Mapper, Crypter, String)}.
+     */
+    /* package private */DBObject toUnencryptedDBObject(Mapper mapper, Object o) {
+        deferred.set(o);
+        try {
+            return mapper.toDBObject(o);
+        } finally {
+            deferred.remove();
+        }
+    }
+
+    /**
+     * @return the scope and the parameters of its key ring, or null if the entity is not encrypted
+     */
+    /* package private */Pair<EncryptionScope, String> getScopeKey(Object o, DBObject dbObject) {
+        final EncryptionPlan plan = plans.getUnchecked(o.getClass());
+        final String scope = plan.isEmpty() ? null : loadScope(plan, o, dbObject);
+        return scope == null ? null : Pair.with(plan.getEncryptionScope(), scope);
+    }
+
+    /**
+     * As {@link #getScopeKey(Object, DBObject)}, for documents that have not been mapped to an entity; the scope has to be in
+     * the document.
+     */
+    /* package private */Pair<EncryptionScope, String> getScopeKey(Class<?> clazz, DBObject dbObject) {
+        final Object scope = getRawScope(clazz, dbObject);
+        return scope == null ? null : Pair.with(getEncryptionScope(clazz), String.valueOf(scope));
+    }
+
+    /**
+     * The scope of a document as it is stored, before it is turned into a String, so that documents can be grouped by scope
+     * cheaply.
+     *
+     * @return the scope, or null if the document is not encrypted
+     */
+    /* package private */Object getRawScope(Class<?> clazz, DBObject dbObject) {
+        final EncryptionPlan plan = plans.getUnchecked(clazz);
+        if (plan.isEmpty() || plan.scope == null) {
+            return null;
+        }
+        return plan.scope.isStatic() ? plan.scope.annotation.scope() : dbObject.get(plan.scope.jsonName);
+    }
+
+    /* package private */EncryptionScope getEncryptionScope(Class<?> clazz) {
+        return plans.getUnchecked(clazz).getEncryptionScope();
+    }
+
+    /* package private */void decrypt(Class<?> clazz, DBObject dbObject, Mapper mapper, Crypter crypter, String scope) {
+        audit(scope, AuditRecord.Operation.DECRYPT);
+        decrypt(plans.getUnchecked(clazz), dbObject, new DocumentCipher(mapper, crypter, scope));
+    }
+
+    /**
+     * Decrypts documents of one class that share a scope, with a single plan lookup and cipher context for all of them.
+     */
+    /* package private */void decrypt(Class<?> clazz, List<DBObject> dbObjects, Mapper mapper, Crypter crypter, String scope) {
+        final EncryptionPlan plan = plans.getUnchecked(clazz);
+        final DocumentCipher cipher = new DocumentCipher(mapper, crypter, scope);
+        for (DBObject dbObject : dbObjects) {
+            audit(scope, AuditRecord.Operation.DECRYPT);
+            decrypt(plan, dbObject, cipher);
+        }
+    }
+
+    /**
+     * Maps a document that was already decrypted by {@link #decrypt(Class, DBObject, Mapper, Crypter, String)}, without
+     * decrypting it again.
+     */
+    /* package private */<T> T fromDecryptedDBObject(Mapper mapper, Class<T> clazz, DBObject dbObject) {
+        final Set<DBObject> inProgress = decrypted.get();
+        inProgress.add(dbObject);
+        try {
+            return mapper.fromDBObject(clazz, dbObject, mapper.createEntityCache());
+        } finally {
+            inProgress.remove(dbObject);
+        }
+    }
+
+    /* package private */Crypter loadCrypter(Pair<EncryptionScope, String> scopeKey) {
+        final EncryptionScope encryptionScope = scopeKey.getValue0();
+        return crypterFactory.create(scopeKey.getValue1(), encryptionScope.purpose(), encryptionScope.type(), encryptionScope.size());
+    }
+
+    /* package private */void encrypt(Object o, DBObject dbObject, Mapper mapper, Crypter crypter, String scope) {
+        audit(scope, AuditRecord.Operation.ENCRYPT);
+        encrypt(plans.getUnchecked(o.getClass()), dbObject, new DocumentCipher(mapper, crypter, scope));
+    }
+
+    /**
+     * Encrypts the documents of entities that share a scope, with a single cipher context for all of them.
+     */
+    /* package private */void encrypt(List<?> entities, List<DBObject> dbObjects, Mapper mapper, Crypter crypter, String scope) {
+        final DocumentCipher cipher = new DocumentCipher(mapper, crypter, scope);
+        for (int i = 0; i < entities.size(); i++) {
+            audit(scope, AuditRecord.Operation.ENCRYPT);
+            encrypt(plans.getUnchecked(entities.get(i).getClass()), dbObjects.get(i), cipher);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void encrypt(EncryptionPlan plan, DBObject dbObject, DocumentCipher cipher) {
+        if (plan.handler != null) {
+            plan.handler.encrypt(dbObject, cipher);
+        } else {
+            for (EncryptionPlan.EncryptedField field : plan.encryptedFields) {
+                encryptField(dbObject, cipher.mapper, cipher.crypter, cipher.scope, field.jsonName, field.type, field.policy,
+                        field.elements != EncryptionPlan.ContainerKind.NONE);
+            }
+        }
+
+        for (EncryptionPlan.NestedField nested : plan.nestedFields) {
+            final EncryptionPlan nestedPlan = nested.getPlan();
+            if (nestedPlan == null) {
+                continue;
+            }
+            for (DBObject embedded : getEmbedded(nested, dbObject.get(nested.jsonName))) {
+                encrypt(nestedPlan, embedded, cipher);
+            }
+        }
+    }
+
+    private void encryptField(DBObject dbObject, Mapper mapper, Crypter crypter, String scope, String jsonName, Class<?> type,
+                              FieldPolicy policy, boolean elements) {
+        final DocumentCost cost = costs.get();
+        if (cost == null) {
+            doEncryptField(dbObject, mapper, crypter, scope, jsonName, type, policy, elements);
+            return;
+        }
+
+        cost.startField();
+        try {
+            doEncryptField(dbObject, mapper, crypter, scope, jsonName, type, policy, elements);
+        } finally {
+            cost.endField(jsonName);
+        }
+    }
+
+    private void doEncryptField(DBObject dbObject, Mapper mapper, Crypter crypter, String scope, String jsonName, Class<?> type,
+                                FieldPolicy policy, boolean elements) {
+        Object value = dbObject.get(jsonName);
+        final LoadedValue loaded = policy.isLazy() && value instanceof String ? loadedValues.get(value) : null;
+        if (loaded != null) {
+            if (loaded.scope.equals(scope)) {
+                // Never decrypted since it was loaded, so it is stored again as it is, along with its blind index
+                if (policy.isBlindIndex() && loaded.blindIndex != null) {
+                    dbObject.put(BlindIndex.companionName(jsonName), loaded.blindIndex);
+                }
+                return;
+            }
+
+            // Moved to another scope: re-encrypted with its keys
+            value = getDecryptedValue(null, loaded.crypter, String.class, value, loaded.scope, policy);
+        }
+
+        if (policy.isBlindIndex()) {
+            putBlindIndex(dbObject, scope, jsonName, value);
+        }
+        if (value == null) {
+            return;
+        }
+
+        if (elements) {
+            dbObject.put(jsonName, getEncryptedElements(crypter, value));
+        } else {
+            dbObject.put(jsonName, getEncryptedValue(mapper, crypter, type, value, policy));
+        }
+    }
+
+    private Object getEncryptedElements(Crypter crypter, Object value) {
+        if (value instanceof List) {
+            final BasicDBList encrypted = new BasicDBList();
+            for (Object element : (List) value) {
+                encrypted.add(getEncryptedElement(crypter, element));
+            }
+            return encrypted;
+        } else if (value instanceof DBObject) {
+            final DBObject encrypted = new BasicDBObject();
+            for (String key : ((DBObject) value).keySet()) {
+                encrypted.put(key, getEncryptedElement(crypter, ((DBObject) value).get(key)));
+            }
+            return encrypted;
+        }
+        return value;
+    }
+
+    private Object getEncryptedElement(Crypter crypter, Object element) {
+        if (element == null) {
+            return null;
+        }
+
+        try {
+            return CipherEngine.encrypt(crypter,
+                    (element instanceof String ? (String) element : JSON.serialize(element)).getBytes(UTF8_CHARSET));
+        } catch (Exception e) {
+            return element;
+        }
+    }
+
+    /**
+     * @param mapper  morphia mapper to convert objects to database objects
+     * @param crypter crypter by which the value should be encrypted
+     * @param type    the type of value to be encrypted
+     * @param value   the object to be encrypted
+     * @param policy  how the value is serialized and stored
+     * @return If successfully encrypted, a String (or byte array, for {@link EncryptAtRest.Format#BINARY}) representing the
+     * encrypted, encoded value; otherwise, the original value.
+     */
+    /* package private */Object getEncryptedValue(final Mapper mapper, final Crypter crypter, Class type, final Object value,
+                                                 final FieldPolicy policy) {
+        try {
+            final DocumentCost cost = costs.get();
+            final long start = cost == null ? 0 : System.nanoTime();
+            byte[] bytes;
+            int flags = 0;
+            if (value instanceof String) {
+                bytes = ((String) value).getBytes(UTF8_CHARSET);
+            } else if (policy.getCodec() == EncryptAtRest.Codec.BSON) {
+                // The value has already been mapped by Morphia, so it can be encoded as it is
+                bytes = BsonValues.encode(value);
+                flags |= CipherEngine.FLAG_BSON;
+            } else if (type.equals(Map.class)) {
+                // TODO(jon,henry) should List also be treaded separately?
+                bytes = JSON.serialize(value).getBytes(UTF8_CHARSET);
+            } else {
+                bytes = JSON.serialize(mapper.toDBObject(value)).getBytes(UTF8_CHARSET);
+            }
+
+            if (policy.getCompression() == EncryptAtRest.Compression.DEFLATE && bytes.length >= COMPRESSION_THRESHOLD) {
+                flags |= CipherEngine.FLAG_DEFLATE;
+            }
+
+            final byte[] plaintext = CipherEngine.wrap(bytes, flags);
+            if (cost == null) {
+                return policy.getFormat() == EncryptAtRest.Format.BINARY ? crypter.encrypt(plaintext) : CipherEngine.encrypt(crypter, plaintext);
+            }
+
+            final long serialized = System.nanoTime();
+            final byte[] ciphertext = crypter.encrypt(plaintext);
+            final long encrypted = System.nanoTime();
+            final Object stored = policy.getFormat() == EncryptAtRest.Format.BINARY ? ciphertext : CipherEngine.encode(ciphertext);
+            cost.serialized(serialized - start, plaintext.length);
+            cost.crypto(encrypted - serialized);
+            cost.encoded(System.nanoTime() - encrypted);
+            return stored;
+        } catch (Exception e) {
+            return value;
+        }
+    }
+
+    @Override
+    public void postLoad(Object o, DBObject dbObject, Mapper mapper) {
+    }
+
+    @Override
+    public void prePersist(Object o, DBObject dbObject, Mapper mapper) {
+    }
+
+    @Override
+    public void postPersist(Object o, DBObject dbObject, Mapper mapper) {
+    }
+
+    @SuppressWarnings("unchecked")
+    private String loadScope(EncryptionPlan plan, Object o, DBObject dbObject) {
+        if (plan.handler != null) {
+            return plan.handler.getScope(o, dbObject);
+        }
+
+        if (plan.scope == null) {
+            return null;
+        }
+
+        if (plan.scope.isStatic()) {
+            return plan.scope.annotation.scope();
+        }
+
+        Object scopeObj = dbObject.get(plan.scope.jsonName);
+        if (scopeObj == null) {
+            scopeObj = plan.scope.get(o);
+        }
+        return String.valueOf(scopeObj);
+    }
+
+    private void audit(String scope, AuditRecord.Operation operation) {
+        if (auditLog != null) {
+            auditLog.record(scope, operation);
+        }
+    }
+
+    private Crypter loadCrypter(EncryptionPlan plan, String scope) {
+        if (scope == null) {
+            return null;
+        }
+
+        final EncryptionScope encryptionScope = plan.getEncryptionScope();
+        return crypterFactory.create(scope, encryptionScope.purpose(), encryptionScope.type(), encryptionScope.size());
+    }
+
+    /**
+     * A {@link EncryptAtRest#lazy() lazy} field as it was loaded: where, and with which blind index
+     */
+    private static final class LoadedValue {
+        private final Crypter crypter;
+        private final String scope;
+        private final Object blindIndex;
+
+        LoadedValue(Crypter crypter, String scope, Object blindIndex) {
+            this.crypter = crypter;
+            this.scope = scope;
+            this.blindIndex = blindIndex;
+        }
+    }
+
+    /**
+     * Where the time of a single document went, while an {@link com.relateiq.event.EncryptionListener} is registered.
+     */
+    private static final class DocumentCost {
+        private final DocumentEvent.Operation operation;
+        private final Class<?> entityClass;
+        private final long start = System.nanoTime();
+        private long keyResolutionNanos;
+        private int fieldCount;
+        private long payloadBytes;
+        private long serializationNanos;
+        private long cryptoNanos;
+        private long encodingNanos;
+
+        // Of the field in progress
+        private long fieldStart;
+        private long fieldBytes;
+        private long fieldSerializationNanos;
+        private long fieldCryptoNanos;
+        private long fieldEncodingNanos;
+
+        DocumentCost(DocumentEvent.Operation operation, Class<?> entityClass) {
+            this.operation = operation;
+            this.entityClass = entityClass;
+        }
+
+        void keysResolved() {
+            keyResolutionNanos = System.nanoTime() - start;
+        }
+
+        void startField() {
+            fieldStart = System.nanoTime();
+            fieldBytes = fieldSerializationNanos = fieldCryptoNanos = fieldEncodingNanos = 0;
+        }
+
+        void serialized(long nanos, long bytes) {
+            fieldSerializationNanos += nanos;
+            fieldBytes += bytes;
+        }
+
+        void crypto(long nanos) {
+            fieldCryptoNanos += nanos;
+        }
+
+        void encoded(long nanos) {
+            fieldEncodingNanos += nanos;
+        }
+
+        void endField(String jsonName) {
+            fieldCount++;
+            payloadBytes += fieldBytes;
+            serializationNanos += fieldSerializationNanos;
+            cryptoNanos += fieldCryptoNanos;
+            encodingNanos += fieldEncodingNanos;
+            EncryptionEvents.fieldProcessed(new FieldEvent(operation, entityClass, jsonName, fieldBytes, fieldSerializationNanos,
+                    fieldCryptoNanos, fieldEncodingNanos, System.nanoTime() - fieldStart));
+        }
+
+        void finish(String scope) {
+            EncryptionEvents.documentProcessed(new DocumentEvent(operation, entityClass, EncryptionEvents.hashScope(scope), fieldCount,
+                    payloadBytes, keyResolutionNanos, serializationNanos, cryptoNanos, encodingNanos, System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Hands the field-level operations of a single document to a generated {@link EncryptionHandler}.
+     */
+    private final class DocumentCipher implements EncryptionHandler.FieldCipher {
+        private final Mapper mapper;
+        private final Crypter crypter;
+        private final String scope;
+
+        DocumentCipher(Mapper mapper, Crypter crypter, String scope) {
+            this.mapper = mapper;
+            this.crypter = crypter;
+            this.scope = scope;
+        }
+
+        @Override
+        public void encrypt(DBObject dbObject, String jsonName, Class<?> type, FieldPolicy policy) {
+            encryptField(dbObject, mapper, crypter, scope, jsonName, type, policy, false);
+        }
+
+        @Override
+        public void encryptElements(DBObject dbObject, String jsonName, FieldPolicy policy) {
+            encryptField(dbObject, mapper, crypter, scope, jsonName, null, policy, true);
+        }
+
+        @Override
+        public void decrypt(DBObject dbObject, String jsonName, Class<?> type, FieldPolicy policy) {
+            decryptField(dbObject, mapper, crypter, scope, jsonName, type, policy, false, type);
+        }
+
+        @Override
+        public void decryptElements(DBObject dbObject, String jsonName, Class<?> type, Class<?> elementType) {
+            decryptField(dbObject, mapper, crypter, scope, jsonName, type, FieldPolicy.DEFAULT, true, elementType);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the blind index can not be computed, failing the save rather than storing a document
+     *                               without a companion that any query for a missing hash would match
+     */
+    private void putBlindIndex(DBObject dbObject, String scope, String jsonName, Object value) {
+        if (value == null) {
+            dbObject.removeField(BlindIndex.companionName(jsonName));
+        } else {
+            dbObject.put(BlindIndex.companionName(jsonName), computeBlindIndex(scope, jsonName, value));
+        }
+    }
+
+    private String computeBlindIndex(String scope, String jsonName, Object value) {
+        final String hash = blindIndex.compute(scope, getIndexedBytes(value));
+        if (hash == null) {
+            throw new IllegalStateException("Unable to compute the blind index of " + jsonName + " in scope " + scope);
+        }
+        return hash;
+    }
+
+    private static byte[] getIndexedBytes(Object value) {
+        return (value instanceof String ? (String) value : JSON.serialize(value)).getBytes(UTF8_CHARSET);
+    }
+
+    /**
+     * Restricts the query to documents whose {@link EncryptAtRest#blindIndex() blind-indexed} field equals the given value.
+     * Blind indexes are keyed per scope, so only documents within that scope can match.
+     *
+     * @param query     query over an entity with a dynamic {@link EncryptionScope}
+     * @param fieldName java name of the blind-indexed field
+     * @param scope     scope of the documents to look in
+     * @param value     plaintext value to look for, never null: documents without a value have no blind index to match
+     * @throws IllegalStateException if the blind index can not be computed, e.g. because the scope was shredded
+     */
+    public <T> Query<T> blindIndexEqual(Query<T> query, String fieldName, Object scope, Object value) {
+        final Class<T> clazz = query.getEntityClass();
+        final EncryptionPlan.EncryptedField field = plans.getUnchecked(clazz).getEncryptedField(fieldName);
+        if (field == null || !field.policy.isBlindIndex()) {
+            throw new IllegalArgumentException(fieldName + " is not a blind-indexed field of " + clazz.getCanonicalName());
+        }
+        if (value == null) {
+            // Would match every document, in every scope, without the companion field
+            throw new IllegalArgumentException("Can not look up a null value by blind index");
+        }
+
+        final String companionName = BlindIndex.companionName(field.jsonName);
+        final String hash = computeBlindIndex(String.valueOf(scope), field.jsonName, value);
+
+        // The companion field is not mapped, so it can not pass Morphia's field validation
+        query.disableValidation().field(companionName).equal(hash);
+        return query.enableValidation();
+    }
+
+    /**
+     * As {@link #blindIndexEqual(Query, String, Object, Object)}, for entities with a static {@link EncryptionScope}.
+     */
+    public <T> Query<T> blindIndexEqual(Query<T> query, String fieldName, Object value) {
+        final EncryptionPlan plan = plans.getUnchecked(query.getEntityClass());
+        if (plan.scope == null || !plan.scope.isStatic()) {
+            throw new IllegalArgumentException(query.getEntityClass().getCanonicalName() + " does not have a static scope");
+        }
+        return blindIndexEqual(query, fieldName, plan.scope.annotation.scope(), value);
+    }
+
+    /**
+     * Ensures that every blind index companion field of the given entity is indexed.
+     */
+    public void ensureBlindIndexes(Datastore ds, Class<?> clazz) {
+        for (EncryptionPlan.EncryptedField field : plans.getUnchecked(clazz).encryptedFields) {
+            if (field.policy.isBlindIndex()) {
+                ds.getCollection(clazz).ensureIndex(new BasicDBObject(BlindIndex.companionName(field.jsonName), 1));
+            }
+        }
+    }
+
+}
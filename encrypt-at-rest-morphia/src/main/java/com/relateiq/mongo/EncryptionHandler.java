@@ -0,0 +1,46 @@
+package com.relateiq.mongo;
+
+import com.mongodb.DBObject;
+import com.relateiq.annotations.EncryptionScope;
+
+/**
+ * Straight-line encryption code for a single entity class, generated at compile time by the encrypt-at-rest-processor module
+ * as {@code <Entity>_EncryptionHandler} in the package of the entity. When present, {@link EncryptAtRestInterceptor} uses it
+ * instead of resolving scopes and fields through reflection.
+ * <p/>
+ * Handlers are generated for every class with encrypted fields or a scope, embedded classes included, as long as the generated
+ * code can reach them; everything else (private classes, generic classes, private scope fields without a getter) keeps using
+ * reflection.
+ */
+public interface EncryptionHandler<T> {
+    /**
+     * @return the {@link EncryptionScope} annotation of the entity, or null if it has none
+     */
+    EncryptionScope getEncryptionScope();
+
+    /**
+     * @return the scope of the document, preferring the value in the database object over the one on the entity; null if
+     * the entity has no scope
+     */
+    String getScope(T entity, DBObject dbObject);
+
+    void encrypt(DBObject dbObject, FieldCipher cipher);
+
+    void decrypt(DBObject dbObject, FieldCipher cipher);
+
+    /**
+     * Encrypts and decrypts the fields of one document, with the crypter of its scope.
+     */
+    interface FieldCipher {
+        void encrypt(DBObject dbObject, String jsonName, Class<?> type, FieldPolicy policy);
+
+        /**
+         * Encrypts the elements of a List, array or Map field one by one.
+         */
+        void encryptElements(DBObject dbObject, String jsonName, FieldPolicy policy);
+
+        void decrypt(DBObject dbObject, String jsonName, Class<?> type, FieldPolicy policy);
+
+        void decryptElements(DBObject dbObject, String jsonName, Class<?> type, Class<?> elementType);
+    }
+}
@@ -0,0 +1,71 @@
+package com.relateiq.mongo;
+
+import com.relateiq.annotations.EncryptAtRest;
+import com.relateiq.annotations.EncryptionScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+
+/**
+ * Finds the {@link EncryptionHandler} generated for an entity class, if there is one.
+ */
+public final class EncryptionHandlers {
+    public static final String HANDLER_SUFFIX = "_EncryptionHandler";
+    private static final Logger log = LoggerFactory.getLogger(EncryptionHandlers.class);
+
+    private EncryptionHandlers() {
+    }
+
+    /**
+     * @return the generated handler of the class, or null to fall back to reflection
+     */
+    static EncryptionHandler<?> find(Class<?> clazz) {
+        try {
+            final Class<?> handlerClass = Class.forName(clazz.getName() + HANDLER_SUFFIX, true, clazz.getClassLoader());
+            return (EncryptionHandler<?>) handlerClass.newInstance();
+        } catch (ClassNotFoundException | NoClassDefFoundError e) {
+            return null;
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            log.warn("Unable to use the generated encryption handler of {}: {} - {}", clazz.getCanonicalName(),
+                    e.getClass().getSimpleName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Used by generated handlers to expose the annotation itself, read once when the handler is loaded.
+     */
+    public static EncryptionScope getEncryptionScope(Class<?> clazz, String fieldName) {
+        // The scope may be inherited; the nearest annotated declaration wins, as it does in the processor
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                final EncryptionScope annotation = c.getDeclaredField(fieldName).getAnnotation(EncryptionScope.class);
+                if (annotation != null) {
+                    return annotation;
+                }
+            } catch (NoSuchFieldException e) {
+                // keep looking
+            }
+        }
+        throw new IllegalStateException("Generated encryption handler of " + clazz.getCanonicalName() + " is out of date");
+    }
+
+    /**
+     * Used by generated handlers to resolve the {@link FieldPolicy} of each encrypted field once, when the handler is loaded.
+     */
+    public static FieldPolicy getFieldPolicy(Class<?> clazz, String fieldName) {
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                final Field field = c.getDeclaredField(fieldName);
+                if (field.isAnnotationPresent(EncryptAtRest.class)) {
+                    return FieldPolicy.of(field, field.getAnnotation(EncryptAtRest.class).elements()
+                            && EncryptionPlan.ContainerKind.of(field.getType()) != EncryptionPlan.ContainerKind.NONE);
+                }
+            } catch (NoSuchFieldException e) {
+                // keep looking
+            }
+        }
+        throw new IllegalStateException("Generated encryption handler of " + clazz.getCanonicalName() + " is out of date");
+    }
+}
@@ -0,0 +1,362 @@
+package com.relateiq.mongo;
+
+import com.esotericsoftware.reflectasm.FieldAccess;
+import com.google.common.collect.ImmutableList;
+import com.relateiq.annotations.EncryptAtRest;
+import com.relateiq.annotations.EncryptionScope;
+import org.mongodb.morphia.annotations.Embedded;
+import org.mongodb.morphia.annotations.Id;
+import org.mongodb.morphia.annotations.Property;
+import org.mongodb.morphia.annotations.Reference;
+import org.mongodb.morphia.annotations.Transient;
+import org.mongodb.morphia.mapping.Mapper;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything {@link EncryptAtRestInterceptor} needs to know about a class, resolved once: where its scope lives, which fields are
+ * encrypted (under which JSON names, and with which {@link FieldPolicy}), and which embedded objects, Lists and Maps contain
+ * encrypted fields of their own.
+ * <p/>
+ * Embedded objects without a scope of their own have their fields encrypted with the crypter of the enclosing document.  Classes
+ * that (indirectly) embed themselves refer back to their own plan through a {@link PlanRef} filled in once compiling them
+ * finishes, so their encrypted fields are encrypted at every depth.
+ * <p/>
+ * Fields inherited from superclasses are merged in from the (shared) plans of those superclasses; a scope declared on the class
+ * itself takes precedence over an inherited one.
+ * <p/>
+ * If a {@link EncryptionHandler} was generated for the class, it takes over resolving the scope and the top-level fields.
+ */
+final class EncryptionPlan {
+    static final EncryptionPlan EMPTY = new EncryptionPlan(Object.class, null, ImmutableList.<EncryptedField>of(),
+            ImmutableList.<NestedField>of(), null);
+
+    final Class<?> clazz;
+    final ScopeField scope;
+    final List<EncryptedField> encryptedFields;
+    final List<NestedField> nestedFields;
+    final EncryptionHandler handler;
+    /**
+     * Whether {@link #isEmpty()}, once every plan reachable from this one is compiled
+     */
+    private volatile Boolean empty;
+
+    EncryptionPlan(Class<?> clazz, ScopeField scope, List<EncryptedField> encryptedFields, List<NestedField> nestedFields,
+                   EncryptionHandler handler) {
+        this.clazz = clazz;
+        this.scope = scope;
+        this.encryptedFields = encryptedFields;
+        this.nestedFields = nestedFields;
+        this.handler = handler;
+    }
+
+    EncryptionScope getEncryptionScope() {
+        if (handler != null) {
+            return handler.getEncryptionScope();
+        }
+        return scope == null ? null : scope.annotation;
+    }
+
+    /**
+     * @return true if neither this class nor anything embedded in it has encrypted fields
+     */
+    boolean isEmpty() {
+        Boolean known = empty;
+        if (known == null) {
+            known = isEmpty(Collections.newSetFromMap(new IdentityHashMap<EncryptionPlan, Boolean>()));
+            if (known == null) {
+                // Still compiling a class that embeds itself, which may well encrypt something
+                return false;
+            }
+            empty = known;
+        }
+        return known;
+    }
+
+    /**
+     * @return null if it depends on a plan that is still being compiled
+     */
+    private Boolean isEmpty(Collection<EncryptionPlan> visited) {
+        if (!encryptedFields.isEmpty()) {
+            return false;
+        }
+        if (!visited.add(this)) {
+            return true;
+        }
+
+        boolean resolved = true;
+        for (NestedField nested : nestedFields) {
+            if (!nested.ref.isResolved()) {
+                resolved = false;
+                continue;
+            }
+
+            final EncryptionPlan plan = nested.ref.get();
+            if (plan.scope == null) {
+                final Boolean nestedEmpty = plan.isEmpty(visited);
+                if (nestedEmpty == null) {
+                    resolved = false;
+                } else if (!nestedEmpty) {
+                    return false;
+                }
+            }
+        }
+        return resolved ? Boolean.TRUE : null;
+    }
+
+    EncryptedField getEncryptedField(String name) {
+        for (EncryptedField field : encryptedFields) {
+            if (field.name.equals(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    interface PlanLookup {
+        /**
+         * @return the plan of an embedded class, unresolved if that class is still being compiled
+         */
+        PlanRef get(Class<?> clazz);
+
+        EncryptionPlan getInherited(Class<?> superclass);
+    }
+
+    /**
+     * @param clazz  class to plan
+     * @param nested resolves the plans of superclasses and embedded classes
+     */
+    static EncryptionPlan compile(Class<?> clazz, PlanLookup nested) {
+        ScopeField scope = null;
+        ImmutableList.Builder<EncryptedField> encryptedFields = ImmutableList.builder();
+        ImmutableList.Builder<NestedField> nestedFields = ImmutableList.builder();
+
+        final Class<?> superclass = clazz.getSuperclass();
+        final EncryptionPlan inherited = superclass == null || !isEmbeddable(superclass) ? EMPTY : nested.getInherited(superclass);
+        encryptedFields.addAll(inherited.encryptedFields);
+        nestedFields.addAll(inherited.nestedFields);
+
+        for (Field f : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers()) || f.isAnnotationPresent(Transient.class)) {
+                continue;
+            }
+
+            if (scope == null && f.isAnnotationPresent(EncryptionScope.class)) {
+                scope = new ScopeField(clazz, f.getName(), getJsonName(f), f.getAnnotation(EncryptionScope.class));
+            }
+
+            if (f.isAnnotationPresent(EncryptAtRest.class)) {
+                final EncryptAtRest annotation = f.getAnnotation(EncryptAtRest.class);
+                final ContainerKind kind = annotation.elements() ? ContainerKind.of(f.getType()) : ContainerKind.NONE;
+                encryptedFields.add(new EncryptedField(f, getJsonName(f), annotation, FieldPolicy.of(f, kind != ContainerKind.NONE),
+                        kind, kind == ContainerKind.NONE ? f.getType() : getElementType(f)));
+                continue;
+            }
+
+            final ContainerKind kind = ContainerKind.of(f.getType());
+            final Class<?> embeddedType = kind == ContainerKind.NONE ? f.getType() : getElementType(f);
+            if (isEmbeddable(embeddedType) && !f.isAnnotationPresent(Reference.class)) {
+                // Embedded classes with a scope of their own are encrypted by the interceptor when Morphia maps them
+                // A class still being compiled embeds itself, and is followed in case it turns out to encrypt anything
+                final PlanRef ref = nested.get(embeddedType);
+                if (!ref.isResolved() || (ref.get().scope == null && !ref.get().isEmpty())) {
+                    nestedFields.add(new NestedField(f.getName(), getJsonName(f), kind, ref));
+                }
+            }
+        }
+
+        return new EncryptionPlan(clazz, scope == null ? inherited.scope : scope, encryptedFields.build(), nestedFields.build(),
+                EncryptionHandlers.find(clazz));
+    }
+
+    static String getJsonName(Field field) {
+        if (field.isAnnotationPresent(Id.class)) {
+            return "_id";
+        } else if (field.isAnnotationPresent(Property.class)) {
+            return getJsonName(field, field.getAnnotation(Property.class).value());
+        } else if (field.isAnnotationPresent(Embedded.class)) {
+            return getJsonName(field, field.getAnnotation(Embedded.class).value());
+        } else {
+            return field.getName();
+        }
+    }
+
+    private static String getJsonName(Field field, String annotated) {
+        return annotated == null || annotated.isEmpty() || annotated.equals(Mapper.IGNORED_FIELDNAME) ? field.getName() : annotated;
+    }
+
+    /**
+     * @return the element type of a Collection or array field, or the value type of a Map field
+     */
+    private static Class<?> getElementType(Field field) {
+        if (field.getType().isArray()) {
+            return field.getType().getComponentType();
+        }
+
+        final Type generic = field.getGenericType();
+        if (generic instanceof ParameterizedType) {
+            final Type[] arguments = ((ParameterizedType) generic).getActualTypeArguments();
+            final Type element = arguments[arguments.length - 1];
+            if (element instanceof Class) {
+                return (Class<?>) element;
+            } else if (element instanceof ParameterizedType) {
+                return (Class<?>) ((ParameterizedType) element).getRawType();
+            } else if (element instanceof GenericArrayType) {
+                return Object[].class;
+            }
+        }
+        return Object.class;
+    }
+
+    private static boolean isEmbeddable(Class<?> type) {
+        return !type.isPrimitive() && !type.isEnum() && !type.isArray() && !type.isInterface()
+                && !type.getName().startsWith("java.") && !type.getName().startsWith("org.bson.")
+                && !type.getName().startsWith("com.mongodb.");
+    }
+
+    enum ContainerKind {
+        NONE, LIST, MAP;
+
+        static ContainerKind of(Class<?> type) {
+            if (Map.class.isAssignableFrom(type)) {
+                return MAP;
+            } else if (Collection.class.isAssignableFrom(type) || (type.isArray() && !type.getComponentType().isPrimitive())) {
+                return LIST;
+            }
+            return NONE;
+        }
+    }
+
+    static final class ScopeField {
+        final Class<?> declaringClass;
+        final String name;
+        final String jsonName;
+        final EncryptionScope annotation;
+        private volatile FieldAccess fieldAccess;
+
+        ScopeField(Class<?> declaringClass, String name, String jsonName, EncryptionScope annotation) {
+            this.declaringClass = declaringClass;
+            this.name = name;
+            this.jsonName = jsonName;
+            this.annotation = annotation;
+        }
+
+        boolean isStatic() {
+            return !annotation.scope().isEmpty();
+        }
+
+        /**
+         * Reads the scope straight off the entity, for documents that do not (yet) carry it.
+         */
+        Object get(Object o) {
+            if (fieldAccess == null) {
+                fieldAccess = FieldAccess.get(declaringClass);
+            }
+            return fieldAccess.get(o, name);
+        }
+    }
+
+    static final class EncryptedField {
+        final Field field;
+        final String name;
+        final String jsonName;
+        final Class<?> type;
+        final EncryptAtRest annotation;
+        final FieldPolicy policy;
+        /**
+         * {@link ContainerKind#NONE} unless the elements of the field are encrypted one by one
+         */
+        final ContainerKind elements;
+        final Class<?> elementType;
+
+        EncryptedField(Field field, String jsonName, EncryptAtRest annotation, FieldPolicy policy, ContainerKind elements,
+                       Class<?> elementType) {
+            this.field = field;
+            this.name = field.getName();
+            this.jsonName = jsonName;
+            this.type = field.getType();
+            this.annotation = annotation;
+            this.policy = policy;
+            this.elements = elements;
+            this.elementType = elementType;
+        }
+
+        /**
+         * Reads the value straight off the entity, for {@link FieldPolicy#isLazy() lazy} fields.
+         */
+        Object get(Object o) {
+            if (!field.isAccessible()) {
+                field.setAccessible(true);
+            }
+            try {
+                return field.get(o);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static final class NestedField {
+        final String name;
+        final String jsonName;
+        final ContainerKind kind;
+        private final PlanRef ref;
+
+        NestedField(String name, String jsonName, ContainerKind kind, PlanRef ref) {
+            this.name = name;
+            this.jsonName = jsonName;
+            this.kind = kind;
+            this.ref = ref;
+        }
+
+        /**
+         * @return the plan to encrypt the embedded objects with, or null if they are encrypted on their own or not at all
+         */
+        EncryptionPlan getPlan() {
+            final EncryptionPlan plan = ref.get();
+            return plan.scope != null || plan.isEmpty() ? null : plan;
+        }
+    }
+
+    /**
+     * The plan of an embedded class, resolved once that class is compiled.
+     */
+    static final class PlanRef {
+        private final Class<?> clazz;
+        private volatile EncryptionPlan plan;
+
+        PlanRef(Class<?> clazz) {
+            this.clazz = clazz;
+        }
+
+        PlanRef(EncryptionPlan plan) {
+            this.clazz = plan.clazz;
+            this.plan = plan;
+        }
+
+        boolean isResolved() {
+            return plan != null;
+        }
+
+        EncryptionPlan get() {
+            final EncryptionPlan resolved = plan;
+            if (resolved == null) {
+                throw new IllegalStateException("The encryption plan of " + clazz.getCanonicalName() + " is still being compiled");
+            }
+            return resolved;
+        }
+
+        void resolve(EncryptionPlan plan) {
+            this.plan = plan;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.relateiq.mongo;
+
+import com.relateiq.annotations.EncryptAtRest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+
+/**
+ * The attributes of an {@link EncryptAtRest} field, resolved once against the type of the field: attributes that do not apply
+ * to it are dropped (with a warning) instead of being checked on every read and write.
+ * <p/>
+ * Only the writing side follows the policy; values carry enough of a header to be read back whatever the policy was when they
+ * were written, so attributes can be changed without migrating existing documents.
+ */
+public final class FieldPolicy {
+    private static final Logger log = LoggerFactory.getLogger(FieldPolicy.class);
+
+    public static final FieldPolicy DEFAULT = new FieldPolicy(false, EncryptAtRest.Codec.JSON, EncryptAtRest.Compression.NONE,
+            EncryptAtRest.Format.STRING, false, false);
+
+    private final boolean blindIndex;
+    private final EncryptAtRest.Codec codec;
+    private final EncryptAtRest.Compression compression;
+    private final EncryptAtRest.Format format;
+    private final boolean lazy;
+    private final boolean cacheable;
+
+    private FieldPolicy(boolean blindIndex, EncryptAtRest.Codec codec, EncryptAtRest.Compression compression,
+                        EncryptAtRest.Format format, boolean lazy, boolean cacheable) {
+        this.blindIndex = blindIndex;
+        this.codec = codec;
+        this.compression = compression;
+        this.format = format;
+        this.lazy = lazy;
+        this.cacheable = cacheable;
+    }
+
+    /**
+     * @param field    the annotated field
+     * @param elements whether the elements of the field are encrypted one by one
+     */
+    static FieldPolicy of(Field field, boolean elements) {
+        final EncryptAtRest annotation = field.getAnnotation(EncryptAtRest.class);
+        final String name = field.getDeclaringClass().getSimpleName() + "." + field.getName();
+
+        if (elements) {
+            // Elements are small and encrypted one by one; they are always stored as JSON text
+            if (annotation.codec() != EncryptAtRest.Codec.JSON || annotation.compression() != EncryptAtRest.Compression.NONE
+                    || annotation.format() != EncryptAtRest.Format.STRING || annotation.lazy() || annotation.cacheable()) {
+                log.warn("Ignoring the codec, compression, format, lazy and cacheable attributes of {}, whose elements are encrypted one by one", name);
+            }
+            return new FieldPolicy(annotation.blindIndex(), EncryptAtRest.Codec.JSON, EncryptAtRest.Compression.NONE,
+                    EncryptAtRest.Format.STRING, false, false);
+        }
+
+        boolean lazy = annotation.lazy();
+        if (lazy && (!field.getType().equals(String.class) || annotation.format() != EncryptAtRest.Format.STRING)) {
+            // Morphia has to be able to map the ciphertext into the field as it is
+            log.warn("Decrypting {} eagerly; only String fields stored as {} can be lazy", name, EncryptAtRest.Format.STRING);
+            lazy = false;
+        }
+
+        return new FieldPolicy(annotation.blindIndex(), annotation.codec(), annotation.compression(), annotation.format(), lazy,
+                annotation.cacheable());
+    }
+
+    public boolean isBlindIndex() {
+        return blindIndex;
+    }
+
+    public EncryptAtRest.Codec getCodec() {
+        return codec;
+    }
+
+    public EncryptAtRest.Compression getCompression() {
+        return compression;
+    }
+
+    public EncryptAtRest.Format getFormat() {
+        return format;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    public boolean isCacheable() {
+        return cacheable;
+    }
+}
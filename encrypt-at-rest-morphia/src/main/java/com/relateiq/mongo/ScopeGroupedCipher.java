@@ -0,0 +1,104 @@
+package com.relateiq.mongo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.mongodb.DBObject;
+import com.relateiq.annotations.EncryptionScope;
+import org.javatuples.Pair;
+import org.keyczar.Crypter;
+import org.mongodb.morphia.mapping.Mapper;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decrypts and encrypts batches of documents that belong to many scopes, as cross-tenant queries return them.  Documents are
+ * grouped by the value of their scope, the crypter of each group is resolved once, and every group runs through a single cipher
+ * context before the next one; results come back in the original order.
+ * <p/>
+ * Everything happens on the caller's thread; see {@link AsyncDecryptingLoader} and {@link BulkEncryptingInserter} to spread the
+ * work over an executor instead.
+ */
+public class ScopeGroupedCipher {
+    private final Mapper mapper;
+    private final EncryptAtRestInterceptor interceptor;
+
+    public ScopeGroupedCipher(Mapper mapper, EncryptAtRestInterceptor interceptor) {
+        this.mapper = mapper;
+        this.interceptor = interceptor;
+    }
+
+    /**
+     * @param dbObjects raw documents, e.g. a {@link com.mongodb.DBCursor}
+     * @return the mapped entities, in the order of the documents; documents whose keys could not be loaded are mapped as they
+     * are stored, as {@link EncryptAtRestInterceptor} would
+     */
+    public <T> List<T> decrypt(Class<T> clazz, Iterable<DBObject> dbObjects) {
+        final List<DBObject> ordered = Lists.newArrayList(dbObjects);
+        final Map<Object, List<DBObject>> groups = Maps.newLinkedHashMap();
+        for (DBObject dbObject : ordered) {
+            final Object scope = interceptor.getRawScope(clazz, dbObject);
+            if (scope != null) {
+                List<DBObject> group = groups.get(scope);
+                if (group == null) {
+                    group = Lists.newArrayList();
+                    groups.put(scope, group);
+                }
+                group.add(dbObject);
+            }
+        }
+
+        if (!groups.isEmpty()) {
+            final EncryptionScope encryptionScope = interceptor.getEncryptionScope(clazz);
+            for (Map.Entry<Object, List<DBObject>> group : groups.entrySet()) {
+                final String scope = String.valueOf(group.getKey());
+                final Crypter crypter = interceptor.loadCrypter(Pair.with(encryptionScope, scope));
+                if (crypter != null) {
+                    interceptor.decrypt(clazz, group.getValue(), mapper, crypter, scope);
+                }
+            }
+        }
+
+        final List<T> entities = Lists.newArrayListWithCapacity(ordered.size());
+        for (DBObject dbObject : ordered) {
+            entities.add(interceptor.fromDecryptedDBObject(mapper, clazz, dbObject));
+        }
+        return entities;
+    }
+
+    /**
+     * Maps and encrypts entities without writing them, e.g. to insert or update them in bulk.
+     *
+     * @return the documents of the entities, in their order; entities whose keys could not be loaded are left unencrypted, as
+     * {@link EncryptAtRestInterceptor} would
+     */
+    public List<DBObject> encrypt(Iterable<?> entities) {
+        final List<Object> ordered = Lists.newArrayList(entities);
+        final List<DBObject> dbObjects = Lists.newArrayListWithCapacity(ordered.size());
+        final Map<Pair<EncryptionScope, String>, Pair<List<Object>, List<DBObject>>> groups = Maps.newLinkedHashMap();
+        for (Object entity : ordered) {
+            final DBObject dbObject = interceptor.toUnencryptedDBObject(mapper, entity);
+            dbObjects.add(dbObject);
+
+            final Pair<EncryptionScope, String> scopeKey = interceptor.getScopeKey(entity, dbObject);
+            if (scopeKey != null) {
+                Pair<List<Object>, List<DBObject>> group = groups.get(scopeKey);
+                if (group == null) {
+                    group = Pair.<List<Object>, List<DBObject>>with(Lists.newArrayList(), Lists.<DBObject>newArrayList());
+                    groups.put(scopeKey, group);
+                }
+                group.getValue0().add(entity);
+                group.getValue1().add(dbObject);
+            }
+        }
+
+        for (Map.Entry<Pair<EncryptionScope, String>, Pair<List<Object>, List<DBObject>>> group : groups.entrySet()) {
+            final Crypter crypter = interceptor.loadCrypter(group.getKey());
+            if (crypter != null) {
+                interceptor.encrypt(group.getValue().getValue0(), group.getValue().getValue1(), mapper, crypter,
+                        group.getKey().getValue1());
+            }
+        }
+        return dbObjects;
+    }
+}
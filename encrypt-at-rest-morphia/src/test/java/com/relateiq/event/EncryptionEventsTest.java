@@ -0,0 +1,111 @@
+package com.relateiq.event;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.relateiq.mongo.guice.MongoConfigModuleForTest;
+import com.relateiq.mongo.guice.MongoModuleForTest;
+import com.relateiq.mongo.impl.EncryptAtRestObject;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mongodb.morphia.Datastore;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.not;
+
+public class EncryptionEventsTest {
+    protected static Injector injector;
+
+    @Inject private Datastore ds;
+
+    private final List<DocumentEvent> documents = new CopyOnWriteArrayList<>();
+    private final List<FieldEvent> fields = new CopyOnWriteArrayList<>();
+    private final List<KeyEvent> keys = new CopyOnWriteArrayList<>();
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException {
+        injector = Guice.createInjector(new MongoModuleForTest(), new MongoConfigModuleForTest());
+    }
+
+    @Before
+    public void setup() {
+        injector.injectMembers(this);
+        EncryptionEvents.setListener(new EncryptionListener() {
+            @Override
+            public void documentProcessed(DocumentEvent event) {
+                documents.add(event);
+            }
+
+            @Override
+            public void fieldProcessed(FieldEvent event) {
+                fields.add(event);
+            }
+
+            @Override
+            public void keysResolved(KeyEvent event) {
+                keys.add(event);
+            }
+        });
+    }
+
+    @After
+    public void teardown() {
+        EncryptionEvents.setListener(null);
+        MongoModuleForTest.resetDBs();
+    }
+
+    @Test
+    public void savesAndLoadsAreRecorded() {
+        EncryptAtRestObject obj = new EncryptAtRestObject();
+        obj.scope = ObjectId.get();
+        obj.body = "Something encrypted";
+        ds.save(obj);
+        ds.createQuery(EncryptAtRestObject.class).field("scope").equal(obj.scope).get();
+
+        assertThat(documents.size(), equalTo(2));
+        final DocumentEvent save = documents.get(0);
+        assertThat(save.getOperation(), equalTo(DocumentEvent.Operation.SAVE));
+        assertThat(save.getEntityClass().equals(EncryptAtRestObject.class), equalTo(true));
+        assertThat(save.getScopeHash(), equalTo(EncryptionEvents.hashScope(obj.scope.toString())));
+        assertThat(save.getPayloadBytes(), greaterThan(0L));
+        assertThat(documents.get(1).getOperation(), equalTo(DocumentEvent.Operation.LOAD));
+        assertThat(documents.get(1).getFieldCount(), equalTo(save.getFieldCount()));
+
+        assertThat(fields.isEmpty(), equalTo(false));
+        assertThat(keys.isEmpty(), equalTo(false));
+    }
+
+    @Test
+    public void scopeHashesAreKeyed() {
+        String scope = ObjectId.get().toString();
+        EncryptionEvents.setScopeHashKey(new byte[32]);
+        int hash = EncryptionEvents.hashScope(scope);
+        assertThat(hash, not(scope.hashCode()));
+        assertThat(EncryptionEvents.hashScope(scope), equalTo(hash));
+
+        byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+        EncryptionEvents.setScopeHashKey(otherKey);
+        assertThat(EncryptionEvents.hashScope(scope), not(hash));
+    }
+
+    @Test
+    public void nothingIsRecordedWithoutAListener() {
+        EncryptionEvents.setListener(null);
+        EncryptAtRestObject obj = new EncryptAtRestObject();
+        obj.scope = ObjectId.get();
+        obj.body = "Something encrypted";
+        ds.save(obj);
+
+        assertThat(documents.isEmpty(), equalTo(true));
+    }
+}
@@ -0,0 +1,122 @@
+package com.relateiq.mongo;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Named;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.relateiq.AsyncCrypterFactory;
+import com.relateiq.CrypterFactory;
+import com.relateiq.annotations.KeyczarReaderFactory;
+import com.relateiq.mongo.guice.MongoConfigModuleForTest;
+import com.relateiq.mongo.guice.MongoModuleForTest;
+import com.relateiq.mongo.impl.EncryptAtRestObject;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.Morphia;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+public class AsyncDecryptingLoaderTest {
+    protected static Injector injector;
+
+    @Inject private Datastore ds;
+    @Inject @Named("UnencryptedDataSource") private Datastore unencryptedDs;
+    @Inject private Morphia morphia;
+    @Inject private EncryptAtRestInterceptor interceptor;
+    @Inject private CrypterFactory crypterFactory;
+
+    private ExecutorService executor;
+    private AsyncCrypterFactory asyncCrypterFactory;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException {
+        injector = Guice.createInjector(new MongoModuleForTest(), new MongoConfigModuleForTest());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        injector.injectMembers(this);
+        executor = Executors.newFixedThreadPool(2);
+        asyncCrypterFactory = new AsyncCrypterFactory(crypterFactory, 4, 64);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        asyncCrypterFactory.close();
+        executor.shutdownNow();
+        MongoModuleForTest.resetDBs();
+    }
+
+    @Test
+    public void loadsInterleavedScopesInOrder() throws Exception {
+        final List<ObjectId> scopes = Lists.newArrayList(ObjectId.get(), ObjectId.get(), ObjectId.get());
+        final List<EncryptAtRestObject> saved = Lists.newArrayList();
+        for (int i = 0; i < 12; i++) {
+            EncryptAtRestObject obj = new EncryptAtRestObject();
+            obj.scope = scopes.get(i % scopes.size());
+            obj.body = "Something encrypted " + i;
+            ds.save(obj);
+            saved.add(obj);
+        }
+
+        final List<DBObject> dbObjects = unencryptedDs.getCollection(EncryptAtRestObject.class).find()
+                .sort(new BasicDBObject("_id", 1)).toArray();
+        final List<EncryptAtRestObject> loaded = new AsyncDecryptingLoader(morphia.getMapper(), interceptor, asyncCrypterFactory, executor)
+                .load(EncryptAtRestObject.class, dbObjects).get(10, TimeUnit.SECONDS);
+
+        assertThat(loaded.size(), equalTo(saved.size()));
+        for (int i = 0; i < saved.size(); i++) {
+            assertThat(loaded.get(i).scope, equalTo(saved.get(i).scope));
+            assertThat(loaded.get(i).body, equalTo(saved.get(i).body));
+        }
+        assertThat(asyncCrypterFactory.getLoadCount() <= scopes.size(), equalTo(true));
+    }
+
+    @Test
+    public void documentsWhoseKeysFailToLoadAreMappedAsStored() throws Exception {
+        final ObjectId failing = ObjectId.get();
+        final List<EncryptAtRestObject> saved = Lists.newArrayList();
+        for (ObjectId scope : Lists.newArrayList(ObjectId.get(), failing)) {
+            EncryptAtRestObject obj = new EncryptAtRestObject();
+            obj.scope = scope;
+            obj.body = "Something encrypted";
+            ds.save(obj);
+            saved.add(obj);
+        }
+
+        final KeyczarReaderFactory readerFactory = injector.getInstance(KeyczarReaderFactory.class);
+        final CrypterFactory failingFactory = new CrypterFactory((scope, purpose, type, size) -> {
+            if (scope.equals(failing.toString())) {
+                throw new IllegalStateException("Key store unavailable");
+            }
+            return readerFactory.create(scope, purpose, type, size);
+        });
+
+        final List<DBObject> dbObjects = unencryptedDs.getCollection(EncryptAtRestObject.class).find()
+                .sort(new BasicDBObject("_id", 1)).toArray();
+        try (AsyncCrypterFactory factory = new AsyncCrypterFactory(failingFactory, 2, 8)) {
+            final List<EncryptAtRestObject> loaded = new AsyncDecryptingLoader(morphia.getMapper(), interceptor, factory, executor)
+                    .load(EncryptAtRestObject.class, dbObjects).get(10, TimeUnit.SECONDS);
+
+            assertThat(loaded.size(), equalTo(2));
+            assertThat(loaded.get(0).body, equalTo(saved.get(0).body));
+            assertThat(loaded.get(1).scope, equalTo(failing));
+            assertThat(loaded.get(1).body, not(saved.get(1).body));
+        }
+    }
+}
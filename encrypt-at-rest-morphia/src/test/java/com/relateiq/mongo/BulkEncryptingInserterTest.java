@@ -0,0 +1,123 @@
+package com.relateiq.mongo;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Named;
+import com.relateiq.mongo.guice.MongoConfigModuleForTest;
+import com.relateiq.mongo.guice.MongoModuleForTest;
+import com.relateiq.mongo.impl.EncryptAtRestBlindIndexObject;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.Key;
+import org.mongodb.morphia.Morphia;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.IsNot.not;
+
+public class BulkEncryptingInserterTest {
+    protected static Injector injector;
+
+    @Inject private Datastore ds;
+    @Inject @Named("UnencryptedDataSource") private Datastore unencryptedDs;
+    @Inject private Morphia morphia;
+    @Inject private EncryptAtRestInterceptor interceptor;
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException {
+        injector = Guice.createInjector(new MongoModuleForTest(), new MongoConfigModuleForTest());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        injector.injectMembers(this);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        executor.shutdownNow();
+        MongoModuleForTest.resetDBs();
+    }
+
+    @Test
+    public void bulkInsertEncryptsEveryEntityWithItsOwnScope() throws Exception {
+        List<ObjectId> scopes = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            scopes.add(ObjectId.get());
+        }
+
+        List<EncryptAtRestBlindIndexObject> objs = Lists.newArrayList();
+        for (int i = 0; i < 53; i++) {
+            EncryptAtRestBlindIndexObject obj = new EncryptAtRestBlindIndexObject();
+            obj.scope = scopes.get(i % scopes.size());
+            obj.email = "user" + i + "@example.com";
+            obj.body = "Something encrypted " + i;
+            objs.add(obj);
+        }
+
+        List<Key<EncryptAtRestBlindIndexObject>> keys = new BulkEncryptingInserter(ds, morphia.getMapper(), interceptor, executor, 7)
+                .insert(objs).get();
+        assertThat(keys.size(), equalTo(objs.size()));
+
+        for (int i = 0; i < objs.size(); i++) {
+            EncryptAtRestBlindIndexObject obj = objs.get(i);
+            assertThat(keys.get(i).getId(), equalTo((Object) obj.id));
+
+            EncryptAtRestBlindIndexObject asRead = ds.get(EncryptAtRestBlindIndexObject.class, obj.id);
+            assertThat(asRead.scope, equalTo(obj.scope));
+            assertThat(asRead.body, equalTo(obj.body));
+
+            EncryptAtRestBlindIndexObject actual = unencryptedDs.get(EncryptAtRestBlindIndexObject.class, obj.id);
+            assertThat(actual.body, not(obj.body));
+        }
+
+        EncryptAtRestBlindIndexObject byEmail = interceptor.blindIndexEqual(ds.createQuery(EncryptAtRestBlindIndexObject.class),
+                "email", objs.get(12).scope, objs.get(12).email).get();
+        assertThat(byEmail.id, equalTo(objs.get(12).id));
+    }
+
+    @Test(expected = BulkInsertException.class)
+    public void failedBulkInsertsReportTheEntitiesThatWereInserted() throws Throwable {
+        List<EncryptAtRestBlindIndexObject> objs = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            EncryptAtRestBlindIndexObject obj = new EncryptAtRestBlindIndexObject();
+            obj.id = ObjectId.get();
+            obj.scope = ObjectId.get();
+            obj.body = "Something encrypted " + i;
+            objs.add(obj);
+        }
+        EncryptAtRestBlindIndexObject existing = new EncryptAtRestBlindIndexObject();
+        existing.id = objs.get(10).id;
+        unencryptedDs.save(existing);
+
+        try {
+            new BulkEncryptingInserter(ds, morphia.getMapper(), interceptor, executor, 1).insert(objs).get();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(BulkInsertException.class));
+            List<? extends Key<?>> inserted = ((BulkInsertException) e.getCause()).getInserted();
+            assertThat(ds.getCount(EncryptAtRestBlindIndexObject.class), equalTo(inserted.size() + 1L));
+            for (Key<?> key : inserted) {
+                assertThat(key.getId(), not((Object) existing.id));
+                assertThat(ds.get(EncryptAtRestBlindIndexObject.class, key.getId()).body.startsWith("Something encrypted"),
+                        equalTo(true));
+            }
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.relateiq.mongo;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Named;
+import com.mongodb.MongoClient;
+import com.relateiq.CrypterFactory;
+import com.relateiq.audit.AuditLog;
+import com.relateiq.audit.AuditRecord;
+import com.relateiq.audit.AuditSink;
+import com.relateiq.mongo.guice.MongoConfigModuleForTest;
+import com.relateiq.mongo.guice.MongoModuleForTest;
+import com.relateiq.mongo.impl.EncryptAtRestObject;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.DatastoreImpl;
+import org.mongodb.morphia.Morphia;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class EncryptAtRestAuditTest {
+    protected static Injector injector;
+
+    @Inject private MongoClient mongo;
+    @Inject @Named("MONGO_DATABASE") private String dbName;
+    @Inject private Datastore ds;
+    @Inject private CrypterFactory crypterFactory;
+
+    private final List<AuditRecord> written = new CopyOnWriteArrayList<>();
+    private AuditLog auditLog;
+    private Datastore auditedDs;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException {
+        injector = Guice.createInjector(new MongoModuleForTest(), new MongoConfigModuleForTest());
+    }
+
+    @Before
+    public void setup() {
+        injector.injectMembers(this);
+        auditLog = AuditLog.newBuilder().setSink(new AuditSink() {
+            @Override
+            public void write(List<AuditRecord> records) {
+                written.addAll(records);
+            }
+
+            @Override
+            public void close() {
+            }
+        }).setService("test").build();
+
+        final Morphia morphia = new Morphia();
+        morphia.getMapper().getOptions().setStoreEmpties(true);
+        morphia.getMapper().addInterceptor(new EncryptAtRestInterceptor(crypterFactory,
+                EncryptAtRestInterceptor.DEFAULT_PLAINTEXT_CACHE_SIZE, auditLog));
+        auditedDs = new DatastoreImpl(morphia, mongo, dbName);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        auditLog.close();
+        MongoModuleForTest.resetDBs();
+    }
+
+    @Test
+    public void decryptedScopesAreAudited() throws IOException {
+        EncryptAtRestObject obj = new EncryptAtRestObject();
+        obj.scope = ObjectId.get();
+        obj.body = "Something encrypted";
+        auditedDs.save(obj);
+        for (int i = 0; i < 3; i++) {
+            auditedDs.createQuery(EncryptAtRestObject.class).field("scope").equal(obj.scope).get();
+        }
+        auditLog.close();
+
+        long decrypts = 0;
+        long encrypts = 0;
+        for (AuditRecord record : written) {
+            assertThat(record.getScope(), equalTo(obj.scope.toString()));
+            assertThat(record.getService(), equalTo("test"));
+            if (record.getOperation() == AuditRecord.Operation.DECRYPT) {
+                decrypts += record.getCount();
+            } else {
+                encrypts += record.getCount();
+            }
+        }
+        assertThat(decrypts, equalTo(3L));
+        assertThat(encrypts, equalTo(1L));
+    }
+}
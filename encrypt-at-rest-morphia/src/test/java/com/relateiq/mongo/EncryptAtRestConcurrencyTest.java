@@ -0,0 +1,141 @@
+package com.relateiq.mongo;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.relateiq.BlindIndex;
+import com.relateiq.CipherEngine;
+import com.relateiq.CrypterFactory;
+import com.relateiq.mongo.dao.ScopedKeyczarDAO;
+import com.relateiq.mongo.guice.MongoConfigModuleForTest;
+import com.relateiq.mongo.guice.MongoModuleForTest;
+import com.relateiq.mongo.impl.EncryptAtRestBlindIndexObject;
+import com.relateiq.mongo.load.StressRunner;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keyczar.Crypter;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+import org.mongodb.morphia.Datastore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+/**
+ * Hammers the shared interceptor, {@link CrypterFactory} and key store from many threads at once. Caching or parallelism added
+ * to any of them has to keep these passing.
+ */
+public class EncryptAtRestConcurrencyTest {
+    private static final Logger log = LoggerFactory.getLogger(EncryptAtRestConcurrencyTest.class);
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 20;
+
+    protected static Injector injector;
+
+    @Inject private Datastore ds;
+    @Inject private ScopedKeyczarDAO scopedKeyczarDAO;
+    @Inject private CrypterFactory crypterFactory;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException {
+        injector = Guice.createInjector(new MongoModuleForTest(), new MongoConfigModuleForTest());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        MongoModuleForTest.resetDBs();
+    }
+
+    @Test
+    public void concurrentSavesInANewScopeCreateExactlyOneKeyRing() throws Exception {
+        final ObjectId scope = ObjectId.get();
+        final List<EncryptAtRestBlindIndexObject> saved = new CopyOnWriteArrayList<>();
+
+        final StressRunner.Result result = StressRunner.run(THREADS, ITERATIONS, (thread, iteration) ->
+                saved.add(save(scope, thread, iteration)));
+        log.info("Single scope: {}", result);
+
+        assertThat(result.failures, empty());
+        assertRoundTrips(saved);
+        assertOneKeyRing(scope);
+    }
+
+    @Test
+    public void concurrentSavesAcrossOverlappingScopesRoundTrip() throws Exception {
+        final ObjectId[] scopes = new ObjectId[THREADS / 2];
+        for (int i = 0; i < scopes.length; i++) {
+            scopes[i] = ObjectId.get();
+        }
+        final List<EncryptAtRestBlindIndexObject> saved = new CopyOnWriteArrayList<>();
+
+        final StressRunner.Result result = StressRunner.run(THREADS, ITERATIONS, (thread, iteration) -> {
+            final EncryptAtRestBlindIndexObject obj = save(scopes[(thread + iteration) % scopes.length], thread, iteration);
+            saved.add(obj);
+            // Reads race with the writes of other threads to the same scopes
+            final EncryptAtRestBlindIndexObject asRead = ds.get(EncryptAtRestBlindIndexObject.class, obj.id);
+            assertThat(asRead.body, equalTo(obj.body));
+        });
+        log.info("Overlapping scopes: {}", result);
+
+        assertThat(result.failures, empty());
+        assertRoundTrips(saved);
+        for (ObjectId scope : scopes) {
+            assertOneKeyRing(scope);
+        }
+    }
+
+    @Test
+    public void sharedCrypterEncryptsAndDecryptsConcurrently() throws Exception {
+        final Crypter crypter = crypterFactory.create(ObjectId.get().toString(), KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+        assertThat(crypter, notNullValue());
+
+        final StressRunner.Result result = StressRunner.run(THREADS, ITERATIONS * 10, (thread, iteration) -> {
+            final String plaintext = "Something encrypted by " + thread + " at " + iteration;
+            final String ciphertext = CipherEngine.encrypt(crypter, plaintext.getBytes(CipherEngine.UTF8_CHARSET));
+            assertThat(new String(CipherEngine.decrypt(crypter, ciphertext), CipherEngine.UTF8_CHARSET), equalTo(plaintext));
+        });
+        log.info("Shared crypter: {}", result);
+
+        assertThat(result.failures, empty());
+    }
+
+    private EncryptAtRestBlindIndexObject save(ObjectId scope, int thread, int iteration) {
+        final EncryptAtRestBlindIndexObject obj = new EncryptAtRestBlindIndexObject();
+        obj.scope = scope;
+        obj.email = "user" + thread + "@example.com";
+        obj.body = "Something encrypted by " + thread + " at " + iteration;
+        ds.save(obj);
+        return obj;
+    }
+
+    private void assertRoundTrips(List<EncryptAtRestBlindIndexObject> saved) {
+        assertThat(saved.size(), equalTo(THREADS * ITERATIONS));
+        for (EncryptAtRestBlindIndexObject obj : saved) {
+            final EncryptAtRestBlindIndexObject asRead = ds.get(EncryptAtRestBlindIndexObject.class, obj.id);
+            assertThat(asRead.body, equalTo(obj.body));
+            assertThat(asRead.email, equalTo(obj.email));
+        }
+    }
+
+    private void assertOneKeyRing(ObjectId scope) {
+        assertThat(scopedKeyczarDAO.createQuery().field(ScopedKeyczarDAO.FIELD_SCOPE).equal(scope.toString()).countAll(), equalTo(1L));
+        assertThat(scopedKeyczarDAO.createQuery().field(ScopedKeyczarDAO.FIELD_SCOPE)
+                .equal(scope + BlindIndex.KEY_SCOPE_SUFFIX).countAll(), equalTo(1L));
+    }
+}
@@ -0,0 +1,464 @@
+package com.relateiq.mongo;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Named;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.relateiq.CrypterFactory;
+import com.relateiq.annotations.EncryptAtRest;
+import com.relateiq.mongo.guice.MongoConfigModuleForTest;
+import com.relateiq.mongo.guice.MongoModuleForTest;
+import com.relateiq.mongo.dao.ScopedKeyczarDAO;
+import com.relateiq.mongo.impl.*;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+import org.mongodb.morphia.Datastore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+
+import static junit.framework.TestCase.assertNotNull;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.IsNot.not;
+
+public class EncryptAtRestInterceptorTest {
+    Logger log = LoggerFactory.getLogger(EncryptAtRestInterceptorTest.class);
+
+    private static String SCOPE = "scope";
+    protected static Injector injector;
+
+    @Inject private ScopedKeyczarDAO scopedKeyczarDAO;
+    @Inject private Datastore ds;
+    @Inject @Named("UnencryptedDataSource") private Datastore unencryptedDs;
+    @Inject private EncryptAtRestInterceptor interceptor;
+    @Inject private CrypterFactory crypterFactory;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException {
+        injector = Guice.createInjector(new MongoModuleForTest(), new MongoConfigModuleForTest());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        injector.injectMembers(this);
+
+        ds = injector.getInstance(Datastore.class);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        MongoModuleForTest.resetDBs();
+    }
+
+    @Test
+    public void encryptAtRestObjectEncodesWithScope() {
+        EncryptAtRestObject obj = new EncryptAtRestObject();
+        obj.scope = ObjectId.get();
+        obj.body = "Something encrypted";
+        ds.save(obj);
+        final EncryptAtRestObject asRead = ds.createQuery(EncryptAtRestObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(asRead.scope, equalTo(obj.scope));
+        assertThat(asRead.body, equalTo(obj.body));
+
+        final EncryptAtRestObject actual = unencryptedDs.createQuery(EncryptAtRestObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(actual.scope, equalTo(obj.scope));
+        assertThat(actual.body, not(obj.body));
+    }
+
+    @Test
+    public void driverDecoderReadsDocumentsWrittenByInterceptor() {
+        EncryptAtRestObject obj = new EncryptAtRestObject();
+        obj.scope = ObjectId.get();
+        obj.body = "Something encrypted";
+        ds.save(obj);
+
+        final EncryptedFields fields = EncryptedFields.newBuilder().setScopePath(SCOPE).addField("body").build();
+        final DBObject asRead = unencryptedDs.getCollection(EncryptAtRestObject.class).find(new BasicDBObject(SCOPE, obj.scope))
+                .setDecoderFactory(new EncryptAtRestDBDecoderFactory(crypterFactory, fields)).next();
+        assertThat(asRead.get("body"), equalTo((Object) obj.body));
+    }
+
+    @Test
+    public void encryptWithStaticScopeWorks() {
+        EncryptWithStaticScopeObject obj = new EncryptWithStaticScopeObject();
+        obj.body = "Something encrypted";
+        ds.save(obj);
+        final EncryptWithStaticScopeObject asRead = ds.createQuery(EncryptWithStaticScopeObject.class).field("id").equal(obj.id).get();
+        assertThat(asRead.id, equalTo(obj.id));
+        assertThat(asRead.body, equalTo(obj.body));
+
+        final EncryptWithStaticScopeObject actual = unencryptedDs.createQuery(EncryptWithStaticScopeObject.class).field("id").equal(obj.id).get();
+        assertThat(asRead.id, equalTo(obj.id));
+        assertThat(actual.body, not(obj.body));
+    }
+
+    @Test
+    public void encryptAtRestObjectCanReadUnencryptedObjects() {
+        EncryptAtRestObject obj = new EncryptAtRestObject();
+        obj.scope = ObjectId.get();
+        obj.body = "Something encrypted";
+        unencryptedDs.save(obj);
+        final EncryptAtRestObject asRead = ds.createQuery(EncryptAtRestObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(asRead.scope, equalTo(obj.scope));
+        assertThat(asRead.body, equalTo(obj.body));
+
+        final EncryptAtRestObject actual = unencryptedDs.createQuery(EncryptAtRestObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(actual.scope, equalTo(obj.scope));
+        assertThat(actual.body, equalTo(obj.body));
+    }
+
+    @Test
+    public void encryptedDataIsUnreadableWhenKeysAreDestroyed() {
+        EncryptAtRestObject obj = new EncryptAtRestObject();
+        obj.scope = ObjectId.get();
+        obj.body = "Something encrypted";
+        ds.save(obj);
+
+        scopedKeyczarDAO.deleteByScope(obj.scope.toString());
+
+        final EncryptAtRestObject asRead = ds.createQuery(EncryptAtRestObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(asRead.scope, equalTo(obj.scope));
+        assertThat(asRead.body, not(obj.body));
+    }
+
+    @Test
+    public void encryptedDataIsUnreadableWhenKeyIllegallyChanged() {
+        EncryptAtRestObject obj = new EncryptAtRestObject();
+        obj.scope = ObjectId.get();
+        obj.body = "Something encrypted";
+        ds.save(obj);
+
+        ObjectId newId = ObjectId.get();
+        ds.update(ds.createQuery(EncryptAtRestObject.class).field(SCOPE).equal(obj.scope),
+                ds.createUpdateOperations(EncryptAtRestObject.class).set(SCOPE, newId));
+
+        final EncryptAtRestObject asRead = ds.createQuery(EncryptAtRestObject.class).field(SCOPE).equal(newId).get();
+        assertNotNull(asRead);
+        assertThat(asRead.scope, equalTo(newId));
+        assertThat(asRead.body, not(obj.body));
+    }
+
+    @Test
+    public void encryptAtRestObjectWithoutScopeDoesNotDie() {
+        EncryptAtRestObjectWithoutScope obj = new EncryptAtRestObjectWithoutScope();
+        obj.scope = ObjectId.get();
+        obj.body = "Something encrypted";
+        ds.save(obj);
+        final EncryptAtRestObjectWithoutScope asRead = ds.createQuery(EncryptAtRestObjectWithoutScope.class)
+                .field(SCOPE).equal(obj.scope).get();
+        assertThat(asRead.scope, equalTo(obj.scope));
+        assertThat(asRead.body, equalTo(obj.body));
+
+        final EncryptAtRestObjectWithoutScope actual = unencryptedDs.createQuery(EncryptAtRestObjectWithoutScope.class)
+                .field(SCOPE).equal(obj.scope).get();
+        assertThat(actual.scope, equalTo(obj.scope));
+        assertThat(actual.body, equalTo(obj.body));
+    }
+
+    @Test
+    public void unencryptedObjectWithScopeDoesNotDie() {
+        RestObject obj = new RestObject();
+        obj.scope = ObjectId.get();
+        obj.body = "Something plaintext";
+        ds.save(obj);
+        final RestObject asRead = ds.createQuery(RestObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(asRead.scope, equalTo(obj.scope));
+        assertThat(asRead.body, equalTo(obj.body));
+
+        final RestObject actual = unencryptedDs.createQuery(RestObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(actual.scope, equalTo(obj.scope));
+        assertThat(actual.body, equalTo(obj.body));
+    }
+
+    @Test
+    public void encryptAtRestObjectEncodesMapsWithScope() {
+        EncryptAtRestMapObject obj = new EncryptAtRestMapObject();
+        obj.scope = ObjectId.get();
+        obj.map = new HashMap<>();
+        obj.map.put("key1", "value");
+        obj.map.put("key2", "value");
+        ds.save(obj);
+        final EncryptAtRestMapObject asRead = ds.createQuery(EncryptAtRestMapObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(asRead.scope, equalTo(obj.scope));
+        assertThat(asRead.map, equalTo(obj.map));
+
+        final EncryptAtRestMapObject actual = unencryptedDs.createQuery(EncryptAtRestMapObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(actual.scope, equalTo(obj.scope));
+        assertThat(actual.map, not(obj.map));
+    }
+
+    @Test
+    public void encryptAtRestAnnotatedObjectEncodesSubsWithScope() {
+        EncryptAtRestWithAnnotations obj = new EncryptAtRestWithAnnotations();
+        obj.scope = ObjectId.get();
+        obj.subObject = new SubObject();
+        obj.subObject.name = "Name";
+        obj.subObject.test = 100;
+        ds.save(obj);
+        log.info("PostSave, PreLoad");
+        final EncryptAtRestWithAnnotations asRead = ds.createQuery(EncryptAtRestWithAnnotations.class).field("id").equal(obj.scope).get();
+        assertThat(asRead.scope, equalTo(obj.scope));
+        assertThat(asRead.subObject.name, equalTo(obj.subObject.name));
+        assertThat(asRead.subObject.test, equalTo(obj.subObject.test));
+
+        /*
+        final EncryptAtRestSubObject actual = unencryptedDs.createQuery(EncryptAtRestSubObject.class).field(ScopedKeyczarDAO.FIELD_SCOPE).equal(obj.scope).get();
+        assertThat(actual.scope, equalTo(obj.scope));
+        MatcherAssert.assertThat(actual.subObject.name, equalTo(obj.subObject.name));
+        MatcherAssert.assertThat(actual.subObject.test, equalTo(obj.subObject.test));
+        */
+    }
+
+    @Test
+    public void fetchUnencryptedRestObjectEncodesSubsWithScope() {
+        EncryptAtRestSubObject obj = new EncryptAtRestSubObject();
+        obj.scope = ObjectId.get();
+        obj.subObject = new SubObject();
+        obj.subObject.name = "Name";
+        obj.subObject.test = 100;
+        unencryptedDs.save(obj);
+        final EncryptAtRestSubObject asRead = ds.createQuery(EncryptAtRestSubObject.class).field("scope").equal(obj.scope).get();
+        assertThat(asRead.scope, equalTo(obj.scope));
+        assertThat(asRead.subObject.name, equalTo(obj.subObject.name));
+        assertThat(asRead.subObject.test, equalTo(obj.subObject.test));
+
+        /*
+        final EncryptAtRestSubObject actual = unencryptedDs.createQuery(EncryptAtRestSubObject.class).field(ScopedKeyczarDAO.FIELD_SCOPE).equal(obj.scope).get();
+        assertThat(actual.scope, equalTo(obj.scope));
+        MatcherAssert.assertThat(actual.subObject.name, equalTo(obj.subObject.name));
+        MatcherAssert.assertThat(actual.subObject.test, equalTo(obj.subObject.test));
+        */
+    }
+
+    @Test
+    public void fetchEncryptAtRestWithIdDoesntCrashAndBurn() {
+        EncryptAtRestWithId obj = new EncryptAtRestWithId();
+        obj.scope = ObjectId.get();
+        obj.value = "Something encrypted";
+        ds.save(obj);
+        final EncryptAtRestWithId asRead = ds.createQuery(EncryptAtRestWithId.class).field("_id").equal(obj.scope).get();
+        assertThat(asRead.scope, equalTo(obj.scope));
+        assertThat(obj.value, equalTo(asRead.value));
+    }
+
+    @Test
+    public void blindIndexFindsEncryptedValuesWithinScope() {
+        ObjectId scope = ObjectId.get();
+        interceptor.ensureBlindIndexes(ds, EncryptAtRestBlindIndexObject.class);
+
+        EncryptAtRestBlindIndexObject obj = new EncryptAtRestBlindIndexObject();
+        obj.scope = scope;
+        obj.email = "someone@example.com";
+        obj.body = "Something encrypted";
+        ds.save(obj);
+
+        EncryptAtRestBlindIndexObject other = new EncryptAtRestBlindIndexObject();
+        other.scope = scope;
+        other.email = "someone.else@example.com";
+        ds.save(other);
+
+        final EncryptAtRestBlindIndexObject asRead = interceptor.blindIndexEqual(
+                ds.createQuery(EncryptAtRestBlindIndexObject.class), "email", scope, obj.email).get();
+        assertNotNull(asRead);
+        assertThat(asRead.id, equalTo(obj.id));
+        assertThat(asRead.email, equalTo(obj.email));
+        assertThat(asRead.body, equalTo(obj.body));
+
+        assertThat(interceptor.blindIndexEqual(ds.createQuery(EncryptAtRestBlindIndexObject.class),
+                "email", ObjectId.get(), obj.email).countAll(), equalTo(0L));
+
+        final EncryptAtRestBlindIndexObject actual = unencryptedDs.createQuery(EncryptAtRestBlindIndexObject.class)
+                .field("id").equal(obj.id).get();
+        assertThat(actual.email, not(obj.email));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void blindIndexRejectsUnindexedFields() {
+        interceptor.blindIndexEqual(ds.createQuery(EncryptAtRestBlindIndexObject.class), "body", ObjectId.get(), "value");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void blindIndexRejectsNullValues() {
+        interceptor.blindIndexEqual(ds.createQuery(EncryptAtRestBlindIndexObject.class), "email", ObjectId.get(), null);
+    }
+
+    @Test
+    public void encryptAtRestEncryptsOnlyNestedLeafValues() {
+        EncryptAtRestNestedObject obj = new EncryptAtRestNestedObject();
+        obj.scope = ObjectId.get();
+        obj.subObject = new NestedSubObject();
+        obj.subObject.name = "Name";
+        obj.subObject.secret = "Something encrypted";
+        NestedSubObject element = new NestedSubObject();
+        element.name = "Element";
+        element.secret = "Something else encrypted";
+        obj.subObjects = Lists.newArrayList(element);
+        obj.emails = Lists.newArrayList("someone@example.com", "someone.else@example.com");
+        obj.labels = new HashMap<>();
+        obj.labels.put("key1", "value");
+        ds.save(obj);
+
+        final EncryptAtRestNestedObject asRead = ds.createQuery(EncryptAtRestNestedObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(asRead.subObject.name, equalTo(obj.subObject.name));
+        assertThat(asRead.subObject.secret, equalTo(obj.subObject.secret));
+        assertThat(asRead.subObjects.get(0).secret, equalTo(element.secret));
+        assertThat(asRead.emails, equalTo(obj.emails));
+        assertThat(asRead.labels, equalTo(obj.labels));
+
+        final EncryptAtRestNestedObject actual = unencryptedDs.createQuery(EncryptAtRestNestedObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(actual.subObject.name, equalTo(obj.subObject.name));
+        assertThat(actual.subObject.secret, not(obj.subObject.secret));
+        assertThat(actual.subObjects.get(0).name, equalTo(element.name));
+        assertThat(actual.subObjects.get(0).secret, not(element.secret));
+        assertThat(actual.emails.size(), equalTo(obj.emails.size()));
+        assertThat(actual.emails.get(0), not(obj.emails.get(0)));
+        assertThat(actual.labels.keySet(), equalTo(obj.labels.keySet()));
+        assertThat(actual.labels.get("key1"), not(obj.labels.get("key1")));
+
+        final EncryptAtRestNestedObject byNestedField = ds.createQuery(EncryptAtRestNestedObject.class).field(SCOPE).equal(obj.scope)
+                .field("subObject.name").equal(obj.subObject.name).get();
+        assertNotNull(byNestedField);
+    }
+
+    @Test
+    public void encryptAtRestEncryptsRecursiveEmbeddedObjectsAtEveryDepth() {
+        EncryptAtRestRecursiveObject obj = new EncryptAtRestRecursiveObject();
+        obj.scope = ObjectId.get();
+        obj.subObject = new RecursiveSubObject();
+        obj.subObject.secret = "Something encrypted";
+        obj.subObject.child = new RecursiveSubObject();
+        obj.subObject.child.name = "Child";
+        obj.subObject.child.secret = "Something else encrypted";
+        obj.subObject.child.child = new RecursiveSubObject();
+        obj.subObject.child.child.secret = "Something encrypted further down";
+        ds.save(obj);
+
+        final EncryptAtRestRecursiveObject asRead = ds.createQuery(EncryptAtRestRecursiveObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(asRead.subObject.secret, equalTo(obj.subObject.secret));
+        assertThat(asRead.subObject.child.secret, equalTo(obj.subObject.child.secret));
+        assertThat(asRead.subObject.child.child.secret, equalTo(obj.subObject.child.child.secret));
+
+        final EncryptAtRestRecursiveObject actual = unencryptedDs.createQuery(EncryptAtRestRecursiveObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(actual.subObject.secret, not(obj.subObject.secret));
+        assertThat(actual.subObject.child.name, equalTo(obj.subObject.child.name));
+        assertThat(actual.subObject.child.secret, not(obj.subObject.child.secret));
+        assertThat(actual.subObject.child.child.secret, not(obj.subObject.child.child.secret));
+    }
+
+    @Test
+    public void encryptAtRestEncryptsInheritedFields() {
+        EncryptAtRestDerivedObject obj = new EncryptAtRestDerivedObject();
+        obj.scope = ObjectId.get();
+        obj.body = "Something encrypted";
+        obj.extra = "Something else encrypted";
+        obj.plain = "Something in the clear";
+        ds.save(obj);
+
+        final EncryptAtRestDerivedObject asRead = ds.createQuery(EncryptAtRestDerivedObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(asRead.body, equalTo(obj.body));
+        assertThat(asRead.extra, equalTo(obj.extra));
+
+        final EncryptAtRestDerivedObject actual = unencryptedDs.createQuery(EncryptAtRestDerivedObject.class).field(SCOPE).equal(obj.scope).get();
+        assertThat(actual.body, not(obj.body));
+        assertThat(actual.extra, not(obj.extra));
+        assertThat(actual.plain, equalTo(obj.plain));
+    }
+
+    @Test
+    public void encryptAtRestFollowsFieldPolicies() {
+        EncryptAtRestPolicyObject obj = new EncryptAtRestPolicyObject();
+        obj.scope = ObjectId.get();
+        obj.body = Strings.repeat("Something compressible ", 50);
+        obj.attributes = new HashMap<>();
+        obj.attributes.put("count", 42);
+        obj.attributes.put("when", new Date(1234567890L));
+        obj.note = "Something decrypted on request";
+        obj.title = "Something cached";
+        ds.save(obj);
+
+        final DBObject stored = unencryptedDs.getCollection(EncryptAtRestPolicyObject.class).findOne(new BasicDBObject("_id", obj.id));
+        assertThat(stored.get("body"), instanceOf(byte[].class));
+        assertThat(((byte[]) stored.get("body")).length < obj.body.length(), equalTo(true));
+        assertThat(stored.get("attributes"), instanceOf(String.class));
+        assertThat(stored.get("note"), not((Object) obj.note));
+
+        final EncryptAtRestPolicyObject asRead = ds.get(EncryptAtRestPolicyObject.class, obj.id);
+        assertThat(asRead.body, equalTo(obj.body));
+        assertThat(asRead.attributes, equalTo(obj.attributes));
+        assertThat(asRead.title, equalTo(obj.title));
+        assertThat(ds.get(EncryptAtRestPolicyObject.class, obj.id).title, equalTo(obj.title));
+
+        // Lazy fields stay encrypted until they are asked for, and are not encrypted twice when saved again untouched
+        assertThat(asRead.note, equalTo(stored.get("note")));
+        assertThat(interceptor.decryptLazy(asRead, "note"), equalTo(obj.note));
+        ds.save(asRead);
+        assertThat(interceptor.decryptLazy(ds.get(EncryptAtRestPolicyObject.class, obj.id), "note"), equalTo(obj.note));
+        assertThat(interceptor.blindIndexEqual(ds.createQuery(EncryptAtRestPolicyObject.class), "note", obj.scope, obj.note).get().id,
+                equalTo(obj.id));
+
+        asRead.note = "Something else";
+        ds.save(asRead);
+        assertThat(interceptor.decryptLazy(ds.get(EncryptAtRestPolicyObject.class, obj.id), "note"), equalTo(asRead.note));
+    }
+
+    @Test
+    public void lazyFieldsSavedAgainKeepTheirCiphertextUnlessTheirScopeChanges() {
+        EncryptAtRestPolicyObject obj = new EncryptAtRestPolicyObject();
+        obj.scope = ObjectId.get();
+        obj.note = "Something decrypted on request";
+        ds.save(obj);
+
+        final EncryptAtRestPolicyObject asRead = ds.get(EncryptAtRestPolicyObject.class, obj.id);
+        ds.save(asRead);
+        final DBObject stored = unencryptedDs.getCollection(EncryptAtRestPolicyObject.class).findOne(new BasicDBObject("_id", obj.id));
+        assertThat(stored.get("note"), equalTo((Object) asRead.note));
+        assertThat(interceptor.blindIndexEqual(ds.createQuery(EncryptAtRestPolicyObject.class), "note", obj.scope, obj.note).get().id,
+                equalTo(obj.id));
+
+        asRead.scope = ObjectId.get();
+        ds.save(asRead);
+        final EncryptAtRestPolicyObject moved = ds.get(EncryptAtRestPolicyObject.class, obj.id);
+        assertThat(moved.note, not(asRead.note));
+        assertThat(interceptor.decryptLazy(moved, "note"), equalTo(obj.note));
+        assertThat(interceptor.blindIndexEqual(ds.createQuery(EncryptAtRestPolicyObject.class), "note", asRead.scope, obj.note).get().id,
+                equalTo(obj.id));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decryptLazyRejectsEagerFields() {
+        interceptor.decryptLazy(new EncryptAtRestPolicyObject(), "title");
+    }
+
+    @Test
+    public void generatedHandlersAreUsedWhereTheyCanReachTheEntity() {
+        assertNotNull(EncryptionHandlers.find(EncryptAtRestObject.class));
+        assertNotNull(EncryptionHandlers.find(EncryptAtRestNestedObject.class));
+        assertNotNull(EncryptionHandlers.find(EncryptAtRestDerivedObject.class));
+        // Private classes fall back to reflection
+        assertThat(EncryptionHandlers.find(EncryptAtRestObjectWithoutScope.class), nullValue());
+    }
+
+
+    private static class EncryptAtRestObjectWithoutScope {
+        public ObjectId scope;
+
+        @EncryptAtRest
+        public String body;
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.relateiq.mongo;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+import com.mongodb.MongoClient;
+import com.relateiq.CrypterFactory;
+import com.relateiq.annotations.KeyczarReaderFactory;
+import com.relateiq.mongo.guice.MongoConfigModuleForTest;
+import com.relateiq.mongo.guice.MongoModuleForTest;
+import com.relateiq.mongo.load.CountingKeyczarReaderFactory;
+import com.relateiq.mongo.load.LoadTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.DatastoreImpl;
+import org.mongodb.morphia.Morphia;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+/**
+ * A short run of the {@link LoadTest} harness. Scale it up with system properties, e.g.
+ * {@code -Dloadtest.threads=32 -Dloadtest.operations=200000 -Dloadtest.tenants=10000 -Dloadtest.skew=1.2}.
+ */
+public class EncryptAtRestLoadTest {
+    private static final Logger log = LoggerFactory.getLogger(EncryptAtRestLoadTest.class);
+
+    protected static Injector injector;
+
+    private CountingKeyczarReaderFactory readerFactory;
+    private Datastore ds;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException {
+        injector = Guice.createInjector(new MongoModuleForTest(), new MongoConfigModuleForTest());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        // Forces the reset mechanism to be initialized
+        injector.getInstance(Datastore.class);
+
+        // A datastore of its own, so that every key store query made under load is counted
+        readerFactory = new CountingKeyczarReaderFactory(injector.getInstance(KeyczarReaderFactory.class));
+        final Morphia morphia = new Morphia();
+        morphia.getMapper().getOptions().setStoreEmpties(true);
+        morphia.getMapper().addInterceptor(new EncryptAtRestInterceptor(new CrypterFactory(readerFactory)));
+        ds = new DatastoreImpl(morphia, injector.getInstance(MongoClient.class),
+                injector.getInstance(Key.get(String.class, Names.named("MONGO_DATABASE"))));
+    }
+
+    @After
+    public void teardown() throws Exception {
+        MongoModuleForTest.resetDBs();
+    }
+
+    @Test
+    public void encryptedEntitiesSurviveConcurrentLoad() throws Exception {
+        final LoadTest.Report report = LoadTest.newBuilder()
+                .setThreads(Integer.getInteger("loadtest.threads", 4))
+                .setOperations(Integer.getInteger("loadtest.operations", 2000))
+                .setWarmupOperations(Integer.getInteger("loadtest.warmup", 100))
+                .setTenants(Integer.getInteger("loadtest.tenants", 50))
+                .setSkew(Double.parseDouble(System.getProperty("loadtest.skew", "1.0")))
+                .setPayloadSize(Integer.getInteger("loadtest.payload", 1024))
+                .setMix(Integer.getInteger("loadtest.saves", 40), Integer.getInteger("loadtest.loads", 40))
+                .setSeed(Long.getLong("loadtest.seed", 42L))
+                .setKeyStoreQueries(readerFactory::getQueries)
+                .build()
+                .run(ds);
+        log.info("Load test: {}", report);
+
+        assertThat(report.errors.sum(), equalTo(0L));
+        assertThat(report.getOperations(), equalTo((long) Integer.getInteger("loadtest.operations", 2000)));
+        assertThat(report.keyStoreQueries, greaterThan(0L));
+    }
+}
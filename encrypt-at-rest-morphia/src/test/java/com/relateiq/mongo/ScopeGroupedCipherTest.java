@@ -0,0 +1,101 @@
+package com.relateiq.mongo;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Named;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.relateiq.mongo.guice.MongoConfigModuleForTest;
+import com.relateiq.mongo.guice.MongoModuleForTest;
+import com.relateiq.mongo.impl.EncryptAtRestObject;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.Morphia;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+public class ScopeGroupedCipherTest {
+    protected static Injector injector;
+
+    @Inject private Datastore ds;
+    @Inject @Named("UnencryptedDataSource") private Datastore unencryptedDs;
+    @Inject private Morphia morphia;
+    @Inject private EncryptAtRestInterceptor interceptor;
+
+    private ScopeGroupedCipher cipher;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException {
+        injector = Guice.createInjector(new MongoModuleForTest(), new MongoConfigModuleForTest());
+    }
+
+    @Before
+    public void setup() {
+        injector.injectMembers(this);
+        cipher = new ScopeGroupedCipher(morphia.getMapper(), interceptor);
+    }
+
+    @After
+    public void teardown() {
+        MongoModuleForTest.resetDBs();
+    }
+
+    private static List<EncryptAtRestObject> interleaved() {
+        final List<ObjectId> scopes = Lists.newArrayList(ObjectId.get(), ObjectId.get(), ObjectId.get());
+        final List<EncryptAtRestObject> objects = Lists.newArrayList();
+        for (int i = 0; i < 12; i++) {
+            EncryptAtRestObject obj = new EncryptAtRestObject();
+            obj.scope = scopes.get(i % scopes.size());
+            obj.body = "Something encrypted " + i;
+            objects.add(obj);
+        }
+        return objects;
+    }
+
+    @Test
+    public void decryptsInterleavedScopesInOrder() {
+        final List<EncryptAtRestObject> saved = interleaved();
+        for (EncryptAtRestObject obj : saved) {
+            ds.save(obj);
+        }
+
+        final List<DBObject> dbObjects = unencryptedDs.getCollection(EncryptAtRestObject.class).find()
+                .sort(new BasicDBObject("_id", 1)).toArray();
+        final List<EncryptAtRestObject> loaded = cipher.decrypt(EncryptAtRestObject.class, dbObjects);
+
+        assertThat(loaded.size(), equalTo(saved.size()));
+        for (int i = 0; i < saved.size(); i++) {
+            assertThat(loaded.get(i).scope, equalTo(saved.get(i).scope));
+            assertThat(loaded.get(i).body, equalTo(saved.get(i).body));
+        }
+    }
+
+    @Test
+    public void encryptsInterleavedScopesInOrder() {
+        final List<EncryptAtRestObject> objects = interleaved();
+        final List<DBObject> dbObjects = cipher.encrypt(objects);
+
+        assertThat(dbObjects.size(), equalTo(objects.size()));
+        for (int i = 0; i < objects.size(); i++) {
+            assertThat(dbObjects.get(i).get("scope"), equalTo((Object) objects.get(i).scope));
+            assertThat(dbObjects.get(i).get("body"), not((Object) objects.get(i).body));
+        }
+
+        ds.getCollection(EncryptAtRestObject.class).insert(dbObjects);
+        final List<EncryptAtRestObject> asRead = ds.createQuery(EncryptAtRestObject.class).order("_id").asList();
+        for (int i = 0; i < objects.size(); i++) {
+            assertThat(asRead.get(i).body, equalTo(objects.get(i).body));
+        }
+    }
+}
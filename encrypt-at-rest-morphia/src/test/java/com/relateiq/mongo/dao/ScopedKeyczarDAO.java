@@ -1,7 +1,11 @@
 package com.relateiq.mongo.dao;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 import com.relateiq.mongo.dom.ScopedKeyczar;
 import org.bson.types.ObjectId;
 import org.javatuples.Pair;
@@ -12,11 +16,17 @@ import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.interfaces.KeyType;
 import org.mongodb.morphia.Datastore;
 import org.mongodb.morphia.dao.BasicDAO;
+import org.mongodb.morphia.query.Query;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * Created by jontg on 3/24/14.
@@ -26,10 +36,10 @@ public class ScopedKeyczarDAO extends BasicDAO<ScopedKeyczar, ObjectId> {
     private static final Logger log = LoggerFactory.getLogger(ScopedKeyczarDAO.class);
 
     public static final String FIELD_SCOPE = "scope";
+    public static final String FIELD_METADATA = "metadata";
 
     private final Crypter crypter;
 
-    // private static final String FIELD_METADATA = "metadata";
     // private static final String FIELD_SECRETS = "secrets";
 
     @Inject
@@ -84,9 +94,69 @@ public class ScopedKeyczarDAO extends BasicDAO<ScopedKeyczar, ObjectId> {
         }
     }
 
+    /**
+     * @deprecated loads every key ring in one go; use {@link #streamAllMetadata(String, int, Executor)}
+     */
+    @Deprecated
     public Iterable<String> getAllMetadata() {
         log.warn("Fetching all metadata for all keys - don't do this!");
-        return Iterables.transform(createQuery().retrievedFields(true, "metadata").fetch(), ScopedKeyczar::getMetadata);
+        return Iterables.transform(createQuery().retrievedFields(true, FIELD_METADATA).fetch(), ScopedKeyczar::getMetadata);
+    }
+
+    /**
+     * Walks the decrypted metadata of every key ring in scope order, a page at a time, so that memory use is bounded by the
+     * batch size however many scopes there are. Each page is a fresh range query on the scope, so a walk that was interrupted
+     * can be resumed from the last scope it saw, and no server-side cursor has to stay open in between.
+     *
+     * @param afterScope scope to resume after, or null to start from the beginning
+     * @param batchSize  number of key rings per page
+     * @param executor   decrypts the metadata of each page in parallel
+     * @return (scope, metadata) pairs
+     */
+    public Iterable<Pair<String, String>> streamAllMetadata(final String afterScope, final int batchSize, final Executor executor) {
+        return () -> new AbstractIterator<Pair<String, String>>() {
+            private String last = afterScope;
+            private Iterator<Pair<String, String>> page = Collections.emptyIterator();
+            private boolean exhausted;
+
+            @Override
+            protected Pair<String, String> computeNext() {
+                while (!page.hasNext()) {
+                    if (exhausted) {
+                        return endOfData();
+                    }
+
+                    final List<Pair<String, String>> next = fetchMetadataPage(last, batchSize, executor);
+                    exhausted = next.size() < batchSize;
+                    if (!next.isEmpty()) {
+                        last = next.get(next.size() - 1).getValue0();
+                    }
+                    page = next.iterator();
+                }
+                return page.next();
+            }
+        };
+    }
+
+    private List<Pair<String, String>> fetchMetadataPage(String afterScope, int batchSize, Executor executor) {
+        final Query<ScopedKeyczar> query = createQuery().retrievedFields(true, FIELD_METADATA).order(FIELD_SCOPE).limit(batchSize);
+        if (afterScope != null) {
+            query.field(FIELD_SCOPE).greaterThan(afterScope);
+        }
+
+        final List<CompletableFuture<Pair<String, String>>> decrypted = Lists.newArrayList();
+        for (final ScopedKeyczar keyczar : query.asList()) {
+            decrypted.add(CompletableFuture.supplyAsync(() -> Pair.with(keyczar.getScope(), decryptMetadata(keyczar.getMetadata())), executor));
+        }
+        return Lists.newArrayList(Lists.transform(decrypted, CompletableFuture::join));
+    }
+
+    private String decryptMetadata(String metadata) {
+        try {
+            return crypter.decrypt(metadata);
+        } catch (KeyczarException e) {
+            return metadata;
+        }
     }
 
     private ScopedKeyczar fetchOrCreateKeyczar(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
@@ -103,8 +173,6 @@ public class ScopedKeyczarDAO extends BasicDAO<ScopedKeyczar, ObjectId> {
                         .setSecrets(ImmutableMap.of(Integer.toString(version.getValue0().getVersionNumber()),
                                 crypter.encrypt(version.getValue1().toString())))
                         .build();
-                save(keyczar);
-                return createQuery().field(FIELD_SCOPE).equal(scope).get();
             } catch (KeyczarException e) {
                 keyczar = ScopedKeyczar.newBuilder()
                         .setScope(scope)
@@ -112,14 +180,26 @@ public class ScopedKeyczarDAO extends BasicDAO<ScopedKeyczar, ObjectId> {
                         .setSecrets(ImmutableMap.of(Integer.toString(version.getValue0().getVersionNumber()),
                                 version.getValue1().toString()))
                         .build();
-                save(keyczar);
-                return createQuery().field(FIELD_SCOPE).equal(scope).get();
             }
+            return insertOrFetch(keyczar);
         }
 
         return keyczar;
     }
 
+    /**
+     * Concurrent lookups of a new scope all try to create its key ring; only the first insert may win, since saving would
+     * replace a ring that data might already be encrypted with.
+     */
+    private ScopedKeyczar insertOrFetch(ScopedKeyczar keyczar) {
+        try {
+            ds.insert(keyczar, WriteConcern.ACKNOWLEDGED);
+        } catch (MongoException.DuplicateKey e) {
+            log.debug("Key ring for {} was created concurrently", keyczar.getScope());
+        }
+        return createQuery().field(FIELD_SCOPE).equal(keyczar.getScope()).get();
+    }
+
     private Pair<KeyVersion, KeyczarKey> generateKeyVersion(int number, KeyMetadata metadata, String scope) {
 
         KeyType type = metadata.getType();
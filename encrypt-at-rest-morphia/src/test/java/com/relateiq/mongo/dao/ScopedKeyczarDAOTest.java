@@ -0,0 +1,79 @@
+package com.relateiq.mongo.dao;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.relateiq.mongo.guice.MongoConfigModuleForTest;
+import com.relateiq.mongo.guice.MongoModuleForTest;
+import org.bson.types.ObjectId;
+import org.javatuples.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.KeyMetadata;
+import org.keyczar.enums.KeyPurpose;
+import org.mongodb.morphia.Datastore;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+public class ScopedKeyczarDAOTest {
+    protected static Injector injector;
+
+    @Inject private Datastore ds;
+    @Inject private ScopedKeyczarDAO scopedKeyczarDAO;
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException {
+        injector = Guice.createInjector(new MongoModuleForTest(), new MongoConfigModuleForTest());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        injector.injectMembers(this);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        executor.shutdownNow();
+        MongoModuleForTest.resetDBs();
+    }
+
+    @Test
+    public void streamAllMetadataPagesThroughEveryScopeInOrder() {
+        final List<String> scopes = Lists.newArrayList();
+        for (int i = 0; i < 25; i++) {
+            final String scope = ObjectId.get().toString();
+            scopedKeyczarDAO.getMetadata(scope, KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES, 128);
+            scopes.add(scope);
+        }
+        Collections.sort(scopes);
+
+        final List<String> streamed = Lists.newArrayList();
+        for (Pair<String, String> metadata : scopedKeyczarDAO.streamAllMetadata(null, 7, executor)) {
+            streamed.add(metadata.getValue0());
+            assertThat(KeyMetadata.read(metadata.getValue1()), notNullValue());
+        }
+        assertThat(streamed, equalTo(scopes));
+
+        // Resuming after the tenth scope picks up with the eleventh
+        final List<String> resumed = Lists.newArrayList();
+        for (Pair<String, String> metadata : scopedKeyczarDAO.streamAllMetadata(scopes.get(9), 7, executor)) {
+            resumed.add(metadata.getValue0());
+        }
+        assertThat(resumed, equalTo(scopes.subList(10, scopes.size())));
+    }
+}
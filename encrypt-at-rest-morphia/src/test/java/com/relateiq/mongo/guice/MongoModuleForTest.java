@@ -89,6 +89,7 @@ public class MongoModuleForTest extends AbstractModule {
     @Override
     protected void configure() {
         bind(CrypterFactory.class);
+        bind(EncryptAtRestInterceptor.class).in(Singleton.class);
         install(new FactoryModuleBuilder()
                 .implement(KeyczarReader.class, MongoKeyczarReader.class)
                 .build(KeyczarReaderFactory.class));
@@ -105,7 +106,7 @@ public class MongoModuleForTest extends AbstractModule {
 
     @Provides
     @Singleton
-    Morphia provideMorphia(CrypterFactory crypterFactory) {
+    Morphia provideMorphia(EncryptAtRestInterceptor interceptor) {
         MorphiaLoggerFactory.reset();
         MorphiaLoggerFactory.registerLogger(SLF4JLoggerImplFactory.class);
 
@@ -113,7 +114,7 @@ public class MongoModuleForTest extends AbstractModule {
         morphia.mapPackage("dom");
         morphia.getMapper().getOptions().setStoreEmpties(true);
 
-        morphia.getMapper().addInterceptor(new EncryptAtRestInterceptor(crypterFactory));
+        morphia.getMapper().addInterceptor(interceptor);
         return morphia;
     }
 
@@ -0,0 +1,13 @@
+package com.relateiq.mongo.impl;
+
+import com.relateiq.annotations.EncryptAtRest;
+import com.relateiq.annotations.EncryptionScope;
+import org.bson.types.ObjectId;
+
+public abstract class EncryptAtRestBaseObject {
+    @EncryptionScope
+    public ObjectId scope;
+
+    @EncryptAtRest
+    public String body;
+}
@@ -0,0 +1,20 @@
+package com.relateiq.mongo.impl;
+
+import com.relateiq.annotations.EncryptAtRest;
+import com.relateiq.annotations.EncryptionScope;
+import org.bson.types.ObjectId;
+import org.mongodb.morphia.annotations.Id;
+
+public class EncryptAtRestBlindIndexObject {
+    @Id
+    public ObjectId id;
+
+    @EncryptionScope
+    public ObjectId scope;
+
+    @EncryptAtRest(blindIndex = true)
+    public String email;
+
+    @EncryptAtRest
+    public String body;
+}
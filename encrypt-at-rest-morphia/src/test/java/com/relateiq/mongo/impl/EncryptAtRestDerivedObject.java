@@ -0,0 +1,10 @@
+package com.relateiq.mongo.impl;
+
+import com.relateiq.annotations.EncryptAtRest;
+
+public class EncryptAtRestDerivedObject extends EncryptAtRestBaseObject {
+    @EncryptAtRest
+    public String extra;
+
+    public String plain;
+}
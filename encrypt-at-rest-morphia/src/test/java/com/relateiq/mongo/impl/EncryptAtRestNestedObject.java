@@ -0,0 +1,23 @@
+package com.relateiq.mongo.impl;
+
+import com.relateiq.annotations.EncryptAtRest;
+import com.relateiq.annotations.EncryptionScope;
+import org.bson.types.ObjectId;
+
+import java.util.List;
+import java.util.Map;
+
+public class EncryptAtRestNestedObject {
+    @EncryptionScope
+    public ObjectId scope;
+
+    public NestedSubObject subObject;
+
+    public List<NestedSubObject> subObjects;
+
+    @EncryptAtRest(elements = true)
+    public List<String> emails;
+
+    @EncryptAtRest(elements = true)
+    public Map<String, String> labels;
+}
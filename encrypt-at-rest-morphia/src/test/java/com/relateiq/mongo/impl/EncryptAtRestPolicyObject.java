@@ -0,0 +1,28 @@
+package com.relateiq.mongo.impl;
+
+import com.relateiq.annotations.EncryptAtRest;
+import com.relateiq.annotations.EncryptionScope;
+import org.bson.types.ObjectId;
+import org.mongodb.morphia.annotations.Id;
+
+import java.util.Map;
+
+public class EncryptAtRestPolicyObject {
+    @Id
+    public ObjectId id;
+
+    @EncryptionScope
+    public ObjectId scope;
+
+    @EncryptAtRest(compression = EncryptAtRest.Compression.DEFLATE, format = EncryptAtRest.Format.BINARY)
+    public String body;
+
+    @EncryptAtRest(codec = EncryptAtRest.Codec.BSON, compression = EncryptAtRest.Compression.DEFLATE)
+    public Map<String, Object> attributes;
+
+    @EncryptAtRest(lazy = true, blindIndex = true)
+    public String note;
+
+    @EncryptAtRest(cacheable = true)
+    public String title;
+}
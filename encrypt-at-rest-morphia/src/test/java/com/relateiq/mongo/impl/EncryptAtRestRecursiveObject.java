@@ -0,0 +1,11 @@
+package com.relateiq.mongo.impl;
+
+import com.relateiq.annotations.EncryptionScope;
+import org.bson.types.ObjectId;
+
+public class EncryptAtRestRecursiveObject {
+    @EncryptionScope
+    public ObjectId scope;
+
+    public RecursiveSubObject subObject;
+}
@@ -0,0 +1,10 @@
+package com.relateiq.mongo.impl;
+
+import com.relateiq.annotations.EncryptAtRest;
+
+public class NestedSubObject {
+    public String name;
+
+    @EncryptAtRest
+    public String secret;
+}
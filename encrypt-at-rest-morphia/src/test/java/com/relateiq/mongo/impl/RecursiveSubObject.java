@@ -0,0 +1,12 @@
+package com.relateiq.mongo.impl;
+
+import com.relateiq.annotations.EncryptAtRest;
+
+public class RecursiveSubObject {
+    public String name;
+
+    @EncryptAtRest
+    public String secret;
+
+    public RecursiveSubObject child;
+}
@@ -0,0 +1,49 @@
+package com.relateiq.mongo.load;
+
+import com.relateiq.annotations.KeyczarReaderFactory;
+import org.keyczar.DefaultKeyType;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyczarReader;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts every read that reaches the key store behind the given factory.
+ */
+public class CountingKeyczarReaderFactory implements KeyczarReaderFactory {
+    private final KeyczarReaderFactory delegate;
+    private final LongAdder queries = new LongAdder();
+
+    public CountingKeyczarReaderFactory(KeyczarReaderFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    @Override
+    public KeyczarReader create(String scope, KeyPurpose purpose, DefaultKeyType type, int size) {
+        final KeyczarReader reader = delegate.create(scope, purpose, type, size);
+        return new KeyczarReader() {
+            @Override
+            public String getKey(int version) throws KeyczarException {
+                queries.increment();
+                return reader.getKey(version);
+            }
+
+            @Override
+            public String getKey() throws KeyczarException {
+                queries.increment();
+                return reader.getKey();
+            }
+
+            @Override
+            public String getMetadata() throws KeyczarException {
+                queries.increment();
+                return reader.getMetadata();
+            }
+        };
+    }
+}
@@ -0,0 +1,307 @@
+package com.relateiq.mongo.load;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import org.bson.types.ObjectId;
+import org.mongodb.morphia.Datastore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Multi-threaded load against an encrypting {@link Datastore}: a configurable mix of saves, loads by id and queries by scope of
+ * {@link LoadTestObject}s, spread over a (possibly skewed) population of tenants, each with its own scope.  Every load checks
+ * that the document decrypts to the body it was saved with.
+ * <p/>
+ * Runs are repeatable for a given seed, up to thread scheduling. The {@link Report} has throughput, per-operation latency
+ * histograms, key store queries per operation and the garbage collections during the run.
+ */
+public class LoadTest {
+    private static final Logger log = LoggerFactory.getLogger(LoadTest.class);
+    private static final int RECENT_IDS = 4096;
+
+    private final int threads;
+    private final int operations;
+    private final int warmupOperations;
+    private final int tenants;
+    private final double skew;
+    private final int payloadSize;
+    private final int savePercent;
+    private final int loadPercent;
+    private final long seed;
+    private final LongSupplier keyStoreQueries;
+
+    private LoadTest(Builder builder) {
+        this.threads = builder.threads;
+        this.operations = builder.operations;
+        this.warmupOperations = builder.warmupOperations;
+        this.tenants = builder.tenants;
+        this.skew = builder.skew;
+        this.payloadSize = builder.payloadSize;
+        this.savePercent = builder.savePercent;
+        this.loadPercent = builder.loadPercent;
+        this.seed = builder.seed;
+        this.keyStoreQueries = builder.keyStoreQueries;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public Report run(final Datastore ds) throws InterruptedException {
+        final ObjectId[] scopes = new ObjectId[tenants];
+        for (int i = 0; i < tenants; i++) {
+            scopes[i] = ObjectId.get();
+        }
+        final TenantSampler sampler = new TenantSampler(tenants, skew);
+        final String payload = Strings.repeat("x", payloadSize);
+        final AtomicReferenceArray<LoadTestObject> recent = new AtomicReferenceArray<>(RECENT_IDS);
+        final AtomicLong saved = new AtomicLong();
+
+        // Warm up single-threaded, so that cold keys of the measured run are not all created at once
+        final Random warmupRandom = new Random(seed);
+        for (int i = 0; i < warmupOperations; i++) {
+            save(ds, scopes[sampler.next(warmupRandom)], payload, recent, saved);
+        }
+
+        final Report report = new Report();
+        final long queriesBefore = keyStoreQueries.getAsLong();
+        final GcSnapshot gcBefore = GcSnapshot.take();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(seed + t + 1);
+            final int share = operations / threads + (t < operations % threads ? 1 : 0);
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < share; i++) {
+                        final int roll = random.nextInt(100);
+                        final ObjectId scope = scopes[sampler.next(random)];
+                        final long began = System.nanoTime();
+                        try {
+                            if (roll < savePercent || saved.get() == 0) {
+                                save(ds, scope, payload, recent, saved);
+                                report.saves.record(System.nanoTime() - began);
+                            } else if (roll < savePercent + loadPercent) {
+                                final LoadTestObject target = recent.get(random.nextInt((int) Math.min(saved.get(), RECENT_IDS)));
+                                // A slot may not be filled in yet by the thread that claimed it
+                                if (target != null) {
+                                    final LoadTestObject loaded = ds.get(LoadTestObject.class, target.id);
+                                    if (loaded == null || !target.body.equals(loaded.body)) {
+                                        report.errors.increment();
+                                        log.warn("Load test document {} did not decrypt to what was saved", target.id);
+                                    }
+                                }
+                                report.loads.record(System.nanoTime() - began);
+                            } else {
+                                ds.createQuery(LoadTestObject.class).field("scope").equal(scope).limit(10).asList();
+                                report.queries.record(System.nanoTime() - began);
+                            }
+                        } catch (RuntimeException e) {
+                            report.errors.increment();
+                            log.warn("Load test operation failed", e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "load-test-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        final long began = System.nanoTime();
+        start.countDown();
+        done.await();
+        report.elapsedNanos = System.nanoTime() - began;
+        report.keyStoreQueries = keyStoreQueries.getAsLong() - queriesBefore;
+
+        final GcSnapshot gcAfter = GcSnapshot.take();
+        report.gcCount = gcAfter.count - gcBefore.count;
+        report.gcMillis = gcAfter.millis - gcBefore.millis;
+        return report;
+    }
+
+    private static void save(Datastore ds, ObjectId scope, String payload,
+                             AtomicReferenceArray<LoadTestObject> recent, AtomicLong saved) {
+        final LoadTestObject obj = new LoadTestObject();
+        obj.id = ObjectId.get();
+        obj.scope = scope;
+        // Unique per document, so that loading the wrong document (or failing to decrypt it) is caught
+        obj.body = obj.id + ":" + payload;
+        ds.save(obj);
+        recent.set((int) (saved.getAndIncrement() % RECENT_IDS), obj);
+    }
+
+    /**
+     * Picks tenants with probability proportional to 1 / rank^skew; a skew of 0 is uniform.
+     */
+    static final class TenantSampler {
+        private final double[] cumulative;
+
+        TenantSampler(int tenants, double skew) {
+            cumulative = new double[tenants];
+            double sum = 0;
+            for (int i = 0; i < tenants; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < tenants; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            final double r = random.nextDouble();
+            int low = 0;
+            int high = cumulative.length - 1;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (cumulative[mid] < r) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static final class GcSnapshot {
+        final long count;
+        final long millis;
+
+        private GcSnapshot(long count, long millis) {
+            this.count = count;
+            this.millis = millis;
+        }
+
+        static GcSnapshot take() {
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return new GcSnapshot(count, millis);
+        }
+    }
+
+    public static final class Report {
+        public final LatencyHistogram saves = new LatencyHistogram();
+        public final LatencyHistogram loads = new LatencyHistogram();
+        public final LatencyHistogram queries = new LatencyHistogram();
+        public final LongAdder errors = new LongAdder();
+        public long elapsedNanos;
+        public long keyStoreQueries;
+        public long gcCount;
+        public long gcMillis;
+
+        public long getOperations() {
+            return saves.getCount() + loads.getCount() + queries.getCount();
+        }
+
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : getOperations() * 1e9 / elapsedNanos;
+        }
+
+        public double getKeyStoreQueriesPerOperation() {
+            final long operations = getOperations();
+            return operations == 0 ? 0 : (double) keyStoreQueries / operations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d ops in %dms (%.0f ops/s), %d errors, %.2f key store queries/op, %d GCs (%dms)%n"
+                            + "  save:  %s%n  load:  %s%n  query: %s",
+                    getOperations(), elapsedNanos / 1000000, getThroughput(), errors.sum(), getKeyStoreQueriesPerOperation(),
+                    gcCount, gcMillis, saves, loads, queries);
+        }
+    }
+
+    public static final class Builder {
+        private int threads = 8;
+        private int operations = 10000;
+        private int warmupOperations = 0;
+        private int tenants = 100;
+        private double skew = 1.0;
+        private int payloadSize = 1024;
+        private int savePercent = 40;
+        private int loadPercent = 40;
+        private long seed = 42;
+        private LongSupplier keyStoreQueries = () -> 0;
+
+        private Builder() {
+        }
+
+        public Builder setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Builder setOperations(int operations) {
+            this.operations = operations;
+            return this;
+        }
+
+        public Builder setWarmupOperations(int warmupOperations) {
+            this.warmupOperations = warmupOperations;
+            return this;
+        }
+
+        public Builder setTenants(int tenants) {
+            this.tenants = tenants;
+            return this;
+        }
+
+        /**
+         * @param skew Zipf exponent of the tenant popularity; 0 spreads operations evenly over all tenants
+         */
+        public Builder setSkew(double skew) {
+            this.skew = skew;
+            return this;
+        }
+
+        public Builder setPayloadSize(int payloadSize) {
+            this.payloadSize = payloadSize;
+            return this;
+        }
+
+        /**
+         * Percentages of saves and loads by id; the rest of the operations are queries by scope.
+         */
+        public Builder setMix(int savePercent, int loadPercent) {
+            this.savePercent = savePercent;
+            this.loadPercent = loadPercent;
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder setKeyStoreQueries(LongSupplier keyStoreQueries) {
+            this.keyStoreQueries = keyStoreQueries;
+            return this;
+        }
+
+        public LoadTest build() {
+            Preconditions.checkArgument(threads > 0 && tenants > 0 && operations >= 0 && skew >= 0 && payloadSize >= 0);
+            Preconditions.checkArgument(savePercent >= 0 && loadPercent >= 0 && savePercent + loadPercent <= 100);
+            return new LoadTest(this);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.relateiq.mongo.load;
+
+import com.relateiq.annotations.EncryptAtRest;
+import com.relateiq.annotations.EncryptionScope;
+import org.bson.types.ObjectId;
+import org.mongodb.morphia.annotations.Id;
+
+/**
+ * A plainly encrypted entity, without blind indexes, so that key store queries per operation only count the crypters.
+ */
+public class LoadTestObject {
+    @Id
+    public ObjectId id;
+
+    @EncryptionScope
+    public ObjectId scope;
+
+    @EncryptAtRest
+    public String body;
+}
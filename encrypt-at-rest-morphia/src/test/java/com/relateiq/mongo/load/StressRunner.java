@@ -0,0 +1,106 @@
+package com.relateiq.mongo.load;
+
+import com.google.common.collect.Lists;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Runs a task on many threads released at the same instant, to maximize the overlap between them, and reports the failures and
+ * the lock contention the threads ran into.
+ */
+public final class StressRunner {
+    private StressRunner() {
+    }
+
+    public interface Task {
+        void run(int thread, int iteration) throws Exception;
+    }
+
+    public static Result run(int threads, final int iterations, final Task task) throws InterruptedException {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isThreadContentionMonitoringSupported()) {
+            threadBean.setThreadContentionMonitoringEnabled(true);
+        }
+
+        final Result result = new Result();
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        final CountDownLatch done = new CountDownLatch(threads);
+        // Workers stay alive until their contention has been read
+        final CountDownLatch measured = new CountDownLatch(1);
+        final List<Thread> workers = Lists.newArrayList();
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            final Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < iterations; i++) {
+                        try {
+                            task.run(thread, i);
+                        } catch (Exception | AssertionError e) {
+                            result.failures.add(e);
+                        }
+                    }
+                } catch (Exception e) {
+                    result.failures.add(e);
+                } finally {
+                    done.countDown();
+                }
+
+                try {
+                    measured.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "stress-" + t);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+
+        final long began = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        done.await();
+        result.elapsedNanos = System.nanoTime() - began;
+
+        for (Thread worker : workers) {
+            final ThreadInfo info = threadBean.getThreadInfo(worker.getId());
+            if (info != null) {
+                result.blockedCount += info.getBlockedCount();
+                result.blockedMillis += Math.max(0, info.getBlockedTime());
+                result.waitedCount += info.getWaitedCount();
+                result.waitedMillis += Math.max(0, info.getWaitedTime());
+            }
+        }
+        measured.countDown();
+        return result;
+    }
+
+    public static final class Result {
+        public final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        public long elapsedNanos;
+        /**
+         * Times the threads had to wait to enter a monitor; the durations stay 0 where contention monitoring is unsupported
+         */
+        public long blockedCount;
+        public long blockedMillis;
+        /**
+         * Times the threads parked or waited, which includes contended java.util.concurrent locks
+         */
+        public long waitedCount;
+        public long waitedMillis;
+
+        @Override
+        public String toString() {
+            return String.format("%d failures in %dms; blocked %d times (%dms), waited %d times (%dms)", failures.size(),
+                    elapsedNanos / 1000000, blockedCount, blockedMillis, waitedCount, waitedMillis);
+        }
+    }
+}
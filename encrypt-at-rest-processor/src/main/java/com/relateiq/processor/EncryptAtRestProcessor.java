@@ -0,0 +1,388 @@
+package com.relateiq.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates an {@code <Entity>_EncryptionHandler} next to every class with {@code @EncryptAtRest} or {@code @EncryptionScope}
+ * fields, so that the interceptor can read scopes and encrypt fields without reflection.
+ * <p/>
+ * Annotations are read through their mirrors, so that neither Keyczar nor Morphia has to be on the processor path. Fields are
+ * inherited the same way the interceptor inherits them, so subclasses of annotated classes get handlers of their own.
+ * <p/>
+ * Classes the generated code could not reach (private classes, generic classes, inaccessible scope fields without a getter) are
+ * skipped with a note, and keep using reflection at runtime.
+ */
+// Subclasses that only inherit their annotated fields need handlers too
+@SupportedAnnotationTypes("*")
+public class EncryptAtRestProcessor extends AbstractProcessor {
+    static final String HANDLER_SUFFIX = "_EncryptionHandler";
+    static final String ENCRYPT_AT_REST = "com.relateiq.annotations.EncryptAtRest";
+    static final String ENCRYPTION_SCOPE = "com.relateiq.annotations.EncryptionScope";
+
+    private static final String HANDLER_INTERFACE = "com.relateiq.mongo.EncryptionHandler";
+    private static final String HANDLERS = "com.relateiq.mongo.EncryptionHandlers";
+    private static final String FIELD_POLICY = "com.relateiq.mongo.FieldPolicy";
+    private static final String DB_OBJECT = "com.mongodb.DBObject";
+
+    private static final String ID = "org.mongodb.morphia.annotations.Id";
+    private static final String PROPERTY = "org.mongodb.morphia.annotations.Property";
+    private static final String EMBEDDED = "org.mongodb.morphia.annotations.Embedded";
+    private static final String TRANSIENT = "org.mongodb.morphia.annotations.Transient";
+    private static final String IGNORED_FIELDNAME = ".";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        final Set<TypeElement> entities = new LinkedHashSet<>();
+        addEntities(ElementFilter.typesIn(roundEnv.getRootElements()), entities);
+
+        for (TypeElement entity : entities) {
+            final String skipped = getUnsupportedReason(entity);
+            if (skipped != null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        "Not generating an encryption handler, falling back to reflection: " + skipped, entity);
+                continue;
+            }
+
+            try {
+                write(entity);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Unable to write the encryption handler: " + e.getMessage(), entity);
+            }
+        }
+
+        // Claim nothing, so that other processors still see every annotation
+        return false;
+    }
+
+    private void addEntities(Iterable<TypeElement> types, Set<TypeElement> entities) {
+        for (TypeElement type : types) {
+            if (type.getKind() == ElementKind.CLASS && (getScopeField(type) != null || !getEncryptedFields(type).isEmpty())) {
+                entities.add(type);
+            }
+            addEntities(ElementFilter.typesIn(type.getEnclosedElements()), entities);
+        }
+    }
+
+    private String getUnsupportedReason(TypeElement entity) {
+        for (Element e = entity; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                return e.getSimpleName() + " is private";
+            }
+        }
+
+        if (!entity.getTypeParameters().isEmpty()) {
+            return entity.getSimpleName() + " is generic";
+        }
+
+        final VariableElement scope = getScopeField(entity);
+        if (scope != null && !isStaticScope(scope) && getScopeAccessor(entity, scope) == null) {
+            return scope.getSimpleName() + " is not accessible and has no accessible getter";
+        }
+        return null;
+    }
+
+    private void write(TypeElement entity) throws IOException {
+        final String packageName = getPackage(entity).getQualifiedName().toString();
+        final String binaryName = processingEnv.getElementUtils().getBinaryName(entity).toString();
+        final String handlerName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + HANDLER_SUFFIX;
+        final String entityName = entity.getQualifiedName().toString();
+
+        final VariableElement scope = getScopeField(entity);
+        final List<VariableElement> encrypted = getEncryptedFields(entity);
+
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(packageName.isEmpty() ? handlerName : packageName + "." + handlerName, entity).openWriter())) {
+            if (!packageName.isEmpty()) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Generated by " + EncryptAtRestProcessor.class.getName() + " - do not edit.");
+            out.println(" */");
+            out.println("public final class " + handlerName + " implements " + HANDLER_INTERFACE + "<" + entityName + "> {");
+            out.println("    private static final com.relateiq.annotations.EncryptionScope ENCRYPTION_SCOPE = "
+                    + (scope == null ? "null" : HANDLERS + ".getEncryptionScope(" + entityName + ".class, \"" + scope.getSimpleName() + "\")") + ";");
+            for (VariableElement field : encrypted) {
+                out.println("    private static final " + FIELD_POLICY + " " + getPolicyConstant(field) + " = "
+                        + HANDLERS + ".getFieldPolicy(" + entityName + ".class, \"" + field.getSimpleName() + "\");");
+            }
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public com.relateiq.annotations.EncryptionScope getEncryptionScope() {");
+            out.println("        return ENCRYPTION_SCOPE;");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public String getScope(" + entityName + " entity, " + DB_OBJECT + " dbObject) {");
+            if (scope == null) {
+                out.println("        return null;");
+            } else if (isStaticScope(scope)) {
+                out.println("        return " + literal(getStaticScope(scope)) + ";");
+            } else {
+                out.println("        Object scope = dbObject.get(" + literal(getJsonName(scope)) + ");");
+                out.println("        if (scope == null) {");
+                out.println("            scope = entity." + getScopeAccessor(entity, scope) + ";");
+                out.println("        }");
+                out.println("        return String.valueOf(scope);");
+            }
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public void encrypt(" + DB_OBJECT + " dbObject, FieldCipher cipher) {");
+            for (VariableElement field : encrypted) {
+                if (isElementWise(field)) {
+                    out.println("        cipher.encryptElements(dbObject, " + literal(getJsonName(field)) + ", " + getPolicyConstant(field) + ");");
+                } else {
+                    out.println("        cipher.encrypt(dbObject, " + literal(getJsonName(field)) + ", " + classLiteral(field.asType())
+                            + ", " + getPolicyConstant(field) + ");");
+                }
+            }
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public void decrypt(" + DB_OBJECT + " dbObject, FieldCipher cipher) {");
+            for (VariableElement field : encrypted) {
+                if (isElementWise(field)) {
+                    out.println("        cipher.decryptElements(dbObject, " + literal(getJsonName(field)) + ", " + classLiteral(field.asType())
+                            + ", " + classLiteral(getElementType(field.asType())) + ");");
+                } else {
+                    out.println("        cipher.decrypt(dbObject, " + literal(getJsonName(field)) + ", " + classLiteral(field.asType())
+                            + ", " + getPolicyConstant(field) + ");");
+                }
+            }
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    /**
+     * @return the class followed by its superclasses, up to (and excluding) the first JDK class
+     */
+    private static List<TypeElement> getHierarchy(TypeElement entity) {
+        final List<TypeElement> hierarchy = new ArrayList<>();
+        for (TypeElement type = entity; type != null && !type.getQualifiedName().toString().startsWith("java.");
+             type = getSuperclass(type)) {
+            hierarchy.add(type);
+        }
+        return hierarchy;
+    }
+
+    private static TypeElement getSuperclass(TypeElement type) {
+        final TypeMirror superclass = type.getSuperclass();
+        return superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+    }
+
+    /**
+     * Mirrors the fields the interceptor considers: neither static nor transient.
+     */
+    private static List<VariableElement> getPersistentFields(TypeElement type) {
+        final List<VariableElement> fields = new ArrayList<>();
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            if (field.getModifiers().contains(Modifier.STATIC) || field.getModifiers().contains(Modifier.TRANSIENT)
+                    || getAnnotation(field, TRANSIENT) != null) {
+                continue;
+            }
+            fields.add(field);
+        }
+        return fields;
+    }
+
+    /**
+     * @return the scope field of the class itself, or else the nearest inherited one
+     */
+    private static VariableElement getScopeField(TypeElement entity) {
+        for (TypeElement type : getHierarchy(entity)) {
+            for (VariableElement field : getPersistentFields(type)) {
+                if (getAnnotation(field, ENCRYPTION_SCOPE) != null) {
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the encrypted fields of the class and its superclasses, superclass fields first
+     */
+    private static List<VariableElement> getEncryptedFields(TypeElement entity) {
+        final List<VariableElement> encrypted = new ArrayList<>();
+        final List<TypeElement> hierarchy = getHierarchy(entity);
+        for (int i = hierarchy.size() - 1; i >= 0; i--) {
+            for (VariableElement field : getPersistentFields(hierarchy.get(i))) {
+                if (getAnnotation(field, ENCRYPT_AT_REST) != null) {
+                    encrypted.add(field);
+                }
+            }
+        }
+        return encrypted;
+    }
+
+    /**
+     * @return the name of the constant holding the policy of the field, e.g. {@code MESSAGE_BODY_POLICY} for {@code messageBody}
+     */
+    private static String getPolicyConstant(VariableElement field) {
+        return field.getSimpleName().toString().replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT) + "_POLICY";
+    }
+
+    private static boolean isStaticScope(VariableElement scope) {
+        return !getStaticScope(scope).isEmpty();
+    }
+
+    private static String getStaticScope(VariableElement scope) {
+        final Object value = getValue(getAnnotation(scope, ENCRYPTION_SCOPE), "scope");
+        return value == null ? "" : (String) value;
+    }
+
+    /**
+     * @return the expression reading the scope off an entity, or null if the generated code can not reach it
+     */
+    private static String getScopeAccessor(TypeElement entity, VariableElement scope) {
+        if (isAccessible(entity, scope)) {
+            return scope.getSimpleName().toString();
+        }
+
+        final String name = scope.getSimpleName().toString();
+        final String getter = "get" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (TypeElement type : getHierarchy(entity)) {
+            for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+                if (method.getSimpleName().contentEquals(getter) && method.getParameters().isEmpty()
+                        && !method.getModifiers().contains(Modifier.STATIC)) {
+                    // The nearest declaration is the one that is called
+                    return isAccessible(entity, method) ? getter + "()" : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the member can be used from a class in the package of the entity
+     */
+    private static boolean isAccessible(TypeElement entity, Element member) {
+        if (member.getModifiers().contains(Modifier.PUBLIC)) {
+            return true;
+        }
+        return !member.getModifiers().contains(Modifier.PRIVATE) && getPackage(member).equals(getPackage(entity));
+    }
+
+    private static String getJsonName(VariableElement field) {
+        if (getAnnotation(field, ID) != null) {
+            return "_id";
+        }
+
+        for (String name : new String[]{PROPERTY, EMBEDDED}) {
+            final AnnotationMirror mirror = getAnnotation(field, name);
+            if (mirror != null) {
+                final Object value = getValue(mirror, "value");
+                return value == null || value.equals("") || value.equals(IGNORED_FIELDNAME) ? field.getSimpleName().toString() : (String) value;
+            }
+        }
+        return field.getSimpleName().toString();
+    }
+
+    private boolean isElementWise(VariableElement field) {
+        if (!Boolean.TRUE.equals(getValue(getAnnotation(field, ENCRYPT_AT_REST), "elements"))) {
+            return false;
+        }
+
+        final TypeMirror type = field.asType();
+        if (type.getKind() == TypeKind.ARRAY) {
+            return !((ArrayType) type).getComponentType().getKind().isPrimitive();
+        }
+        return isSubtype(type, "java.util.Map") || isSubtype(type, "java.util.Collection");
+    }
+
+    /**
+     * @return the element type of a Collection or array, or the value type of a Map
+     */
+    private static TypeMirror getElementType(TypeMirror type) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            return ((ArrayType) type).getComponentType();
+        }
+
+        final List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+        return arguments.isEmpty() ? null : arguments.get(arguments.size() - 1);
+    }
+
+    private boolean isSubtype(TypeMirror type, String name) {
+        final TypeElement supertype = processingEnv.getElementUtils().getTypeElement(name);
+        return supertype != null && processingEnv.getTypeUtils().isAssignable(
+                processingEnv.getTypeUtils().erasure(type), processingEnv.getTypeUtils().erasure(supertype.asType()));
+    }
+
+    private String classLiteral(TypeMirror type) {
+        if (type == null || (type.getKind() != TypeKind.DECLARED && type.getKind() != TypeKind.ARRAY && !type.getKind().isPrimitive())) {
+            // Type variables and wildcards
+            return "Object.class";
+        }
+        return processingEnv.getTypeUtils().erasure(type).toString() + ".class";
+    }
+
+    private String literal(String value) {
+        return processingEnv.getElementUtils().getConstantExpression(value);
+    }
+
+    private static PackageElement getPackage(Element element) {
+        while (!(element instanceof PackageElement)) {
+            element = element.getEnclosingElement();
+        }
+        return (PackageElement) element;
+    }
+
+    private static AnnotationMirror getAnnotation(Element element, String name) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the explicitly given value of an annotation member, or null if it was left at its default
+     */
+    private static Object getValue(AnnotationMirror mirror, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue().getValue();
+            }
+        }
+        return null;
+    }
+}